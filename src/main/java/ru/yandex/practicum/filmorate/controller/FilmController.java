@@ -1,26 +1,70 @@
 package ru.yandex.practicum.filmorate.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import ru.yandex.practicum.filmorate.model.BatchResult;
 import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.FilmFilter;
 import ru.yandex.practicum.filmorate.service.FilmService;
 
 import javax.validation.Valid;
+import java.time.LocalDate;
 import java.util.List;
 
+@Validated
 @RestController
 @RequestMapping("/films")
 public class FilmController {
     private final FilmService filmService;
+    private final ObjectMapper objectMapper;
 
     @Autowired
-    public FilmController(FilmService filmService) {
+    public FilmController(FilmService filmService, ObjectMapper objectMapper) {
         this.filmService = filmService;
+        this.objectMapper = objectMapper;
     }
 
     @GetMapping
-    public List<Film> getFilms() {
-        return filmService.getFilms();
+    public ResponseEntity<List<Film>> getFilms(@RequestParam(name = "genre", required = false) Integer genreId,
+                                               @RequestParam(name = "mpa", required = false) Integer mpaId,
+                                               @RequestParam(name = "releasedFrom", required = false)
+                                               @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate releasedFrom,
+                                               @RequestParam(name = "releasedTo", required = false)
+                                               @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate releasedTo,
+                                               @RequestParam(name = "after", required = false) Integer after,
+                                               @RequestParam(name = "limit", required = false) Integer limit,
+                                               WebRequest request) {
+        // при совпадении If-None-Match отвечаем 304, не обращаясь к базе
+        if (request.checkNotModified(filmService.getFilmsETag())) {
+            return null;
+        }
+        FilmFilter filter = new FilmFilter(genreId, mpaId, releasedFrom, releasedTo);
+        // с фильтром ответ всегда постраничный, ссылка на продолжение сохраняет условия фильтра
+        if (filter.isEmpty() && after == null && limit == null) {
+            return ResponseEntity.ok(filmService.getFilms());
+        }
+        return CursorPageResponse.of(filmService.getFilms(filter, after, limit));
+    }
+
+    // несколько фильмов за один запрос: /films?ids=1,2,3
+    @GetMapping(params = "ids")
+    public BatchResult<Film> getFilmsByIds(@RequestParam(name = "ids") List<Integer> ids, WebRequest request) {
+        if (request.checkNotModified(filmService.getFilmsETag())) {
+            return null;
+        }
+        return filmService.getFilmsByIds(ids);
+    }
+
+    @GetMapping(produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> exportFilms() {
+        return NdjsonResponse.of(objectMapper, filmService::exportFilms);
     }
 
     @PostMapping
@@ -28,14 +72,25 @@ public class FilmController {
         return filmService.create(film);
     }
 
+    @PostMapping("/batch")
+    public List<Film> createAll(@RequestBody List<@Valid Film> films) {
+        return filmService.createAll(films);
+    }
+
     @PutMapping
     public Film update(@Valid @RequestBody Film film) {
         return filmService.update(film);
     }
 
     @GetMapping("/{id}")
-    public Film getFilmById(@PathVariable("id") Integer filmId) {
-        return filmService.getFilmById(filmId);
+    public Film getFilmById(@PathVariable("id") Integer filmId, WebRequest request) {
+        String etag = filmService.getFilmETag(filmId);
+        Film film = filmService.getFilmById(filmId);
+        // у несуществующего объекта нет версии, поэтому нет ни ETag, ни ответа 304
+        if (film == null || request.checkNotModified(etag)) {
+            return null;
+        }
+        return film;
     }
 
     @PutMapping("/{id}/like/{userId}")
@@ -51,7 +106,32 @@ public class FilmController {
     }
 
     @GetMapping("/popular")
-    public List<Film> getNFilms(@RequestParam(name = "count", defaultValue = "10") Integer count) {
-        return filmService.getNFilms(count);
+    public List<Film> getNFilms(@RequestParam(name = "count", defaultValue = "10") Integer count,
+                                @RequestParam(name = "genreId", required = false) Integer genreId,
+                                @RequestParam(name = "year", required = false) Integer year,
+                                WebRequest request) {
+        if (request.checkNotModified(filmService.getFilmsETag())) {
+            return null;
+        }
+        return filmService.getNFilms(count, genreId, year);
+    }
+
+    @GetMapping("/trending")
+    public List<Film> getTrending(@RequestParam(name = "window", defaultValue = "24h") String window,
+                                  @RequestParam(name = "count", defaultValue = "10") Integer count) {
+        return filmService.getTrending(window, count);
+    }
+
+    @GetMapping("/search")
+    public List<Film> search(@RequestParam(name = "q") String query,
+                             @RequestParam(name = "offset", defaultValue = "0") Integer offset,
+                             @RequestParam(name = "limit", required = false) Integer limit) {
+        return filmService.search(query, offset, limit);
+    }
+
+    @GetMapping("/suggest")
+    public List<Film> suggest(@RequestParam(name = "prefix") String prefix,
+                              @RequestParam(name = "limit", required = false) Integer limit) {
+        return filmService.suggest(prefix, limit);
     }
-}
\ No newline at end of file
+}
@@ -5,6 +5,7 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 import ru.yandex.practicum.filmorate.model.Genre;
 import ru.yandex.practicum.filmorate.service.GenreService;
 
@@ -21,12 +22,18 @@ public class GenreController {
     }
 
     @GetMapping
-    public List<Genre> getGenres() {
+    public List<Genre> getGenres(WebRequest request) {
+        if (request.checkNotModified(genreService.getETag())) {
+            return null;
+        }
         return genreService.getGenres();
     }
 
     @GetMapping("/{id}")
-    public Genre getGenreById(@PathVariable("id") Integer genreId) {
+    public Genre getGenreById(@PathVariable("id") Integer genreId, WebRequest request) {
+        if (request.checkNotModified(genreService.getETag())) {
+            return null;
+        }
         return genreService.getGenreById(genreId);
     }
 }
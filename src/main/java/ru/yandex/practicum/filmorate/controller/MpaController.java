@@ -5,6 +5,7 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 import ru.yandex.practicum.filmorate.model.Mpa;
 import ru.yandex.practicum.filmorate.service.MpaService;
 
@@ -21,12 +22,18 @@ public class MpaController {
     }
 
     @GetMapping
-    public List<Mpa> getMpa() {
+    public List<Mpa> getMpa(WebRequest request) {
+        if (request.checkNotModified(mpaService.getETag())) {
+            return null;
+        }
         return mpaService.getMpa();
     }
 
     @GetMapping("/{id}")
-    public Mpa getMpaById(@PathVariable("id") Integer mpaId) {
+    public Mpa getMpaById(@PathVariable("id") Integer mpaId, WebRequest request) {
+        if (request.checkNotModified(mpaService.getETag())) {
+            return null;
+        }
         return mpaService.getMpaById(mpaId);
     }
 }
@@ -1,26 +1,64 @@
 package ru.yandex.practicum.filmorate.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import ru.yandex.practicum.filmorate.model.BatchResult;
+import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.FriendshipStatus;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.service.FilmService;
 import ru.yandex.practicum.filmorate.service.UserService;
 
 import javax.validation.Valid;
 import java.util.*;
 
+@Validated
 @RestController
 @RequestMapping("/users")
 public class UserController {
     private final UserService userService;
+    private final FilmService filmService;
+    private final ObjectMapper objectMapper;
 
     @Autowired
-    public UserController(UserService userService) {
+    public UserController(UserService userService, FilmService filmService, ObjectMapper objectMapper) {
         this.userService = userService;
+        this.filmService = filmService;
+        this.objectMapper = objectMapper;
     }
 
     @GetMapping
-    public List<User> getUsers() {
-        return userService.getUsers();
+    public ResponseEntity<List<User>> getUsers(@RequestParam(name = "after", required = false) Integer after,
+                                               @RequestParam(name = "limit", required = false) Integer limit,
+                                               WebRequest request) {
+        // при совпадении If-None-Match отвечаем 304, не обращаясь к базе
+        if (request.checkNotModified(userService.getUsersETag())) {
+            return null;
+        }
+        if (after == null && limit == null) {
+            return ResponseEntity.ok(userService.getUsers());
+        }
+        return CursorPageResponse.of(userService.getUsers(after, limit));
+    }
+
+    // несколько пользователей за один запрос: /users?ids=1,2,3
+    @GetMapping(params = "ids")
+    public BatchResult<User> getUsersByIds(@RequestParam(name = "ids") List<Integer> ids, WebRequest request) {
+        if (request.checkNotModified(userService.getUsersETag())) {
+            return null;
+        }
+        return userService.getUsersByIds(ids);
+    }
+
+    @GetMapping(produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> exportUsers() {
+        return NdjsonResponse.of(objectMapper, userService::exportUsers);
     }
 
     @PostMapping
@@ -28,19 +66,49 @@ public class UserController {
         return userService.create(user);
     }
 
+    @PostMapping("/batch")
+    public List<User> createAll(@RequestBody List<@Valid User> users) {
+        return userService.createAll(users);
+    }
+
     @PutMapping
     public User update(@Valid @RequestBody User user) {
         return userService.update(user);
     }
 
+    @GetMapping("/suggest")
+    public List<User> suggest(@RequestParam(name = "prefix") String prefix,
+                              @RequestParam(name = "limit", required = false) Integer limit) {
+        return userService.suggest(prefix, limit);
+    }
+
     @GetMapping("/{id}")
-    public User getUserById(@PathVariable("id") Integer userId) {
-        return userService.getUserById(userId);
+    public User getUserById(@PathVariable("id") Integer userId, WebRequest request) {
+        String etag = userService.getUserETag(userId);
+        User user = userService.getUserById(userId);
+        // у несуществующего объекта нет версии, поэтому нет ни ETag, ни ответа 304
+        if (user == null || request.checkNotModified(etag)) {
+            return null;
+        }
+        return user;
     }
 
     @GetMapping("/{id}/friends")
-    public List<User> getUserFriends(@PathVariable("id") Integer id) {
-        return userService.getUserFriends(id);
+    public ResponseEntity<List<User>> getUserFriends(@PathVariable("id") Integer id,
+                                                     @RequestParam(name = "status", required = false)
+                                                     FriendshipStatus status,
+                                                     @RequestParam(name = "after", required = false) Integer after,
+                                                     @RequestParam(name = "limit", required = false) Integer limit) {
+        if (after == null && limit == null) {
+            return ResponseEntity.ok(userService.getUserFriends(id, status));
+        }
+        return CursorPageResponse.of(userService.getUserFriends(id, status, after, limit));
+    }
+
+    @GetMapping("/{id}/friends/suggestions")
+    public List<User> getFriendSuggestions(@PathVariable("id") Integer id,
+                                           @RequestParam(name = "limit", required = false) Integer limit) {
+        return userService.getFriendSuggestions(id, limit);
     }
 
     @PutMapping("/{id}/friends/{friendId}")
@@ -60,4 +128,10 @@ public class UserController {
                                        @PathVariable("otherId") Integer otherUserId) {
         return userService.getCommonFriends(userId, otherUserId);
     }
+
+    @GetMapping("/{id}/recommendations")
+    public List<Film> getRecommendations(@PathVariable("id") Integer userId,
+                                         @RequestParam(name = "count", required = false) Integer count) {
+        return filmService.getRecommendations(userId, count);
+    }
 }
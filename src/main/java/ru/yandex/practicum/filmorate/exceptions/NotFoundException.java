@@ -4,4 +4,14 @@ public class NotFoundException extends RuntimeException {
     public NotFoundException(String message) {
         super(message);
     }
+
+    private NotFoundException(String message, boolean writableStackTrace) {
+        super(message, null, false, writableStackTrace);
+    }
+
+    // промах по id в getFilm и getUser: несуществующие id запрашиваются часто, обработчик ошибок выводит
+    // только сообщение, и сбор стека был бы самой дорогой частью ответа 404
+    public static NotFoundException withoutStackTrace(String message) {
+        return new NotFoundException(message, false);
+    }
 }
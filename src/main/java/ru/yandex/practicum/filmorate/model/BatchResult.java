@@ -0,0 +1,36 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+
+// ответ на запрос нескольких объектов по id: найденные в порядке запроса и id, которых нет
+@Data
+@AllArgsConstructor
+public class BatchResult<T> {
+    private final List<T> items;
+    private final List<Integer> missing;
+
+    // found - найденные хранилищем объекты в любом порядке
+    public static <T> BatchResult<T> of(List<Integer> ids, List<T> found, ToIntFunction<T> idExtractor) {
+        Map<Integer, T> byId = found.stream()
+                .collect(Collectors.toMap(idExtractor::applyAsInt, item -> item, (item1, item2) -> item1));
+        List<T> items = new ArrayList<>(ids.size());
+        List<Integer> missing = new ArrayList<>();
+
+        for (Integer id : ids) {
+            T item = byId.get(id);
+            if (item != null) {
+                items.add(item);
+            } else {
+                missing.add(id);
+            }
+        }
+        return new BatchResult<>(items, missing);
+    }
+}
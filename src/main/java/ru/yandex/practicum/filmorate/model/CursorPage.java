@@ -0,0 +1,25 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+@Data
+@AllArgsConstructor
+public class CursorPage<T> {
+    private final List<T> items;
+    // id, с которого начинается следующая страница, null - страница последняя
+    private final Integer next;
+
+    // хранилище возвращает на один элемент больше размера страницы, чтобы понять, есть ли продолжение
+    public static <T> CursorPage<T> of(List<T> items, int limit, ToIntFunction<T> idExtractor) {
+        if (items.size() <= limit) {
+            return new CursorPage<>(items, null);
+        }
+
+        List<T> page = items.subList(0, limit);
+        return new CursorPage<>(page, idExtractor.applyAsInt(page.get(limit - 1)));
+    }
+}
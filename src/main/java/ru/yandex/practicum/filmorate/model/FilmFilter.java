@@ -0,0 +1,27 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.time.LocalDate;
+
+// условия выборки фильмов, null - условие не задано
+@Data
+@AllArgsConstructor
+public class FilmFilter {
+    public static final FilmFilter ALL = new FilmFilter(null, null, null, null);
+
+    private final Integer genreId;
+    private final Integer mpaId;
+    private final LocalDate releasedFrom;
+    private final LocalDate releasedTo;
+
+    public boolean isEmpty() {
+        return genreId == null && mpaId == null && releasedFrom == null && releasedTo == null;
+    }
+
+    public boolean isReleasedBetween(LocalDate releaseDate) {
+        return (releasedFrom == null || !releaseDate.isBefore(releasedFrom))
+                && (releasedTo == null || !releaseDate.isAfter(releasedTo));
+    }
+}
@@ -4,28 +4,70 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
+import ru.yandex.practicum.filmorate.exceptions.NotFoundException;
 import ru.yandex.practicum.filmorate.exceptions.ValidationException;
+import ru.yandex.practicum.filmorate.model.BatchResult;
+import ru.yandex.practicum.filmorate.model.CursorPage;
 import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.FilmFilter;
+import ru.yandex.practicum.filmorate.storage.EntityVersions;
 import ru.yandex.practicum.filmorate.storage.film.FilmStorage;
+import ru.yandex.practicum.filmorate.storage.film.FilmTrending;
+import ru.yandex.practicum.filmorate.storage.user.UserStorage;
 
 import javax.validation.Valid;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
 
 @Slf4j
 @Service
 public class FilmService {
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int DEFAULT_RECOMMENDATIONS = 10;
+    private static final int MAX_RECOMMENDATIONS = 100;
+    private static final int DEFAULT_PREFIX_SUGGESTIONS = 10;
+    private static final int MAX_PREFIX_SUGGESTIONS = 100;
+    private static final int MAX_BATCH_IDS = 100;
+
     private final FilmStorage filmStorage;
+    private final UserStorage userStorage;
 
     @Autowired
-    public FilmService(@Qualifier("Db") FilmStorage filmStorage) {
+    public FilmService(@Qualifier("Db") FilmStorage filmStorage, @Qualifier("Db") UserStorage userStorage) {
         this.filmStorage = filmStorage;
+        this.userStorage = userStorage;
     }
 
     public List<Film> getFilms() {
         return filmStorage.getAll();
     }
 
+    public CursorPage<Film> getFilms(FilmFilter filter, Integer after, Integer limit) {
+        int pageSize = limit == null ? DEFAULT_PAGE_SIZE : limit;
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            throw new ValidationException("Размер страницы должен быть от 1 до " + MAX_PAGE_SIZE + ": " + limit);
+        }
+        if (filter.getReleasedFrom() != null && filter.getReleasedTo() != null
+                && filter.getReleasedFrom().isAfter(filter.getReleasedTo())) {
+            throw new ValidationException("Начало периода выхода позже его конца: " + filter.getReleasedFrom()
+                    + " - " + filter.getReleasedTo());
+        }
+
+        log.debug("getFilms Фильтр: {}, после id {}, размер страницы {}", filter, after, pageSize);
+        List<Film> films = filmStorage.getPage(filter, after == null ? 0 : after, pageSize + 1);
+        return CursorPage.of(films, pageSize, Film::getId);
+    }
+
+    public void exportFilms(Consumer<Film> consumer) {
+        filmStorage.exportAll(consumer);
+    }
+
     private void validateFilm(Film film) {
         if (film.getDescription().length() > 200) {
             throw new ValidationException("Описание фильмов превышает 200 символов. Длина: "
@@ -46,15 +88,51 @@ public class FilmService {
         return filmStorage.add(film);
     }
 
+    public List<Film> createAll(List<@Valid Film> films) {
+        films.forEach(this::validateFilm);
+        return filmStorage.addAll(films);
+    }
+
     public Film update(@Valid Film film) {
         validateFilm(film);
         return filmStorage.update(film);
     }
 
+    // ETag нужно получить до чтения фильма: изменение между ними даст устаревшую версию, а не устаревший ответ
+    public String getFilmETag(Integer filmId) {
+        return EntityVersions.etag(filmStorage.getVersion(filmId));
+    }
+
+    // общий ETag для списков фильмов и популярного
+    public String getFilmsETag() {
+        return EntityVersions.etag(filmStorage.getVersion());
+    }
+
     public Film getFilmById(Integer filmId) {
         return filmStorage.getFilm(filmId).orElse(null);
     }
 
+    // фильмы по списку id одним запросом; повторы id убираются, отсутствующие id перечисляются в ответе
+    public BatchResult<Film> getFilmsByIds(List<Integer> ids) {
+        List<Integer> distinctIds = checkBatchIds(ids);
+
+        log.debug("getFilmsByIds Вернуть фильмы с id {}.", distinctIds);
+        return BatchResult.of(distinctIds, filmStorage.getFilms(distinctIds), Film::getId);
+    }
+
+    private static List<Integer> checkBatchIds(List<Integer> ids) {
+        if (ids == null || ids.isEmpty() || ids.stream().anyMatch(Objects::isNull)) {
+            throw new ValidationException("Список id должен быть непустым перечнем чисел через запятую: " + ids);
+        }
+
+        List<Integer> distinctIds = new ArrayList<>(new LinkedHashSet<>(ids));
+        if (distinctIds.size() > MAX_BATCH_IDS) {
+            throw new ValidationException("За один запрос можно получить не больше " + MAX_BATCH_IDS + " id: "
+                    + distinctIds.size());
+        }
+        return distinctIds;
+    }
+
     public Film addLike(Integer filmId, Integer userId) {
         Film film = filmStorage.getFilm(filmId).orElse(null);
         if (film != null) {
@@ -75,8 +153,65 @@ public class FilmService {
         return film;
     }
 
-    public List<Film> getNFilms(Integer count) {
-        log.debug("getNFilms Вернуть {} фильмов.", count);
-        return filmStorage.getNFilms(count);
+    public List<Film> getNFilms(Integer count, Integer genreId, Integer year) {
+        log.debug("getNFilms Вернуть {} фильмов, жанр {}, год {}.", count, genreId, year);
+        return filmStorage.getNFilms(count, genreId, year);
+    }
+
+    // популярное за последнее время, например за 24h или 7d
+    public List<Film> getTrending(String window, Integer count) {
+        if (count == null || count < 1 || count > FilmTrending.MAX_COUNT) {
+            throw new ValidationException("Количество фильмов должно быть от 1 до " + FilmTrending.MAX_COUNT + ": "
+                    + count);
+        }
+        Duration duration = FilmTrending.parseWindow(window);
+
+        log.debug("getTrending Вернуть {} фильмов за окно {}.", count, window);
+        return filmStorage.getTrending(duration, count);
+    }
+
+    public List<Film> getRecommendations(Integer userId, Integer count) {
+        int size = count == null ? DEFAULT_RECOMMENDATIONS : count;
+        if (size < 1 || size > MAX_RECOMMENDATIONS) {
+            throw new ValidationException("Количество рекомендаций должно быть от 1 до " + MAX_RECOMMENDATIONS + ": "
+                    + count);
+        }
+        if (userStorage.getUser(userId).isEmpty()) {
+            throw NotFoundException.withoutStackTrace("Пользователя не существует с таким id: " + userId);
+        }
+
+        log.debug("getRecommendations Вернуть {} фильмов для пользователя {}.", size, userId);
+        return filmStorage.getRecommendations(userId, size);
+    }
+
+    public List<Film> search(String query, Integer offset, Integer limit) {
+        int pageSize = limit == null ? DEFAULT_PAGE_SIZE : limit;
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            throw new ValidationException("Размер страницы должен быть от 1 до " + MAX_PAGE_SIZE + ": " + limit);
+        }
+        if (offset == null || offset < 0) {
+            throw new ValidationException("Смещение не может быть отрицательным: " + offset);
+        }
+        if (query == null || query.isBlank()) {
+            throw new ValidationException("Поисковый запрос не может быть пустым.");
+        }
+
+        log.debug("search Запрос: {}, смещение {}, размер страницы {}", query, offset, pageSize);
+        return filmStorage.search(query, offset, pageSize);
+    }
+
+    // подсказки по мере набора названия
+    public List<Film> suggest(String prefix, Integer limit) {
+        int count = limit == null ? DEFAULT_PREFIX_SUGGESTIONS : limit;
+        if (count < 1 || count > MAX_PREFIX_SUGGESTIONS) {
+            throw new ValidationException("Количество подсказок должно быть от 1 до " + MAX_PREFIX_SUGGESTIONS + ": "
+                    + limit);
+        }
+        if (prefix == null || prefix.isBlank()) {
+            throw new ValidationException("Начало названия не может быть пустым.");
+        }
+
+        log.debug("suggest Начало названия: {}, подсказок {}", prefix, count);
+        return filmStorage.suggest(prefix, count);
     }
 }
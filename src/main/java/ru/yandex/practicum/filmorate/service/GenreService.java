@@ -4,6 +4,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import ru.yandex.practicum.filmorate.model.Genre;
+import ru.yandex.practicum.filmorate.storage.EntityVersions;
 import ru.yandex.practicum.filmorate.storage.GenreStorage;
 
 import java.util.List;
@@ -18,6 +19,10 @@ public class GenreService {
         this.genreStorage = genreStorage;
     }
 
+    public String getETag() {
+        return EntityVersions.etag(genreStorage.getVersion());
+    }
+
     public List<Genre> getGenres() {
         return genreStorage.getGenres();
     }
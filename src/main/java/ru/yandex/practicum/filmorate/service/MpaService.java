@@ -4,6 +4,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import ru.yandex.practicum.filmorate.model.Mpa;
+import ru.yandex.practicum.filmorate.storage.EntityVersions;
 import ru.yandex.practicum.filmorate.storage.MpaStorage;
 
 import java.util.List;
@@ -18,6 +19,10 @@ public class MpaService {
         this.mpaStorage = mpaStorage;
     }
 
+    public String getETag() {
+        return EntityVersions.etag(mpaStorage.getVersion());
+    }
+
     public List<Mpa> getMpa() {
         return mpaStorage.getMpa();
     }
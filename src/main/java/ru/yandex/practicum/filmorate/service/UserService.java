@@ -6,17 +6,37 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 import ru.yandex.practicum.filmorate.exceptions.NotFoundException;
 import ru.yandex.practicum.filmorate.exceptions.ValidationException;
+import ru.yandex.practicum.filmorate.model.BatchResult;
+import ru.yandex.practicum.filmorate.model.CursorPage;
+import ru.yandex.practicum.filmorate.model.FriendshipStatus;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.storage.EntityVersions;
 import ru.yandex.practicum.filmorate.storage.user.UserStorage;
 
 import javax.validation.Valid;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 @Slf4j
 @Service
 public class UserService {
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int DEFAULT_SUGGESTIONS = 10;
+    private static final int MAX_SUGGESTIONS = 100;
+    private static final int DEFAULT_PREFIX_SUGGESTIONS = 10;
+    private static final int MAX_PREFIX_SUGGESTIONS = 100;
+    private static final int MAX_BATCH_IDS = 100;
+    // сколько друзей просматривается на каждом шаге обхода, чтобы пользователи с огромным числом друзей
+    // не увеличивали время ответа
+    private static final int FRIENDS_PER_HOP = 200;
+
     private final UserStorage userStorage;
 
     @Autowired
@@ -28,6 +48,20 @@ public class UserService {
         return userStorage.getAll();
     }
 
+    public CursorPage<User> getUsers(Integer after, Integer limit) {
+        int pageSize = limit == null ? DEFAULT_PAGE_SIZE : limit;
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            throw new ValidationException("Размер страницы должен быть от 1 до " + MAX_PAGE_SIZE + ": " + limit);
+        }
+
+        List<User> users = userStorage.getPage(after == null ? 0 : after, pageSize + 1);
+        return CursorPage.of(users, pageSize, User::getId);
+    }
+
+    public void exportUsers(Consumer<User> consumer) {
+        userStorage.exportAll(consumer);
+    }
+
     private void validateUser(User user) {
         if (user.getLogin().contains(" ")) {
             throw new ValidationException("У пользователя пробелы в логине: " + user.getLogin());
@@ -45,27 +79,57 @@ public class UserService {
         return userStorage.add(user);
     }
 
+    public List<User> createAll(List<@Valid User> users) {
+        users.forEach(this::validateUser);
+        return userStorage.addAll(users);
+    }
+
     public User update(@Valid User user) {
         validateUser(user);
         return userStorage.update(user);
     }
 
 
+    // ETag нужно получить до чтения пользователя: изменение между ними даст устаревшую версию, а не устаревший ответ
+    public String getUserETag(Integer userId) {
+        return EntityVersions.etag(userStorage.getVersion(userId));
+    }
+
+    public String getUsersETag() {
+        return EntityVersions.etag(userStorage.getVersion());
+    }
+
     public User getUserById(Integer userId) {
         return userStorage.getUser(userId).orElse(null);
     }
 
 
-    public User addFriend(Integer userId, Integer friendId) {
-        User user = userStorage.getUser(userId).orElse(null);
-        User friend = userStorage.getUser(friendId).orElse(null);
+    // пользователи по списку id одним запросом; повторы id убираются, отсутствующие id перечисляются в ответе
+    public BatchResult<User> getUsersByIds(List<Integer> ids) {
+        List<Integer> distinctIds = checkBatchIds(ids);
 
-        if (user == null) {
-            throw new NotFoundException("Пользователя не существует с таким id: " + userId);
+        log.debug("getUsersByIds Вернуть пользователей с id {}.", distinctIds);
+        return BatchResult.of(distinctIds, userStorage.getUsers(distinctIds), User::getId);
+    }
+
+    private static List<Integer> checkBatchIds(List<Integer> ids) {
+        if (ids == null || ids.isEmpty() || ids.stream().anyMatch(Objects::isNull)) {
+            throw new ValidationException("Список id должен быть непустым перечнем чисел через запятую: " + ids);
         }
-        if (friend == null) {
-            throw new NotFoundException("Пользователя не существует с таким id: " + friendId);
+
+        List<Integer> distinctIds = new ArrayList<>(new LinkedHashSet<>(ids));
+        if (distinctIds.size() > MAX_BATCH_IDS) {
+            throw new ValidationException("За один запрос можно получить не больше " + MAX_BATCH_IDS + " id: "
+                    + distinctIds.size());
         }
+        return distinctIds;
+    }
+
+    public User addFriend(Integer userId, Integer friendId) {
+        List<User> users = getExistingUsers(userId, friendId);
+        User user = users.get(0);
+        User friend = users.get(1);
+
         userStorage.addFriend(user, friend);
 
         log.debug("addFriend Текущий пользователь: {}", user);
@@ -74,15 +138,9 @@ public class UserService {
     }
 
     public User removeFriend(Integer userId, Integer friendId) {
-        User user = userStorage.getUser(userId).orElse(null);
-        User friend = userStorage.getUser(friendId).orElse(null);
-
-        if (user == null) {
-            throw new NotFoundException("Пользователя не существует с таким id: " + userId);
-        }
-        if (friend == null) {
-            throw new NotFoundException("Пользователя не существует с таким id: " + friendId);
-        }
+        List<User> users = getExistingUsers(userId, friendId);
+        User user = users.get(0);
+        User friend = users.get(1);
 
         userStorage.removeFriend(user, friend);
 
@@ -92,14 +150,36 @@ public class UserService {
         return user;
     }
 
+    // загружает пользователей одним запросом, порядок результата совпадает с порядком id
+    private List<User> getExistingUsers(Integer... userIds) {
+        Map<Integer, User> users = userStorage.getUsers(List.of(userIds)).stream()
+                .collect(Collectors.toMap(User::getId, u -> u, (u1, u2) -> u1));
+        List<User> result = new ArrayList<>(userIds.length);
+
+        for (Integer userId : userIds) {
+            User user = users.get(userId);
+            if (user == null) {
+                throw new NotFoundException("Пользователя не существует с таким id: " + userId);
+            }
+            result.add(user);
+        }
+        return result;
+    }
+
     public List<User> getUserFriends(Integer userId) {
+        return getUserFriends(userId, (FriendshipStatus) null);
+    }
+
+    public List<User> getUserFriends(Integer userId, FriendshipStatus status) {
         User user = userStorage.getUser(userId).orElse(null);
         List<User> userFriends;
         if (user == null) {
-            throw new NotFoundException("Пользователя не существует с таким id: " + userId);
+            throw NotFoundException.withoutStackTrace("Пользователя не существует с таким id: " + userId);
         }
 
-        userFriends = userStorage.getUserFriends(user);
+        userFriends = status == null
+                ? userStorage.getUserFriends(user)
+                : userStorage.getUserFriends(user, status, 0, Integer.MAX_VALUE);
         log.debug("getUserFriends Текущий пользователь: {}", user);
         log.debug("getUserFriends Друзья пользователя {}: {}", user.getId(), userFriends.stream().map(User::getId)
                 .collect(Collectors.toList()));
@@ -107,14 +187,61 @@ public class UserService {
         return userFriends;
     }
 
+    public CursorPage<User> getUserFriends(Integer userId, FriendshipStatus status, Integer after, Integer limit) {
+        int pageSize = limit == null ? DEFAULT_PAGE_SIZE : limit;
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            throw new ValidationException("Размер страницы должен быть от 1 до " + MAX_PAGE_SIZE + ": " + limit);
+        }
+
+        User user = userStorage.getUser(userId)
+                .orElseThrow(() -> NotFoundException.withoutStackTrace("Пользователя не существует с таким id: "
+                        + userId));
+
+        List<User> userFriends = userStorage.getUserFriends(user, status, after == null ? 0 : after, pageSize + 1);
+        return CursorPage.of(userFriends, pageSize, User::getId);
+    }
+
     public List<User> getCommonFriends(Integer userId, Integer otherUserId) {
-        List<User> userFriends = getUserFriends(userId);
-        List<User> otherUserFriends = getUserFriends(otherUserId);
+        List<User> users = getExistingUsers(userId, otherUserId);
+        User user = users.get(0);
+        User otherUser = users.get(1);
 
-        log.debug("getCommonFriends Текущий пользователь: {}", userStorage.getUser(userId));
-        log.debug("getCommonFriends Другой пользователь: {}", userStorage.getUser(otherUserId));
+        log.debug("getCommonFriends Текущий пользователь: {}", user);
+        log.debug("getCommonFriends Другой пользователь: {}", otherUser);
 
-        userFriends.retainAll(otherUserFriends);
-        return userFriends;
+        return userStorage.getCommonFriends(user, otherUser);
+    }
+
+    // кандидаты в друзья - друзья друзей, упорядоченные по числу общих друзей
+    public List<User> getFriendSuggestions(Integer userId, Integer limit) {
+        int count = limit == null ? DEFAULT_SUGGESTIONS : limit;
+        if (count < 1 || count > MAX_SUGGESTIONS) {
+            throw new ValidationException("Количество рекомендаций должно быть от 1 до " + MAX_SUGGESTIONS + ": "
+                    + limit);
+        }
+
+        User user = userStorage.getUser(userId)
+                .orElseThrow(() -> NotFoundException.withoutStackTrace("Пользователя не существует с таким id: "
+                        + userId));
+
+        List<Integer> suggestionIds = userStorage.getFriendSuggestionIds(user.getId(), FRIENDS_PER_HOP, count);
+
+        log.debug("getFriendSuggestions Рекомендации для пользователя {}: {}", user.getId(), suggestionIds);
+        return userStorage.getUsers(suggestionIds);
+    }
+
+    // подсказки по мере набора логина
+    public List<User> suggest(String prefix, Integer limit) {
+        int count = limit == null ? DEFAULT_PREFIX_SUGGESTIONS : limit;
+        if (count < 1 || count > MAX_PREFIX_SUGGESTIONS) {
+            throw new ValidationException("Количество подсказок должно быть от 1 до " + MAX_PREFIX_SUGGESTIONS + ": "
+                    + limit);
+        }
+        if (prefix == null || prefix.isBlank()) {
+            throw new ValidationException("Начало логина не может быть пустым.");
+        }
+
+        log.debug("suggest Начало логина: {}, подсказок {}", prefix, count);
+        return userStorage.suggest(prefix, count);
     }
 }
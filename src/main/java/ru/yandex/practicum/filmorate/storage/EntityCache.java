@@ -0,0 +1,184 @@
+package ru.yandex.practicum.filmorate.storage;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+import java.util.function.LongSupplier;
+import java.util.function.UnaryOperator;
+
+// кэш объектов по id перед чтением из базы: не больше maxSize записей, вытесняется давно не читавшийся,
+// запись живет не дольше ttl; наружу отдаются копии, поэтому изменение полученного объекта не портит кэш
+// отдельно и с отдельным пределом хранятся id, которых нет в базе: повторный запрос такого id не доходит до базы
+public class EntityCache<V> {
+    private final int maxSize;
+    private final int absentMaxSize;
+    private final long ttlNanos;
+    private final UnaryOperator<V> copy;
+    private final LongSupplier clock;
+    // порядок доступа: первым идет давно не читавшийся; все обращения под блокировкой самой карты
+    private final LinkedHashMap<Integer, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // отсутствующие id и время, когда база это подтвердила; под той же блокировкой entries
+    private final LinkedHashMap<Integer, Long> absent = new LinkedHashMap<>(16, 0.75f, true);
+    // число сбросов; загрузка, начатая до сброса, не кладет в кэш прочитанное из базы старое значение
+    private long invalidations;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder absentHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    public EntityCache(int maxSize, int absentMaxSize, long ttlMs, UnaryOperator<V> copy) {
+        this(maxSize, absentMaxSize, ttlMs, copy, System::nanoTime);
+    }
+
+    // clock - время в наносекундах, в тестах его можно подменить
+    public EntityCache(int maxSize, int absentMaxSize, long ttlMs, UnaryOperator<V> copy, LongSupplier clock) {
+        if (maxSize < 0 || absentMaxSize < 0 || ttlMs < 0) {
+            throw new IllegalArgumentException("Некорректные параметры кэша: размер " + maxSize + ", отсутствующих "
+                    + absentMaxSize + ", ttl " + ttlMs);
+        }
+        this.maxSize = maxSize;
+        this.absentMaxSize = absentMaxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.copy = copy;
+        this.clock = clock;
+    }
+
+    // ttl, равный 0, выключает кэш: каждый запрос идет в базу; размер 0 выключает только свою часть кэша
+    public boolean isEnabled() {
+        return (maxSize > 0 || absentMaxSize > 0) && ttlNanos > 0;
+    }
+
+    public Optional<V> get(int id, IntFunction<Optional<V>> loader) {
+        if (!isEnabled()) {
+            return loader.apply(id);
+        }
+
+        long stamp;
+        synchronized (entries) {
+            long now = clock.getAsLong();
+            Entry<V> entry = entries.get(id);
+            if (entry != null) {
+                if (now - entry.loadedAt < ttlNanos) {
+                    hits.increment();
+                    return Optional.of(copy.apply(entry.value));
+                }
+                entries.remove(id);
+                expirations.increment();
+            }
+            Long checkedAt = absent.get(id);
+            if (checkedAt != null) {
+                if (now - checkedAt < ttlNanos) {
+                    absentHits.increment();
+                    return Optional.empty();
+                }
+                absent.remove(id);
+                expirations.increment();
+            }
+            stamp = invalidations;
+        }
+
+        // база читается без блокировки, параллельные промахи по одному id загрузят его каждый сам
+        misses.increment();
+        Optional<V> loaded = loader.apply(id);
+        V value = loaded.map(copy).orElse(null);
+
+        synchronized (entries) {
+            if (stamp == invalidations) {
+                if (value != null && maxSize > 0) {
+                    entries.put(id, new Entry<>(value, clock.getAsLong()));
+                    evictOverflow(entries, maxSize);
+                } else if (value == null && absentMaxSize > 0) {
+                    absent.put(id, clock.getAsLong());
+                    evictOverflow(absent, absentMaxSize);
+                }
+            }
+        }
+        return loaded;
+    }
+
+    // вызывается после записи в базу, в том числе после добавления: id мог быть запомнен как отсутствующий
+    public void invalidate(int id) {
+        synchronized (entries) {
+            invalidations++;
+            entries.remove(id);
+            absent.remove(id);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            invalidations++;
+            entries.clear();
+            absent.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public Stats getStats() {
+        synchronized (entries) {
+            return new Stats(hits.sum(), absentHits.sum(), misses.sum(), evictions.sum(), expirations.sum(),
+                    entries.size(), absent.size());
+        }
+    }
+
+    private void evictOverflow(LinkedHashMap<Integer, ?> map, int limit) {
+        Iterator<? extends Map.Entry<Integer, ?>> iterator = map.entrySet().iterator();
+        while (map.size() > limit && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long loadedAt;
+
+        private Entry(V value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    // hits - найденные объекты, absentHits - известные отсутствующие id,
+    // evictions - вытеснены из-за размера, expirations - устарели по ttl
+    @Getter
+    @AllArgsConstructor(access = AccessLevel.PRIVATE)
+    public static class Stats {
+        private final long hits;
+        private final long absentHits;
+        private final long misses;
+        private final long evictions;
+        private final long expirations;
+        private final int size;
+        private final int absentSize;
+
+        public double getHitRate() {
+            long requests = hits + absentHits + misses;
+            return requests == 0 ? 0 : (double) (hits + absentHits) / requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("попаданий %d, из них отсутствующих %d, промахов %d (%.1f%% попаданий), вытеснено %d, "
+                            + "устарело %d, записей %d, отсутствующих %d",
+                    hits + absentHits, absentHits, misses, 100 * getHitRate(), evictions, expirations, size,
+                    absentSize);
+        }
+    }
+}
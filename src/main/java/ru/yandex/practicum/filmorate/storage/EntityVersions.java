@@ -0,0 +1,49 @@
+package ru.yandex.practicum.filmorate.storage;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// версии объектов для ETag: каждое изменение получает следующее значение общих часов
+// часы начинаются с текущего времени в микросекундах, поэтому после перезапуска версии не повторяются
+// версию нужно менять после записи в базу, а читать до чтения объекта: тогда устаревший ответ не получит новую версию
+public class EntityVersions {
+    private static final AtomicLong CLOCK = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    // версия объектов, которые не менялись с запуска или с последнего changedAll
+    private volatile long initial = next();
+    // хранятся только изменившиеся объекты
+    private final ConcurrentHashMap<Integer, Long> versions = new ConcurrentHashMap<>();
+    private final AtomicLong collection = new AtomicLong(initial);
+
+    public static long next() {
+        return CLOCK.incrementAndGet();
+    }
+
+    // сильный ETag в кавычках
+    public static String etag(long version) {
+        return "\"" + Long.toString(version, 36) + "\"";
+    }
+
+    // изменился объект, а значит, и все списки, в которые он входит
+    public void changed(int id) {
+        long version = next();
+        versions.merge(id, version, Math::max);
+        collection.accumulateAndGet(version, Math::max);
+    }
+
+    // изменились все объекты сразу, например после перезагрузки справочника, который входит в каждый объект
+    public void changedAll() {
+        long version = next();
+        initial = version;
+        collection.accumulateAndGet(version, Math::max);
+    }
+
+    public long getVersion(int id) {
+        long base = initial;
+        return Math.max(versions.getOrDefault(id, base), base);
+    }
+
+    public long getVersion() {
+        return collection.get();
+    }
+}
@@ -2,13 +2,13 @@ package ru.yandex.practicum.filmorate.storage;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.support.rowset.SqlRowSet;
 import org.springframework.stereotype.Component;
 import ru.yandex.practicum.filmorate.exceptions.NotFoundException;
 import ru.yandex.practicum.filmorate.model.Genre;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 
@@ -16,15 +16,42 @@ import java.util.Optional;
 @Component
 public class GenreStorage {
     private final JdbcTemplate jdbcTemplate;
+    // жанры меняются крайне редко, поэтому держим их в памяти: индекс массива - id жанра
+    private volatile Genre[] genres = new Genre[0];
+    // версия справочника для ETag, новая после каждой загрузки
+    private volatile long version;
 
     public GenreStorage(JdbcTemplate jdbcTemplate) {
         this.jdbcTemplate = jdbcTemplate;
+        refresh();
+    }
+
+    public void refresh() {
+        List<Genre> loaded = jdbcTemplate.query("SELECT * FROM genres ORDER BY id", (rs, rowNum) -> makeGenre(rs));
+        Genre[] byId = new Genre[loaded.stream().mapToInt(Genre::getId).max().orElse(0) + 1];
+
+        for (Genre genre : loaded) {
+            byId[genre.getId()] = genre;
+        }
+        genres = byId;
+        version = EntityVersions.next();
+
+        log.info("Загружено жанров: {}", loaded.size());
+    }
+
+    public long getVersion() {
+        return version;
     }
 
     public List<Genre> getGenres() {
-        String sql = "SELECT * FROM genres";
+        List<Genre> result = new ArrayList<>();
 
-        return jdbcTemplate.query(sql, (rs, rowNum) -> makeGenre(rs));
+        for (Genre genre : genres) {
+            if (genre != null) {
+                result.add(genre);
+            }
+        }
+        return result;
     }
 
     private Genre makeGenre(ResultSet rs) throws SQLException {
@@ -32,16 +59,22 @@ public class GenreStorage {
                 rs.getString("name"));
     }
 
-    public Optional<Genre> getGenreById(Integer genreId) {
-        SqlRowSet rows = jdbcTemplate.queryForRowSet("SELECT * FROM genres WHERE id = ?", genreId);
+    public Optional<Genre> findGenre(Integer genreId) {
+        Genre[] snapshot = genres;
+
+        if (genreId == null || genreId < 0 || genreId >= snapshot.length) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(snapshot[genreId]);
+    }
 
-        if (rows.next()) {
-            Genre genre = new Genre(rows.getInt("id"),
-                    rows.getString("name"));
+    public Optional<Genre> getGenreById(Integer genreId) {
+        Optional<Genre> genre = findGenre(genreId);
 
-            log.info("Найден жанр: {}", genre);
+        if (genre.isPresent()) {
+            log.info("Найден жанр: {}", genre.get());
 
-            return Optional.of(genre);
+            return genre;
         } else {
             throw new NotFoundException("Жанр с идентификатором не найден: " + genreId);
         }
@@ -2,13 +2,13 @@ package ru.yandex.practicum.filmorate.storage;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.support.rowset.SqlRowSet;
 import org.springframework.stereotype.Component;
 import ru.yandex.practicum.filmorate.exceptions.NotFoundException;
 import ru.yandex.practicum.filmorate.model.Mpa;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 
@@ -16,15 +16,42 @@ import java.util.Optional;
 @Component
 public class MpaStorage {
     private final JdbcTemplate jdbcTemplate;
+    // рейтинги меняются крайне редко, поэтому держим их в памяти: индекс массива - id рейтинга
+    private volatile Mpa[] ratings = new Mpa[0];
+    // версия справочника для ETag, новая после каждой загрузки
+    private volatile long version;
 
     public MpaStorage(JdbcTemplate jdbcTemplate) {
         this.jdbcTemplate = jdbcTemplate;
+        refresh();
+    }
+
+    public void refresh() {
+        List<Mpa> loaded = jdbcTemplate.query("SELECT * FROM ratings ORDER BY id", (rs, rowNum) -> makeMpa(rs));
+        Mpa[] byId = new Mpa[loaded.stream().mapToInt(Mpa::getId).max().orElse(0) + 1];
+
+        for (Mpa mpa : loaded) {
+            byId[mpa.getId()] = mpa;
+        }
+        ratings = byId;
+        version = EntityVersions.next();
+
+        log.info("Загружено рейтингов: {}", loaded.size());
+    }
+
+    public long getVersion() {
+        return version;
     }
 
     public List<Mpa> getMpa() {
-        String sql = "SELECT * FROM ratings";
+        List<Mpa> result = new ArrayList<>();
 
-        return jdbcTemplate.query(sql, (rs, rowNum) -> makeMpa(rs));
+        for (Mpa mpa : ratings) {
+            if (mpa != null) {
+                result.add(mpa);
+            }
+        }
+        return result;
     }
 
     private Mpa makeMpa(ResultSet rs) throws SQLException {
@@ -32,19 +59,24 @@ public class MpaStorage {
                 rs.getString("name"));
     }
 
-    public Optional<Mpa> getMpaById(Integer id) {
-        SqlRowSet rows = jdbcTemplate.queryForRowSet("SELECT * FROM ratings WHERE id = ?", id);
+    public Optional<Mpa> findMpa(Integer id) {
+        Mpa[] snapshot = ratings;
 
-        if (rows.next()) {
-            Mpa mpa = new Mpa(rows.getInt("id"),
-                    rows.getString("name"));
+        if (id == null || id < 0 || id >= snapshot.length) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(snapshot[id]);
+    }
 
-            log.info("Найден рейтинг: {}", mpa);
+    public Optional<Mpa> getMpaById(Integer id) {
+        Optional<Mpa> mpa = findMpa(id);
+
+        if (mpa.isPresent()) {
+            log.info("Найден рейтинг: {}", mpa.get());
 
-            return Optional.of(mpa);
+            return mpa;
         } else {
             throw new NotFoundException("Рейтин с идентификатором не найден: " + id);
         }
     }
 }
-
@@ -0,0 +1,384 @@
+package ru.yandex.practicum.filmorate.storage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntToLongFunction;
+
+// индекс для подсказок по началу строки: отсортированный массив нормализованных ключей и небольшая дельта
+// с недавними изменениями; поиск не блокируется, записи выполняются по очереди
+public class PrefixIndex {
+    // дельта сливается с основным массивом, когда изменений становится больше этой доли от него
+    private static final int MERGE_RATIO = 64;
+    private static final int MIN_MERGE_SIZE = 1024;
+    // после ключа в дельте идет id, чтобы одинаковые строки разных объектов не затирали друг друга
+    private static final char ID_SEPARATOR = '\u0000';
+    private static final char MAX_CHAR = '\uffff';
+    // как часто пересчитывается популярность записей основного массива
+    private static final long RANKING_TTL_NANOS = 1_000_000_000L;
+
+    // популярность объекта по id, по ней сортируются подсказки
+    private final IntToLongFunction popularity;
+    // основной массив: ключи по возрастанию и id на тех же позициях
+    private volatile Snapshot base;
+    // ключи, добавленные после последнего слияния
+    private final ConcurrentSkipListMap<String, Integer> delta = new ConcurrentSkipListMap<>();
+    // текущий ключ каждого объекта; записи массива и дельты с другим ключом устарели и пропускаются
+    private final ConcurrentHashMap<Integer, String> current = new ConcurrentHashMap<>();
+    private final AtomicBoolean rankingRefresh = new AtomicBoolean();
+    // устаревшие записи основного массива с последнего слияния
+    private int staleCount;
+
+    public PrefixIndex(IntToLongFunction popularity) {
+        this.popularity = popularity;
+        publish(List.of());
+    }
+
+    public synchronized void put(int id, String text) {
+        String key = normalize(text);
+        String oldKey = current.put(id, key);
+        if (key.equals(oldKey)) {
+            return;
+        }
+
+        if (oldKey != null) {
+            staleCount++;
+        }
+        delta.put(key + ID_SEPARATOR + id, id);
+        mergeIfNeeded();
+    }
+
+    public synchronized void remove(int id) {
+        if (current.remove(id) != null) {
+            staleCount++;
+            mergeIfNeeded();
+        }
+    }
+
+    // полная перестройка по всем объектам, например при старте
+    public synchronized void rebuild(Map<Integer, String> texts) {
+        current.clear();
+        texts.forEach((id, text) -> current.put(id, normalize(text)));
+
+        List<Entry> entries = new ArrayList<>(current.size());
+        current.forEach((id, key) -> entries.add(new Entry(key, id)));
+        entries.sort(Entry.ORDER);
+        publish(entries);
+    }
+
+    // id объектов, ключ которых начинается с prefix: сначала популярные, затем по алфавиту
+    public int[] search(String prefix, int limit) {
+        String from = normalize(prefix);
+        if (from.isEmpty() || limit <= 0) {
+            return new int[0];
+        }
+        String to = from + MAX_CHAR;
+
+        Snapshot snapshot = base;
+        Ranking ranking = snapshot.ranking;
+        refreshIfStale(snapshot, ranking);
+        TopK<Candidate> top = new TopK<>(limit, Candidate.ORDER);
+
+        // из основного массива достаточно limit лучших актуальных записей диапазона
+        int start = snapshot.lowerBound(from);
+        int end = snapshot.lowerBound(to);
+        ranking.forEachBest(start, end, limit, position -> {
+            int id = snapshot.ids[position];
+            if (!snapshot.keys[position].equals(current.get(id))) {
+                return false;
+            }
+            top.offer(new Candidate(id, snapshot.keys[position], ranking.scores[position]));
+            return true;
+        });
+
+        for (Map.Entry<String, Integer> entry : delta.subMap(from, to).entrySet()) {
+            int id = entry.getValue();
+            String key = keyOf(entry.getKey());
+            // объект мог попасть в дельту после того, как уже был в основном массиве с тем же ключом
+            if (key.equals(current.get(id)) && !snapshot.contains(key, id)) {
+                top.offer(new Candidate(id, key, popularity.applyAsLong(id)));
+            }
+        }
+
+        return top.result().stream().mapToInt(candidate -> candidate.id).toArray();
+    }
+
+    public int size() {
+        return current.size();
+    }
+
+    // приблизительный объем памяти: строки ключей, массивы и записи карт
+    public long estimatedBytes() {
+        long bytes = 0;
+        for (String key : current.values()) {
+            // строка с массивом символов, запись в карте текущих ключей, позиция в массивах и в дереве отрезков
+            bytes += 40 + 2L * key.length() + 64 + 4 + 4 + 8 + 8;
+        }
+        return bytes + delta.size() * 96L;
+    }
+
+    // нижний регистр, ё как е, пробелы по краям убираются, внутри схлопываются в один
+    public static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+
+        String lower = text.toLowerCase(Locale.ROOT);
+        StringBuilder key = new StringBuilder(lower.length());
+        boolean space = false;
+        for (int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = key.length() > 0;
+                continue;
+            }
+            if (space) {
+                key.append(' ');
+                space = false;
+            }
+            key.append(c == 'ё' ? 'е' : c);
+        }
+        return key.toString();
+    }
+
+    private void mergeIfNeeded() {
+        if (delta.size() + staleCount > Math.max(MIN_MERGE_SIZE, base.keys.length / MERGE_RATIO)) {
+            merge();
+        }
+    }
+
+    // слияние отсортированного массива и отсортированной дельты за один проход, устаревшие записи выбрасываются
+    private void merge() {
+        Snapshot snapshot = base;
+        List<Entry> changes = new ArrayList<>(delta.size());
+        delta.forEach((deltaKey, id) -> {
+            String key = keyOf(deltaKey);
+            if (key.equals(current.get(id))) {
+                changes.add(new Entry(key, id));
+            }
+        });
+        changes.sort(Entry.ORDER);
+
+        List<Entry> entries = new ArrayList<>(current.size());
+        int i = 0;
+        int j = 0;
+        while (i < snapshot.keys.length || j < changes.size()) {
+            if (i < snapshot.keys.length && !snapshot.keys[i].equals(current.get(snapshot.ids[i]))) {
+                i++;
+                continue;
+            }
+
+            int order = i == snapshot.keys.length ? 1
+                    : j == changes.size() ? -1
+                    : Entry.compare(snapshot.keys[i], snapshot.ids[i], changes.get(j).key, changes.get(j).id);
+            if (order < 0) {
+                entries.add(new Entry(snapshot.keys[i], snapshot.ids[i]));
+                i++;
+            } else {
+                entries.add(changes.get(j));
+                // та же запись есть в обоих источниках
+                if (order == 0) {
+                    i++;
+                }
+                j++;
+            }
+        }
+        publish(entries);
+    }
+
+    private void publish(List<Entry> entries) {
+        String[] keys = new String[entries.size()];
+        int[] ids = new int[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            keys[i] = entries.get(i).key;
+            ids[i] = entries.get(i).id;
+        }
+
+        Snapshot snapshot = new Snapshot(keys, ids);
+        snapshot.ranking = new Ranking(snapshot, popularity);
+        base = snapshot;
+        delta.clear();
+        staleCount = 0;
+    }
+
+    // популярность в основном массиве отстает не больше чем на RANKING_TTL_NANOS и пересчитывается в фоне
+    private void refreshIfStale(Snapshot snapshot, Ranking ranking) {
+        if (System.nanoTime() - ranking.computedAt > RANKING_TTL_NANOS && rankingRefresh.compareAndSet(false, true)) {
+            ForkJoinPool.commonPool().execute(() -> {
+                try {
+                    snapshot.ranking = new Ranking(snapshot, popularity);
+                } finally {
+                    rankingRefresh.set(false);
+                }
+            });
+        }
+    }
+
+    private static String keyOf(String deltaKey) {
+        return deltaKey.substring(0, deltaKey.lastIndexOf(ID_SEPARATOR));
+    }
+
+    private static class Entry {
+        private static final Comparator<Entry> ORDER = (e1, e2) -> compare(e1.key, e1.id, e2.key, e2.id);
+
+        private final String key;
+        private final int id;
+
+        private Entry(String key, int id) {
+            this.key = key;
+            this.id = id;
+        }
+
+        private static int compare(String key, int id, String otherKey, int otherId) {
+            int byKey = key.compareTo(otherKey);
+            return byKey != 0 ? byKey : Integer.compare(id, otherId);
+        }
+    }
+
+    private static class Snapshot {
+        private final String[] keys;
+        private final int[] ids;
+        private volatile Ranking ranking;
+
+        private Snapshot(String[] keys, int[] ids) {
+            this.keys = keys;
+            this.ids = ids;
+        }
+
+        // первая позиция с ключом не меньше key
+        private int lowerBound(String key) {
+            int low = 0;
+            int high = keys.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (keys[middle].compareTo(key) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private boolean contains(String key, int id) {
+            for (int i = lowerBound(key); i < keys.length && keys[i].equals(key); i++) {
+                if (ids[i] == id) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // популярность записей основного массива и дерево отрезков с позицией самой популярной записи на отрезке
+    private static class Ranking {
+        private final long computedAt = System.nanoTime();
+        private final long[] scores;
+        private final int leaves;
+        private final int[] tree;
+
+        private Ranking(Snapshot snapshot, IntToLongFunction popularity) {
+            int size = snapshot.ids.length;
+            scores = new long[size];
+            for (int i = 0; i < size; i++) {
+                scores[i] = popularity.applyAsLong(snapshot.ids[i]);
+            }
+
+            int leaves = 1;
+            while (leaves < size) {
+                leaves *= 2;
+            }
+            this.leaves = leaves;
+            tree = new int[2 * leaves];
+            for (int i = 0; i < leaves; i++) {
+                tree[leaves + i] = i < size ? i : -1;
+            }
+            for (int node = leaves - 1; node > 0; node--) {
+                tree[node] = better(tree[2 * node], tree[2 * node + 1]);
+            }
+        }
+
+        // передает позиции [start, end) по убыванию популярности, пока consumer не примет count из них
+        private void forEachBest(int start, int end, int count, PositionConsumer consumer) {
+            if (start >= end) {
+                return;
+            }
+
+            // отрезки {начало, конец, лучшая позиция}, упорядоченные по лучшей записи в них
+            PriorityQueue<int[]> ranges = new PriorityQueue<>((r1, r2) -> r1[2] == better(r1[2], r2[2]) ? -1 : 1);
+            ranges.add(new int[]{start, end, best(start, end)});
+            int accepted = 0;
+
+            while (!ranges.isEmpty() && accepted < count) {
+                int[] range = ranges.poll();
+                int position = range[2];
+                if (consumer.accept(position)) {
+                    accepted++;
+                }
+                if (range[0] < position) {
+                    ranges.add(new int[]{range[0], position, best(range[0], position)});
+                }
+                if (position + 1 < range[1]) {
+                    ranges.add(new int[]{position + 1, range[1], best(position + 1, range[1])});
+                }
+            }
+        }
+
+        // позиция самой популярной записи на [start, end)
+        private int best(int start, int end) {
+            int result = -1;
+            for (int low = start + leaves, high = end + leaves; low < high; low >>= 1, high >>= 1) {
+                if ((low & 1) == 1) {
+                    result = better(result, tree[low++]);
+                }
+                if ((high & 1) == 1) {
+                    result = better(result, tree[--high]);
+                }
+            }
+            return result;
+        }
+
+        // при равной популярности лучше меньшая позиция, то есть меньший ключ и меньший id
+        private int better(int position, int otherPosition) {
+            if (position < 0) {
+                return otherPosition;
+            }
+            if (otherPosition < 0) {
+                return position;
+            }
+            if (scores[position] != scores[otherPosition]) {
+                return scores[position] > scores[otherPosition] ? position : otherPosition;
+            }
+            return Math.min(position, otherPosition);
+        }
+    }
+
+    private interface PositionConsumer {
+        // true, если позиция попала в выдачу
+        boolean accept(int position);
+    }
+
+    // кандидат в выдачу: сначала популярные, затем по алфавиту
+    private static class Candidate {
+        private static final Comparator<Candidate> ORDER = Comparator.<Candidate>comparingLong(c -> c.score)
+                .reversed()
+                .thenComparing((c1, c2) -> Entry.compare(c1.key, c1.id, c2.key, c2.id));
+
+        private final int id;
+        private final String key;
+        private final long score;
+
+        private Candidate(int id, String key, long score) {
+            this.id = id;
+            this.key = key;
+            this.score = score;
+        }
+    }
+}
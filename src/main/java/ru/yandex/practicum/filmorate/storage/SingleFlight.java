@@ -0,0 +1,84 @@
+package ru.yandex.practicum.filmorate.storage;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+import java.util.function.UnaryOperator;
+
+// объединяет одновременные загрузки одного id: пока идет чтение из базы, остальные запросы ждут его результат
+// каждому участнику, включая загрузившего, достается своя копия объекта, ошибка загрузки передается всем участникам
+public class SingleFlight<V> {
+    private final boolean enabled;
+    private final UnaryOperator<V> copy;
+    private final ConcurrentHashMap<Integer, CompletableFuture<Optional<V>>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    public SingleFlight(boolean enabled, UnaryOperator<V> copy) {
+        this.enabled = enabled;
+        this.copy = copy;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Optional<V> load(int id, IntFunction<Optional<V>> loader) {
+        if (!enabled) {
+            return loader.apply(id);
+        }
+
+        CompletableFuture<Optional<V>> flight = new CompletableFuture<>();
+        CompletableFuture<Optional<V>> current = inFlight.putIfAbsent(id, flight);
+        if (current != null) {
+            coalesced.increment();
+            return await(current).map(copy);
+        }
+
+        loads.increment();
+        try {
+            Optional<V> loaded = loader.apply(id);
+            flight.complete(loaded);
+            // с прочитанного объекта ожидающие снимают копии, пока вызывающий уже может менять свой результат
+            return loaded.map(copy);
+        } catch (RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(id, flight);
+        }
+    }
+
+    // вызывается после записи в базу: следующие запросы не присоединятся к чтению, начатому до записи
+    public void forget(int id) {
+        inFlight.remove(id);
+    }
+
+    // сколько раз запрос дошел до базы
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    // сколько запросов дождались чужой загрузки вместо своей
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    private static <T> T await(CompletableFuture<T> flight) {
+        try {
+            return flight.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package ru.yandex.practicum.filmorate.storage;
+
+import java.util.Arrays;
+
+// операции над отсортированными массивами id для индексов в памяти
+// массивы не изменяются после публикации, запись подменяет их копией, поэтому чтение не блокируется
+// отсутствующий или опустевший массив - null: тогда ConcurrentHashMap.compute сам удаляет запись
+public final class SortedIds {
+    private SortedIds() {
+    }
+
+    // копия массива с добавленным id; если id уже есть, возвращается тот же массив
+    public static int[] insert(int[] ids, int id) {
+        if (ids == null) {
+            return new int[]{id};
+        }
+
+        int index = Arrays.binarySearch(ids, id);
+        if (index >= 0) {
+            return ids;
+        }
+
+        int position = -index - 1;
+        int[] result = new int[ids.length + 1];
+        System.arraycopy(ids, 0, result, 0, position);
+        result[position] = id;
+        System.arraycopy(ids, position, result, position + 1, ids.length - position);
+        return result;
+    }
+
+    // копия массива без id или null, если массив опустел; если id нет, возвращается тот же массив
+    public static int[] delete(int[] ids, int id) {
+        if (ids == null) {
+            return null;
+        }
+
+        int index = Arrays.binarySearch(ids, id);
+        if (index < 0) {
+            return ids;
+        }
+        if (ids.length == 1) {
+            return null;
+        }
+
+        int[] result = new int[ids.length - 1];
+        System.arraycopy(ids, 0, result, 0, index);
+        System.arraycopy(ids, index + 1, result, index, ids.length - index - 1);
+        return result;
+    }
+
+    // слияние двух отсортированных массивов за O(n + m)
+    public static int[] intersect(int[] ids, int[] otherIds) {
+        int[] result = new int[Math.min(ids.length, otherIds.length)];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+
+        while (i < ids.length && j < otherIds.length) {
+            if (ids[i] < otherIds[j]) {
+                i++;
+            } else if (ids[i] > otherIds[j]) {
+                j++;
+            } else {
+                result[size++] = ids[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    // позиция первого id больше after, чтобы читать страницу
+    public static int indexAfter(int[] ids, int after) {
+        int index = Arrays.binarySearch(ids, after);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+}
@@ -0,0 +1,41 @@
+package ru.yandex.practicum.filmorate.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// count лучших элементов в порядке order без сортировки всех кандидатов: O(n log count)
+// в куче лежит обратный порядок, поэтому на вершине худший из отобранных и его легко вытеснить
+public class TopK<T> {
+    private final int count;
+    private final Comparator<? super T> order;
+    private final PriorityQueue<T> heap;
+
+    // order ставит лучшие элементы первыми и не должен считать разные элементы равными
+    public TopK(int count, Comparator<? super T> order) {
+        this.count = Math.max(count, 0);
+        this.order = order;
+        this.heap = new PriorityQueue<>(Math.max(this.count, 1), order.reversed());
+    }
+
+    public void offer(T item) {
+        if (heap.size() < count) {
+            heap.offer(item);
+        } else if (count > 0 && order.compare(item, heap.peek()) < 0) {
+            heap.poll();
+            heap.offer(item);
+        }
+    }
+
+    // отобранные элементы, лучшие первыми; куча после этого пуста
+    public List<T> result() {
+        List<T> result = new ArrayList<>(heap.size());
+        while (!heap.isEmpty()) {
+            result.add(heap.poll());
+        }
+        Collections.reverse(result);
+        return result;
+    }
+}
@@ -0,0 +1,76 @@
+package ru.yandex.practicum.filmorate.storage.film;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntUnaryOperator;
+
+// рейтинги популярности по жанрам, годам выхода и их сочетаниям, каждый обновляется за O(log n) на лайк
+public class FilmCharts {
+    // рейтинг, в котором жанр или год не задан
+    private static final int ANY = 0;
+
+    // текущее число лайков фильма, обычно из общего рейтинга
+    private final IntUnaryOperator likes;
+    // ключ - жанр в старших 32 битах и год в младших
+    private final ConcurrentHashMap<Long, FilmPopularity> charts = new ConcurrentHashMap<>();
+    // рейтинги, в которых участвует фильм; compute по фильму упорядочивает его изменения
+    private final ConcurrentHashMap<Integer, long[]> filmCharts = new ConcurrentHashMap<>();
+
+    public FilmCharts(IntUnaryOperator likes) {
+        this.likes = likes;
+    }
+
+    // добавляет фильм или переносит его после смены жанров или даты выхода
+    public void putFilm(int filmId, int[] genreIds, int year) {
+        long[] keys = new long[2 * genreIds.length + 1];
+        keys[0] = key(ANY, year);
+        for (int i = 0; i < genreIds.length; i++) {
+            keys[2 * i + 1] = key(genreIds[i], ANY);
+            keys[2 * i + 2] = key(genreIds[i], year);
+        }
+
+        filmCharts.compute(filmId, (id, oldKeys) -> {
+            if (oldKeys != null) {
+                setLikes(filmId, oldKeys, 0);
+            }
+            setLikes(filmId, keys, likes.applyAsInt(filmId));
+            return keys;
+        });
+    }
+
+    public void removeFilm(int filmId) {
+        filmCharts.computeIfPresent(filmId, (id, keys) -> {
+            setLikes(filmId, keys, 0);
+            return null;
+        });
+    }
+
+    // переносит в рейтинги фильма его текущее число лайков
+    public void likesChanged(int filmId) {
+        filmCharts.computeIfPresent(filmId, (id, keys) -> {
+            setLikes(filmId, keys, likes.applyAsInt(filmId));
+            return keys;
+        });
+    }
+
+    public void clear() {
+        charts.clear();
+        filmCharts.clear();
+    }
+
+    // genreId или year равен null - без этого условия; хотя бы одно из них должно быть задано
+    public List<Integer> getTop(Integer genreId, Integer year, int count) {
+        FilmPopularity chart = charts.get(key(genreId == null ? ANY : genreId, year == null ? ANY : year));
+        return chart == null ? List.of() : chart.getTop(count);
+    }
+
+    private void setLikes(int filmId, long[] keys, int count) {
+        for (long key : keys) {
+            charts.computeIfAbsent(key, k -> new FilmPopularity()).setLikes(filmId, count);
+        }
+    }
+
+    private static long key(int genreId, int year) {
+        return ((long) genreId << 32) | (year & 0xFFFFFFFFL);
+    }
+}
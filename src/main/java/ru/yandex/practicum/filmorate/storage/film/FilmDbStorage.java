@@ -2,72 +2,348 @@ package ru.yandex.practicum.filmorate.storage.film;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.support.rowset.SqlRowSet;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
 import ru.yandex.practicum.filmorate.exceptions.NotFoundException;
 import ru.yandex.practicum.filmorate.exceptions.ValidationException;
 import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.FilmFilter;
 import ru.yandex.practicum.filmorate.model.Genre;
 import ru.yandex.practicum.filmorate.model.Mpa;
-
+import ru.yandex.practicum.filmorate.storage.EntityCache;
+import ru.yandex.practicum.filmorate.storage.EntityVersions;
+import ru.yandex.practicum.filmorate.storage.GenreStorage;
+import ru.yandex.practicum.filmorate.storage.MpaStorage;
+import ru.yandex.practicum.filmorate.storage.PrefixIndex;
+import ru.yandex.practicum.filmorate.storage.SingleFlight;
+
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Slf4j
 @Component
 @Qualifier("Db")
 public class FilmDbStorage implements FilmStorage {
-    private final JdbcTemplate jdbcTemplate;
+    private static final String FILM_SQL = "SELECT f.*, fr.rating_id, fg.genre_id\n" +
+            "FROM films f\n" +
+            "LEFT JOIN film_rating fr ON f.id = fr.film_id\n" +
+            "LEFT JOIN film_genre fg ON f.id = fg.film_id\n";
+    private static final int IN_BATCH_SIZE = 500;
+    private static final int EXPORT_FETCH_SIZE = 500;
+    private static final int WRITE_BATCH_SIZE = 500;
 
-    public FilmDbStorage(JdbcTemplate jdbcTemplate) {
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final GenreStorage genreStorage;
+    private final MpaStorage mpaStorage;
+    private final LikeWriteBuffer likeBuffer;
+    private final FilmTrending trending;
+    private final LikeSketch sketch;
+    // точные счетчики лайков; в приблизительном режиме не заполняются, их заменяет скетч
+    private final FilmPopularity popularity = new FilmPopularity();
+    private final LikeMatrix likeMatrix = new LikeMatrix();
+    private final FilmSearchIndex searchIndex = new FilmSearchIndex();
+    private final PrefixIndex titleIndex = new PrefixIndex(this::getLikes);
+    private final FilmCharts charts = new FilmCharts(this::getLikes);
+    private final EntityVersions versions = new EntityVersions();
+    private final EntityCache<Film> cache;
+    private final SingleFlight<Film> loads;
+    // версии справочников, из которых собраны фильмы в кэше
+    private volatile long genreVersion;
+    private volatile long mpaVersion;
+
+    public FilmDbStorage(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate,
+                         GenreStorage genreStorage, MpaStorage mpaStorage, LikeWriteBuffer likeBuffer,
+                         FilmTrending trending, LikeSketch sketch,
+                         @Value("${filmorate.cache.films.max-size:10000}") int cacheSize,
+                         @Value("${filmorate.cache.films.absent-max-size:10000}") int absentCacheSize,
+                         @Value("${filmorate.cache.films.ttl-ms:60000}") long cacheTtlMs,
+                         @Value("${filmorate.coalescing.films.enabled:true}") boolean coalescing) {
         this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.genreStorage = genreStorage;
+        this.mpaStorage = mpaStorage;
+        this.genreVersion = genreStorage.getVersion();
+        this.mpaVersion = mpaStorage.getVersion();
+        this.likeBuffer = likeBuffer;
+        this.trending = trending;
+        this.sketch = sketch;
+        this.cache = new EntityCache<>(cacheSize, absentCacheSize, cacheTtlMs, FilmDbStorage::copy);
+        this.loads = new SingleFlight<>(coalescing, FilmDbStorage::copy);
+        loadLikes();
+        loadCharts();
+        loadSearchIndex();
+        likeBuffer.start(this::onLikeChanged);
+        trending.start();
+    }
+
+    // восстанавливаем рейтинг популярности, свежие лайки и матрицу лайков из таблицы likes при старте, за один проход
+    private void loadLikes() {
+        popularity.clear();
+        trending.clear();
+        LikeMatrix.Loader loader = likeMatrix.loader();
+        Map<Integer, Integer> likeCounts = new HashMap<>();
+
+        jdbcTemplate.query("SELECT user_id, film_id, last_updated FROM likes ORDER BY user_id, film_id",
+                (RowCallbackHandler) rs -> {
+                    int filmId = rs.getInt("film_id");
+                    loader.add(rs.getInt("user_id"), filmId);
+                    likeCounts.merge(filmId, 1, Integer::sum);
+                    Timestamp likedAt = rs.getTimestamp("last_updated");
+                    if (likedAt != null) {
+                        trending.addLike(filmId, likedAt.getTime());
+                    }
+                });
+        loader.finish();
+        if (sketch.isEnabled()) {
+            sketch.clear();
+            likeCounts.forEach(sketch::add);
+        } else {
+            likeCounts.forEach(popularity::setLikes);
+        }
+
+        log.info("Рейтинг популярности фильмов, свежие лайки и матрица лайков загружены.");
+    }
+
+    // рейтинги по жанрам и годам сверяются с таблицами films и film_genre, лайки берутся из общего рейтинга или скетча
+    private void loadCharts() {
+        charts.clear();
+        Map<Integer, Integer> years = new HashMap<>();
+        Map<Integer, List<Integer>> genres = new HashMap<>();
+
+        jdbcTemplate.query("SELECT f.id, f.release_date, fg.genre_id FROM films f\n" +
+                        "LEFT JOIN film_genre fg ON f.id = fg.film_id",
+                (RowCallbackHandler) rs -> {
+                    int filmId = rs.getInt("id");
+                    years.put(filmId, rs.getDate("release_date").toLocalDate().getYear());
+                    int genreId = rs.getInt("genre_id");
+                    if (!rs.wasNull()) {
+                        genres.computeIfAbsent(filmId, id -> new ArrayList<>()).add(genreId);
+                    }
+                });
+        years.forEach((filmId, year) -> charts.putFilm(filmId,
+                genres.getOrDefault(filmId, List.of()).stream().mapToInt(Integer::intValue).toArray(), year));
+
+        log.info("Рейтинги по жанрам и годам загружены.");
+    }
+
+    // поисковый индекс и индекс подсказок строятся заново по названиям и описаниям всех фильмов
+    private void loadSearchIndex() {
+        FilmSearchIndex.Loader loader = searchIndex.loader();
+        Map<Integer, String> titles = new HashMap<>();
+
+        jdbcTemplate.query("SELECT id, name, description FROM films",
+                (RowCallbackHandler) rs -> {
+                    int filmId = rs.getInt("id");
+                    loader.add(filmId, rs.getString("name"), rs.getString("description"));
+                    titles.put(filmId, rs.getString("name"));
+                });
+        loader.finish();
+        titleIndex.rebuild(titles);
+
+        log.info("Поисковый индекс фильмов загружен.");
     }
 
     @Override
     public Film add(Film film) {
-        jdbcTemplate.update(
-                "INSERT INTO films (name, description, release_date, duration) VALUES (?, ?, ?, ?)",
-                film.getName(), film.getDescription(), film.getReleaseDate(), film.getDuration()
-        );
-
-        setFilmId(film);
-        setFilmRating(film);
-        setFilmGenre(film);
+        resolveReferences(film);
+
+        transactionTemplate.executeWithoutResult(status -> {
+            KeyHolder keyHolder = new GeneratedKeyHolder();
+            jdbcTemplate.update(con -> {
+                PreparedStatement ps = con.prepareStatement(
+                        "INSERT INTO films (name, description, release_date, duration) VALUES (?, ?, ?, ?)",
+                        new String[]{"id"});
+                ps.setString(1, film.getName());
+                ps.setString(2, film.getDescription());
+                ps.setObject(3, film.getReleaseDate());
+                ps.setInt(4, film.getDuration());
+                return ps;
+            }, keyHolder);
+
+            film.setId(Objects.requireNonNull(keyHolder.getKey()).intValue());
+            insertReferences(List.of(film));
+        });
+        index(film);
 
         log.debug("Текущий фильм: {}", film);
 
         return film;
     }
 
+    @Override
+    public List<Film> addAll(List<Film> films) {
+        // проверяем все фильмы заранее, чтобы ошибка в конце списка не оставила половину записанной
+        films.forEach(this::resolveReferences);
+
+        for (int from = 0; from < films.size(); from += WRITE_BATCH_SIZE) {
+            List<Film> batch = films.subList(from, Math.min(from + WRITE_BATCH_SIZE, films.size()));
+            transactionTemplate.executeWithoutResult(status -> insertFilms(batch));
+            batch.forEach(this::index);
+        }
+
+        log.debug("Добавлено фильмов: {}", films.size());
+
+        return films;
+    }
+
+    private void index(Film film) {
+        searchIndex.put(film.getId(), film.getName(), film.getDescription());
+        titleIndex.put(film.getId(), film.getName());
+        charts.putFilm(film.getId(), film.getGenres() == null ? new int[0]
+                : film.getGenres().stream().mapToInt(Genre::getId).distinct().toArray(),
+                film.getReleaseDate().getYear());
+        loads.forget(film.getId());
+        cache.invalidate(film.getId());
+        versions.changed(film.getId());
+    }
+
+    private void insertFilms(List<Film> films) {
+        List<Integer> ids = jdbcTemplate.execute((ConnectionCallback<List<Integer>>) con -> {
+            try (PreparedStatement ps = con.prepareStatement(
+                    "INSERT INTO films (name, description, release_date, duration) VALUES (?, ?, ?, ?)",
+                    new String[]{"id"})) {
+                for (Film film : films) {
+                    ps.setString(1, film.getName());
+                    ps.setString(2, film.getDescription());
+                    ps.setObject(3, film.getReleaseDate());
+                    ps.setInt(4, film.getDuration());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+
+                List<Integer> keys = new ArrayList<>(films.size());
+                try (ResultSet rs = ps.getGeneratedKeys()) {
+                    while (rs.next()) {
+                        keys.add(rs.getInt(1));
+                    }
+                }
+                return keys;
+            }
+        });
+
+        for (int i = 0; i < films.size(); i++) {
+            films.get(i).setId(ids.get(i));
+        }
+
+        insertReferences(films);
+    }
+
+    // записывает рейтинги и жанры фильмов двумя пакетными запросами
+    private void insertReferences(List<Film> films) {
+        List<Object[]> ratings = new ArrayList<>();
+        List<Object[]> genres = new ArrayList<>();
+
+        for (Film film : films) {
+            if (film.getMpa() != null) {
+                ratings.add(new Object[]{film.getId(), film.getMpa().getId()});
+            }
+            if (film.getGenres() != null) {
+                for (Genre genre : film.getGenres()) {
+                    genres.add(new Object[]{film.getId(), genre.getId()});
+                }
+            }
+        }
+
+        if (!ratings.isEmpty()) {
+            jdbcTemplate.batchUpdate("INSERT INTO film_rating (film_id, rating_id) VALUES (?, ?)", ratings);
+        }
+        if (!genres.isEmpty()) {
+            jdbcTemplate.batchUpdate("INSERT INTO film_genre (film_id, genre_id) VALUES (?, ?)", genres);
+        }
+    }
+
+    // заменяет рейтинг и жанры фильма экземплярами из справочников, проверяя их существование
+    private void resolveReferences(Film film) {
+        if (film.getMpa() != null && film.getMpa().getId() != null) {
+            Integer mpaId = film.getMpa().getId();
+            film.setMpa(mpaStorage.findMpa(mpaId)
+                    .orElseThrow(() -> new ValidationException("Не найден name рейтинга для id - " + mpaId)));
+        } else {
+            film.setMpa(null);
+        }
+
+        if (film.getGenres() != null) {
+            List<Genre> genres = new ArrayList<>();
+            Set<Integer> genreIds = new HashSet<>();
+
+            for (Genre genre : film.getGenres()) {
+                int genreId = genre.getId();
+
+                if (!genreIds.add(genreId)) {
+                    throw new ValidationException("Жанр с id уже был добавлен: " + genreId);
+                }
+                genres.add(genreStorage.findGenre(genreId)
+                        .orElseThrow(() -> new ValidationException("Не найден name жанра для id - " + genreId)));
+            }
+            film.setGenres(genres);
+        }
+    }
+
     @Override
     public void remove(Film film) {
-        if (getFilm(film.getId()).isPresent()) {
-            jdbcTemplate.update(
-                    "DELETE FROM films WHERE id = ?", film.getId()
-            );
+        transactionTemplate.executeWithoutResult(status -> {
+            jdbcTemplate.update("DELETE FROM film_genre WHERE film_id = ?", film.getId());
+            jdbcTemplate.update("DELETE FROM film_rating WHERE film_id = ?", film.getId());
+
+            // исключение откатывает транзакцию вместе с удалением жанров и рейтинга
+            if (jdbcTemplate.update("DELETE FROM films WHERE id = ?", film.getId()) == 0) {
+                throw new NotFoundException("Такого фильма не существует: " + film);
+            }
+        });
+
+        if (sketch.isEnabled()) {
+            // точное число лайков фильма есть в матрице лайков
+            sketch.removeFilm(film.getId(), likeMatrix.getLikers(film.getId()).length);
         } else {
-            throw new NotFoundException("Такого фильма не существует: " + film);
+            popularity.remove(film.getId());
         }
+        likeMatrix.removeFilm(film.getId());
+        searchIndex.remove(film.getId());
+        titleIndex.remove(film.getId());
+        charts.removeFilm(film.getId());
+        trending.removeFilm(film.getId());
+        loads.forget(film.getId());
+        cache.invalidate(film.getId());
+        versions.changed(film.getId());
     }
 
     @Override
     public Film update(Film film) {
-        if (getFilm(film.getId()).isPresent()) {
-            jdbcTemplate.update(
+        resolveReferences(film);
+
+        transactionTemplate.executeWithoutResult(status -> {
+            int updated = jdbcTemplate.update(
                     "UPDATE films SET name = ?, description = ?, release_date = ?, duration = ? WHERE id = ?",
                     film.getName(), film.getDescription(), film.getReleaseDate(), film.getDuration(), film.getId()
             );
 
-            setFilmRating(film);
-            setFilmGenre(film);
+            if (updated == 0) {
+                throw new NotFoundException("Такого фильма не существует: " + film);
+            }
 
-        } else {
-            throw new NotFoundException("Такого фильма не существует: " + film);
-        }
+            // пустой рейтинг оставляет прежний, жанры всегда заменяются переданными
+            if (film.getMpa() != null) {
+                jdbcTemplate.update("DELETE FROM film_rating WHERE film_id = ?", film.getId());
+            }
+            jdbcTemplate.update("DELETE FROM film_genre WHERE film_id = ?", film.getId());
+            insertReferences(List.of(film));
+        });
+        index(film);
 
         log.debug("Текущий фильм: {}", film);
 
@@ -76,218 +352,289 @@ public class FilmDbStorage implements FilmStorage {
 
     @Override
     public List<Film> getAll() {
-        String sql = "SELECT * FROM films";
-
-        return jdbcTemplate.query(sql, (rs, rowNum) -> makeFilm(rs));
+        return findFilms("ORDER BY f.id, fg.genre_id");
     }
 
     @Override
-    public Optional<Film> getFilm(int id) {
-        SqlRowSet rows = jdbcTemplate.queryForRowSet("SELECT * FROM films WHERE id = ?", id);
-
-        if (rows.next()) {
-            Film film = new Film(rows.getInt("id"),
-                    rows.getString("name"),
-                    rows.getString("description"),
-                    rows.getDate("release_date").toLocalDate(),
-                    rows.getInt("duration"),
-                    findMpa(id),
-                    findGenres(id)
-            );
+    public List<Film> getPage(int after, int limit) {
+        return getPage(FilmFilter.ALL, after, limit);
+    }
 
-            log.info("Найден фильм: {}", film);
+    @Override
+    public List<Film> getPage(FilmFilter filter, int after, int limit) {
+        FilmFilterQuery query = new FilmFilterQuery(filter, after, limit);
 
-            return Optional.of(film);
-        } else {
-            log.info("Фильм с идентификатором {} не найден.", id);
-            return Optional.empty();
-        }
+        return findFilms(getPageCondition(query), query.getArgs());
     }
 
-    private void setFilmId(Film film) {
-        SqlRowSet rows = jdbcTemplate.queryForRowSet("SELECT * FROM films WHERE name = ?", film.getName());
+    // полный текст запроса страницы: id выбираются фильтром, к ним присоединяются рейтинг и жанры
+    public static String getPageSql(FilmFilterQuery query) {
+        return FILM_SQL + getPageCondition(query);
+    }
 
-        if (rows.next()) {
-            int id = rows.getInt("id");
-            film.setId(id);
+    private static String getPageCondition(FilmFilterQuery query) {
+        return "WHERE f.id IN (" + query.getSql() + ")\n" +
+                "ORDER BY f.id, fg.genre_id";
+    }
 
-            log.info("Найден id - {} для фильма {}", id, film);
+    @Override
+    public void exportAll(Consumer<Film> consumer) {
+        PreparedStatementCreator statement = con -> {
+            PreparedStatement ps = con.prepareStatement(FILM_SQL + "ORDER BY f.id, fg.genre_id");
+            ps.setFetchSize(EXPORT_FETCH_SIZE);
+            return ps;
+        };
+
+        // строки одного фильма идут подряд, поэтому в памяти держим только текущий фильм
+        try (Stream<Film> rows = jdbcTemplate.queryForStream(statement, (rs, rowNum) -> makeFilmRow(rs))) {
+            Film current = null;
+
+            for (Iterator<Film> iterator = rows.iterator(); iterator.hasNext(); ) {
+                Film row = iterator.next();
+
+                if (current != null && current.getId() == row.getId()) {
+                    current.getGenres().addAll(row.getGenres());
+                } else {
+                    if (current != null) {
+                        consumer.accept(current);
+                    }
+                    current = row;
+                }
+            }
 
-        } else {
-            log.info("Фильм с названием {} не найден.", film.getName());
+            if (current != null) {
+                consumer.accept(current);
+            }
         }
     }
 
-    private Film makeFilm(ResultSet rs) throws SQLException {
-        return new Film(rs.getInt("id"),
-                rs.getString("name"),
-                rs.getString("description"),
-                rs.getDate("release_date").toLocalDate(),
-                rs.getInt("duration"),
-                findMpa(rs.getInt("id")),
-                findGenres(rs.getInt("id")));
+    @Override
+    public Optional<Film> getFilm(int id) {
+        checkDictionaries();
+        return cache.get(id, filmId -> loads.load(filmId, this::findFilm));
     }
 
-    private void setFilmRating(Film film) {
-        try {
-            Integer mpaId = film.getMpa().getId();
-            Mpa mpaNew;
-            if (mpaId != null) {
-                SqlRowSet rowsRating = jdbcTemplate.queryForRowSet("SELECT * FROM film_rating WHERE film_id = ?",
-                        film.getId());
-
-                if (rowsRating.next()) {
-                    jdbcTemplate.update(
-                            "DELETE FROM film_rating WHERE film_id = ?",
-                            film.getId()
-                    );
-                }
-
-                SqlRowSet rows = jdbcTemplate.queryForRowSet("SELECT * FROM ratings WHERE id = ?", mpaId);
+    @Override
+    public List<Film> getFilms(List<Integer> ids) {
+        return findFilmsByIds(ids);
+    }
 
-                if (rows.next()) {
-                    jdbcTemplate.update(
-                            "INSERT INTO film_rating (film_id, rating_id) VALUES (?, ?)",
-                            film.getId(), mpaId
-                    );
+    public EntityCache.Stats getCacheStats() {
+        return cache.getStats();
+    }
 
-                    mpaNew = new Mpa(mpaId, rows.getString("name"));
-                    film.setMpa(mpaNew);
-                    log.info("Найден name рейтинга - {} для фильма {}", rows.getString("name"), film);
-                } else {
-                    throw new ValidationException("Не найден name рейтинга для id - " + mpaId);
-                }
-            } else {
-                log.info("Рейтинг фильма {} пустой.", film);
-            }
-        } catch (NullPointerException e) {
-            log.info("Рейтинг фильма {} пустой.", film);
-        }
+    // жанры и рейтинг копии общие с кэшем, они не изменяются
+    private static Film copy(Film film) {
+        return new Film(film.getId(), film.getName(), film.getDescription(), film.getReleaseDate(),
+                film.getDuration(), film.getMpa(), film.getGenres() == null ? null : new ArrayList<>(film.getGenres()));
     }
 
-    private Mpa findMpa(int filmId) {
-        Mpa mpa = null;
-        SqlRowSet rows = jdbcTemplate.queryForRowSet("SELECT * FROM film_rating WHERE film_id = ?", filmId);
+    private Optional<Film> findFilm(int id) {
+        List<Film> films = findFilms("WHERE f.id = ? ORDER BY fg.genre_id", id);
 
-        if (rows.next()) {
-            Integer mpaId = rows.getInt("rating_id");
-            log.info("Нашли rating_id рейтинга - {}", mpaId);
+        if (!films.isEmpty()) {
+            Film film = films.get(0);
 
-            SqlRowSet rowsRating = jdbcTemplate.queryForRowSet("SELECT * FROM ratings WHERE id = ?", mpaId);
-            if (rowsRating.next()) {
-                String mpaName = rowsRating.getString("name");
-                log.info("Нашли name рейтинга - {}", mpaName);
+            log.info("Найден фильм: {}", film);
 
-                mpa = new Mpa(mpaId, mpaName);
-            } else {
-                throw new ValidationException("Не найден name рейтинга для id - " + mpaId);
-            }
+            return Optional.of(film);
+        } else {
+            log.debug("Фильм с идентификатором {} не найден.", id);
+            return Optional.empty();
         }
-        return mpa;
     }
 
-    private void setFilmGenre(Film film) {
-        List<Genre> genres = film.getGenres();
-        List<Genre> genresNew = new ArrayList<>();
+    // загружает фильмы вместе с рейтингом и жанрами одним запросом
+    private List<Film> findFilms(String condition, Object... args) {
+        Map<Integer, Film> films = new LinkedHashMap<>();
 
-        try {
-            SqlRowSet rowsGenre = jdbcTemplate.queryForRowSet("SELECT * FROM film_genre WHERE film_id = ?",
-                    film.getId());
-
-            if (rowsGenre.next()) {
-                jdbcTemplate.update(
-                        "DELETE FROM film_genre WHERE film_id = ?",
-                        film.getId()
-                );
+        jdbcTemplate.query(FILM_SQL + condition, (RowCallbackHandler) rs -> {
+            Film film = films.get(rs.getInt("id"));
+            if (film == null) {
+                film = makeFilm(rs);
+                films.put(film.getId(), film);
             }
 
-            for (Genre genre : genres) {
-                Integer genreId = genre.getId();
-
-                SqlRowSet rowsGenreExists = jdbcTemplate.queryForRowSet(
-                        "SELECT * FROM film_genre WHERE film_id = ? AND genre_id = ?", film.getId(), genreId);
+            addGenre(film, rs);
+        }, args);
 
-                if (rowsGenreExists.next()) {
-                    throw new ValidationException("Жанр с id уже был добавлен: " + genreId);
-                }
+        return new ArrayList<>(films.values());
+    }
 
-                jdbcTemplate.update(
-                        "INSERT INTO film_genre (film_id, genre_id) VALUES (?, ?)",
-                        film.getId(), genreId
-                );
+    // загружает фильмы по списку id, сохраняя порядок списка
+    private List<Film> findFilmsByIds(List<Integer> ids) {
+        Map<Integer, Film> films = new HashMap<>();
 
-                SqlRowSet rows = jdbcTemplate.queryForRowSet("SELECT * FROM genres WHERE id = ?", genreId);
+        for (int from = 0; from < ids.size(); from += IN_BATCH_SIZE) {
+            List<Integer> batch = ids.subList(from, Math.min(from + IN_BATCH_SIZE, ids.size()));
+            String placeholders = String.join(", ", Collections.nCopies(batch.size(), "?"));
 
-                if (rows.next()) {
-                    genresNew.add(new Genre(genreId, rows.getString("name")));
-                    log.info("Найден name жанра - {} для фильма {}", rows.getString("name"), film);
-                } else {
-                    throw new ValidationException("Не найден name жанра для id - " + genreId);
-                }
+            for (Film film : findFilms("WHERE f.id IN (" + placeholders + ") ORDER BY f.id, fg.genre_id",
+                    batch.toArray())) {
+                films.put(film.getId(), film);
             }
-        } catch (NullPointerException e) {
-            log.info("Жанр фильма {} пустой.", film);
         }
 
-        if (!genresNew.isEmpty()) {
-            film.setGenres(genresNew);
-        }
+        return ids.stream()
+                .map(films::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
     }
 
-    private List<Genre> findGenres(Integer filmId) {
-        List<Genre> genres = new ArrayList<>();
-        String sql = "SELECT * FROM film_genre WHERE film_id = ?";
+    // фильм с жанром из текущей строки результата
+    private Film makeFilmRow(ResultSet rs) throws SQLException {
+        Film film = makeFilm(rs);
+        addGenre(film, rs);
+        return film;
+    }
 
-        List<Integer> genreIds = jdbcTemplate.query(sql, (rs, rowNum) -> rs.getInt("genre_id"), filmId);
+    private void addGenre(Film film, ResultSet rs) throws SQLException {
+        int genreId = rs.getInt("genre_id");
 
-        for (Integer genreId : genreIds) {
-            SqlRowSet rows = jdbcTemplate.queryForRowSet("SELECT * FROM genres WHERE id = ?", genreId);
+        if (!rs.wasNull()) {
+            film.getGenres().add(genreStorage.findGenre(genreId)
+                    .orElseThrow(() -> new ValidationException("Не найден name жанра для id - " + genreId)));
+        }
+    }
 
-            if (rows.next()) {
-                genres.add(new Genre(genreId, rows.getString("name")));
-                log.info("Найден name жанра - {}", rows.getString("name"));
-            } else {
-                throw new ValidationException("Не найден name жанра для id - " + genreId);
-            }
+    private Film makeFilm(ResultSet rs) throws SQLException {
+        Mpa mpa = null;
+        int mpaId = rs.getInt("rating_id");
+        if (!rs.wasNull()) {
+            mpa = mpaStorage.findMpa(mpaId)
+                    .orElseThrow(() -> new ValidationException("Не найден name рейтинга для id - " + mpaId));
         }
 
-        return genres;
+        return new Film(rs.getInt("id"),
+                rs.getString("name"),
+                rs.getString("description"),
+                rs.getDate("release_date").toLocalDate(),
+                rs.getInt("duration"),
+                mpa,
+                new ArrayList<>());
     }
 
     @Override
     public void addLike(Integer filmId, Integer userId) {
-        SqlRowSet rows = jdbcTemplate.queryForRowSet("SELECT * FROM likes WHERE user_Id = ? AND film_id = ?",
-                userId, filmId);
+        if (likeBuffer.isEnabled()) {
+            likeBuffer.like(filmId, userId);
+            return;
+        }
 
         // ставим лайк фильму только если его не было
-        if (!rows.next()) {
-            jdbcTemplate.update(
-                    "INSERT INTO likes (user_Id, film_id) VALUES (?, ?)", userId, filmId
-            );
+        long likedAt = System.currentTimeMillis();
+        if (LikeWriteBuffer.like(jdbcTemplate, filmId, userId, likedAt)) {
+            onLikeChanged(filmId, userId, true, likedAt);
         }
     }
 
     @Override
     public void removeLike(Integer filmId, Integer userId) {
-        SqlRowSet rows = jdbcTemplate.queryForRowSet("SELECT * FROM likes WHERE user_Id = ? AND film_id = ?",
-                userId, filmId);
+        if (likeBuffer.isEnabled()) {
+            likeBuffer.unlike(filmId, userId);
+            return;
+        }
 
-        // убираем лайк фильму только если он был
-        if (rows.next()) {
-            jdbcTemplate.update(
-                    "DELETE FROM likes WHERE user_Id = ? AND film_id = ?", userId, filmId
-            );
+        // убираем лайк фильму только если он был, заодно узнаем, когда он был поставлен
+        for (long likedAt : LikeWriteBuffer.unlike(jdbcTemplate, filmId, userId)) {
+            onLikeChanged(filmId, userId, false, likedAt);
+        }
+    }
+
+    // обновляет структуры в памяти после того, как лайк записан в базу
+    private void onLikeChanged(int filmId, int userId, boolean liked, long likedAt) {
+        if (liked) {
+            likeMatrix.addLike(filmId, userId);
+            trending.addLike(filmId, likedAt);
+            if (sketch.isEnabled()) {
+                sketch.addLike(filmId);
+            } else {
+                popularity.addLike(filmId);
+            }
+        } else {
+            likeMatrix.removeLike(filmId, userId);
+            trending.removeLike(filmId, likedAt);
+            if (sketch.isEnabled()) {
+                sketch.removeLike(filmId);
+            } else {
+                popularity.removeLike(filmId);
+            }
+        }
+        charts.likesChanged(filmId);
+        versions.changed(filmId);
+    }
+
+    // число лайков для рейтингов по жанрам и годам и для подсказок; в приблизительном режиме - оценка скетча
+    private int getLikes(int filmId) {
+        return sketch.isEnabled() ? sketch.estimate(filmId) : popularity.getLikes(filmId);
+    }
+
+    @Override
+    public long getVersion(int id) {
+        checkDictionaries();
+        return versions.getVersion(id);
+    }
+
+    @Override
+    public long getVersion() {
+        checkDictionaries();
+        return versions.getVersion();
+    }
+
+    // после перезагрузки жанров или рейтингов фильмы в кэше хранят старые объекты, а их ETag - старые версии
+    private void checkDictionaries() {
+        if (genreVersion == genreStorage.getVersion() && mpaVersion == mpaStorage.getVersion()) {
+            return;
+        }
+        synchronized (cache) {
+            long genres = genreStorage.getVersion();
+            long ratings = mpaStorage.getVersion();
+            if (genreVersion != genres || mpaVersion != ratings) {
+                cache.clear();
+                versions.changedAll();
+                genreVersion = genres;
+                mpaVersion = ratings;
+                log.info("Справочники жанров или рейтингов перезагружены, кэш фильмов сброшен.");
+            }
         }
     }
 
     @Override
     public List<Film> getNFilms(Integer count) {
-        String sql = "SELECT film_id, COUNT(*) cnt\n" +
-                "FROM likes l\n" +
-                "GROUP BY film_id\n" +
-                "ORDER BY cnt DESC\n" +
-                "LIMIT ?";
+        // в приблизительном режиме рейтинг строится по оценкам скетча фиксированного объема
+        if (sketch.isEnabled()) {
+            return findFilmsByIds(sketch.getTop(count));
+        }
+        return findFilmsByIds(popularity.getTop(count));
+    }
+
+    @Override
+    public List<Film> getNFilms(Integer count, Integer genreId, Integer year) {
+        if (genreId == null && year == null) {
+            return getNFilms(count);
+        }
+        return findFilmsByIds(charts.getTop(genreId, year, count));
+    }
 
-        return jdbcTemplate.query(sql, (rs, rowNum) -> getFilm(rs.getInt("film_id")).orElse(null), count);
+    @Override
+    public List<Film> getTrending(Duration window, int count) {
+        return findFilmsByIds(trending.getTop(window, count));
+    }
+
+    @Override
+    public List<Film> getRecommendations(int userId, int count) {
+        return findFilmsByIds(Arrays.stream(likeMatrix.recommend(userId, count)).boxed()
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public List<Film> search(String query, int offset, int limit) {
+        return findFilmsByIds(searchIndex.search(query, offset, limit));
+    }
+
+    @Override
+    public List<Film> suggest(String prefix, int limit) {
+        return findFilmsByIds(Arrays.stream(titleIndex.search(prefix, limit)).boxed()
+                .collect(Collectors.toList()));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,76 @@
+package ru.yandex.practicum.filmorate.storage.film;
+
+import ru.yandex.practicum.filmorate.model.FilmFilter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// запрос id фильмов одной страницы со всеми условиями фильтра
+// выборка начинается с самой узкой таблицы: страница читается по составному индексу (условие, film_id) уже
+// в порядке id, поэтому LIMIT останавливает чтение индекса без сортировки
+public class FilmFilterQuery {
+    private final String sql;
+    private final Object[] args;
+
+    public FilmFilterQuery(FilmFilter filter, int after, int limit) {
+        String key;
+        StringBuilder from = new StringBuilder();
+        List<Object> joinArgs = new ArrayList<>();
+        List<String> conditions = new ArrayList<>();
+        List<Object> conditionArgs = new ArrayList<>();
+
+        if (filter.getGenreId() != null) {
+            key = "g.film_id";
+            from.append("film_genre g");
+            conditions.add("g.genre_id = ?");
+            conditionArgs.add(filter.getGenreId());
+
+            if (filter.getMpaId() != null) {
+                from.append("\nJOIN film_rating r ON r.film_id = g.film_id AND r.rating_id = ?");
+                joinArgs.add(filter.getMpaId());
+            }
+        } else if (filter.getMpaId() != null) {
+            key = "r.film_id";
+            from.append("film_rating r");
+            conditions.add("r.rating_id = ?");
+            conditionArgs.add(filter.getMpaId());
+        } else {
+            key = "f.id";
+            from.append("films f");
+        }
+
+        if (filter.getReleasedFrom() != null || filter.getReleasedTo() != null) {
+            if (!key.equals("f.id")) {
+                from.append("\nJOIN films f ON f.id = ").append(key);
+            }
+            if (filter.getReleasedFrom() != null) {
+                conditions.add("f.release_date >= ?");
+                conditionArgs.add(filter.getReleasedFrom());
+            }
+            if (filter.getReleasedTo() != null) {
+                conditions.add("f.release_date <= ?");
+                conditionArgs.add(filter.getReleasedTo());
+            }
+        }
+
+        conditions.add(key + " > ?");
+        conditionArgs.add(after);
+
+        this.sql = "SELECT " + key + " FROM " + from + "\n" +
+                "WHERE " + String.join(" AND ", conditions) + "\n" +
+                "ORDER BY " + key + " LIMIT ?";
+
+        List<Object> args = new ArrayList<>(joinArgs);
+        args.addAll(conditionArgs);
+        args.add(limit);
+        this.args = args.toArray();
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public Object[] getArgs() {
+        return args;
+    }
+}
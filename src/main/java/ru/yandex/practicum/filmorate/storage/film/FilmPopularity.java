@@ -0,0 +1,89 @@
+package ru.yandex.practicum.filmorate.storage.film;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+// рейтинг фильмов по количеству лайков, каждый лайк обновляет его за O(log n)
+public class FilmPopularity {
+    // запись счетчика в ConcurrentHashMap и узел индекса с ключом Long, приблизительно
+    private static final int FILM_BYTES = 150;
+
+    // счетчики лайков, compute блокирует только запись конкретного фильма
+    private final ConcurrentHashMap<Integer, Integer> likes = new ConcurrentHashMap<>();
+    // упорядоченный индекс: старшие 32 бита - инвертированное число лайков, младшие - id фильма
+    private final ConcurrentSkipListSet<Long> ranking = new ConcurrentSkipListSet<>();
+
+    public void addLike(int filmId) {
+        change(filmId, 1);
+    }
+
+    public void removeLike(int filmId) {
+        change(filmId, -1);
+    }
+
+    public void setLikes(int filmId, int count) {
+        likes.compute(filmId, (id, current) -> replace(id, current, count));
+    }
+
+    public void remove(int filmId) {
+        setLikes(filmId, 0);
+    }
+
+    public void clear() {
+        likes.clear();
+        ranking.clear();
+    }
+
+    public int getLikes(int filmId) {
+        return likes.getOrDefault(filmId, 0);
+    }
+
+    // приблизительный объем памяти, он растет с числом фильмов, у которых есть лайки
+    public long estimatedBytes() {
+        return (long) FILM_BYTES * likes.size();
+    }
+
+    public List<Integer> getTop(int count) {
+        List<Integer> top = new ArrayList<>();
+        Set<Integer> seen = new HashSet<>();
+
+        for (Long key : ranking) {
+            if (top.size() >= count) {
+                break;
+            }
+            // во время обновления фильм может ненадолго попасть в индекс дважды
+            int filmId = filmId(key);
+            if (seen.add(filmId)) {
+                top.add(filmId);
+            }
+        }
+        return top;
+    }
+
+    private void change(int filmId, int delta) {
+        likes.compute(filmId, (id, current) -> replace(id, current, (current == null ? 0 : current) + delta));
+    }
+
+    private Integer replace(int filmId, Integer current, int updated) {
+        // сначала добавляем новую позицию, потом убираем старую, чтобы читатели не теряли фильм
+        if (updated > 0) {
+            ranking.add(key(filmId, updated));
+        }
+        if (current != null && current != updated) {
+            ranking.remove(key(filmId, current));
+        }
+        return updated > 0 ? updated : null;
+    }
+
+    private static long key(int filmId, int count) {
+        return ((long) (Integer.MAX_VALUE - count) << 32) | (filmId & 0xFFFFFFFFL);
+    }
+
+    private static int filmId(long key) {
+        return (int) key;
+    }
+}
@@ -0,0 +1,229 @@
+package ru.yandex.practicum.filmorate.storage.film;
+
+import ru.yandex.practicum.filmorate.storage.SortedIds;
+import ru.yandex.practicum.filmorate.storage.TopK;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// полнотекстовый индекс по названию и описанию фильмов: для каждого слова отсортированный массив id фильмов
+public class FilmSearchIndex {
+    private static final int[] EMPTY = new int[0];
+    // совпадение в названии важнее совпадения в описании
+    private static final double NAME_WEIGHT = 3;
+    private static final double DESCRIPTION_WEIGHT = 1;
+    // окончания существительных, прилагательных и глаголов, от длинных к коротким
+    private static final String[] ENDINGS = {
+            "иями", "ями", "ами", "ией", "иям", "ием", "иях", "ого", "его", "ому", "ему", "ыми", "ими", "ешь", "ете",
+            "ать", "ять", "ить", "еть", "ой", "ей", "ий", "ый", "ая", "яя", "ое", "ее", "ые", "ие", "ых", "их", "ую",
+            "юю", "ом", "ем", "ам", "ям", "ах", "ях", "ов", "ев", "ью", "ия", "ии", "ет", "ют", "ут", "ит", "ят", "ть",
+            "а", "я", "о", "е", "ы", "и", "у", "ю", "ь", "й"
+    };
+    // короче основы не бывает, иначе разные слова начнут совпадать
+    private static final int MIN_STEM = 3;
+
+    private final ConcurrentHashMap<String, int[]> nameIndex = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, int[]> descriptionIndex = new ConcurrentHashMap<>();
+    // фильмы, где слово есть в названии или в описании, чтобы не объединять списки при каждом поиске
+    private final ConcurrentHashMap<String, int[]> anyIndex = new ConcurrentHashMap<>();
+    // слова, под которыми фильм сейчас проиндексирован, чтобы при обновлении убрать старые
+    private final ConcurrentHashMap<Integer, FilmTerms> filmTerms = new ConcurrentHashMap<>();
+
+    // добавляет фильм или переиндексирует его после изменения
+    public void put(int filmId, String name, String description) {
+        FilmTerms terms = new FilmTerms(tokenize(name), tokenize(description));
+
+        filmTerms.compute(filmId, (id, old) -> {
+            if (old != null) {
+                unindex(filmId, old);
+            }
+            terms.name.forEach(term -> nameIndex.compute(term, (t, ids) -> SortedIds.insert(ids, filmId)));
+            terms.description.forEach(term ->
+                    descriptionIndex.compute(term, (t, ids) -> SortedIds.insert(ids, filmId)));
+            terms.all().forEach(term -> anyIndex.compute(term, (t, ids) -> SortedIds.insert(ids, filmId)));
+            return terms;
+        });
+    }
+
+    public void remove(int filmId) {
+        filmTerms.computeIfPresent(filmId, (id, old) -> {
+            unindex(filmId, old);
+            return null;
+        });
+    }
+
+    private void unindex(int filmId, FilmTerms terms) {
+        terms.name.forEach(term -> nameIndex.compute(term, (t, ids) -> SortedIds.delete(ids, filmId)));
+        terms.description.forEach(term -> descriptionIndex.compute(term, (t, ids) -> SortedIds.delete(ids, filmId)));
+        terms.all().forEach(term -> anyIndex.compute(term, (t, ids) -> SortedIds.delete(ids, filmId)));
+    }
+
+    // полная перестройка индекса, например при старте
+    public Loader loader() {
+        nameIndex.clear();
+        descriptionIndex.clear();
+        anyIndex.clear();
+        filmTerms.clear();
+        return new Loader();
+    }
+
+    // id фильмов, содержащих все слова запроса, по убыванию релевантности
+    public List<Integer> search(String query, int offset, int limit) {
+        Set<String> terms = tokenize(query);
+        if (terms.isEmpty()) {
+            return List.of();
+        }
+
+        int filmCount = Math.max(filmTerms.size(), 1);
+        List<int[]> termFilms = new ArrayList<>(terms.size());
+
+        for (String term : terms) {
+            int[] films = anyIndex.getOrDefault(term, EMPTY);
+            if (films.length == 0) {
+                return List.of();
+            }
+            termFilms.add(films);
+        }
+
+        // пересечение начинается с самого редкого слова, так результат сужается быстрее всего
+        List<int[]> byFrequency = new ArrayList<>(termFilms);
+        byFrequency.sort(Comparator.comparingInt(films -> films.length));
+        int[] matches = byFrequency.get(0);
+        for (int i = 1; i < byFrequency.size() && matches.length > 0; i++) {
+            matches = SortedIds.intersect(matches, byFrequency.get(i));
+        }
+
+        int wanted = (int) Math.min((long) offset + limit, matches.length);
+        if (offset >= wanted) {
+            return List.of();
+        }
+
+        double[] scores = new double[matches.length];
+        int termIndex = 0;
+        for (String term : terms) {
+            double idf = Math.log(1 + filmCount / (double) termFilms.get(termIndex++).length);
+            addWeight(scores, matches, nameIndex.getOrDefault(term, EMPTY), NAME_WEIGHT * idf);
+            addWeight(scores, matches, descriptionIndex.getOrDefault(term, EMPTY), DESCRIPTION_WEIGHT * idf);
+        }
+
+        int[] ranked = top(scores, wanted);
+        List<Integer> page = new ArrayList<>(ranked.length - offset);
+        for (int i = offset; i < ranked.length; i++) {
+            page.add(matches[ranked[i]]);
+        }
+        return page;
+    }
+
+    // добавляет вес совпавшим фильмам; оба массива отсортированы, поэтому хватает одного прохода
+    private static void addWeight(double[] scores, int[] matches, int[] postings, double weight) {
+        int j = 0;
+        for (int i = 0; i < matches.length && j < postings.length; i++) {
+            while (j < postings.length && postings[j] < matches[i]) {
+                j++;
+            }
+            if (j < postings.length && postings[j] == matches[i]) {
+                scores[i] += weight;
+            }
+        }
+    }
+
+    // позиции count лучших результатов по убыванию релевантности, при равенстве выше меньший id
+    private static int[] top(double[] scores, int count) {
+        // позиции растут вместе с id, поэтому при равной релевантности выше меньшая позиция
+        TopK<Integer> top = new TopK<>(count, Comparator.<Integer>comparingDouble(i -> scores[i]).reversed()
+                .thenComparing(Comparator.naturalOrder()));
+        for (int i = 0; i < scores.length; i++) {
+            top.offer(i);
+        }
+        return top.result().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // слова из букв и цифр любого алфавита в нижнем регистре, ё приравнивается к е,
+    // у русских слов отрезается окончание, чтобы "хакер", "хакера" и "хакеры" совпадали
+    public static Set<String> tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        if (text == null) {
+            return tokens;
+        }
+
+        String normalized = text.toLowerCase(Locale.ROOT).replace('ё', 'е');
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); i++) {
+            boolean wordChar = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(stem(normalized.substring(start, i)));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    // упрощенный стемминг: отрезает самое длинное из частых окончаний, оставляя основу не короче MIN_STEM букв
+    private static String stem(String word) {
+        if (word.length() <= MIN_STEM || Character.UnicodeBlock.of(word.charAt(word.length() - 1))
+                != Character.UnicodeBlock.CYRILLIC) {
+            return word;
+        }
+        for (String ending : ENDINGS) {
+            if (word.endsWith(ending) && word.length() - ending.length() >= MIN_STEM) {
+                return word.substring(0, word.length() - ending.length());
+            }
+        }
+        return word;
+    }
+
+    private static class FilmTerms {
+        private final Set<String> name;
+        private final Set<String> description;
+
+        private FilmTerms(Set<String> name, Set<String> description) {
+            this.name = name;
+            this.description = description;
+        }
+
+        private Set<String> all() {
+            Set<String> all = new HashSet<>(name);
+            all.addAll(description);
+            return all;
+        }
+    }
+
+    public class Loader {
+        private final Map<String, List<Integer>> names = new HashMap<>();
+        private final Map<String, List<Integer>> descriptions = new HashMap<>();
+        private final Map<String, List<Integer>> any = new HashMap<>();
+
+        public void add(int filmId, String name, String description) {
+            FilmTerms terms = new FilmTerms(tokenize(name), tokenize(description));
+
+            terms.name.forEach(term -> names.computeIfAbsent(term, t -> new ArrayList<>()).add(filmId));
+            terms.description.forEach(term -> descriptions.computeIfAbsent(term, t -> new ArrayList<>()).add(filmId));
+            terms.all().forEach(term -> any.computeIfAbsent(term, t -> new ArrayList<>()).add(filmId));
+            filmTerms.put(filmId, terms);
+        }
+
+        // публикует загруженные данные, вызывается после всех фильмов
+        public void finish() {
+            names.forEach((term, ids) -> nameIndex.put(term, toSortedArray(ids)));
+            descriptions.forEach((term, ids) -> descriptionIndex.put(term, toSortedArray(ids)));
+            any.forEach((term, ids) -> anyIndex.put(term, toSortedArray(ids)));
+            names.clear();
+            descriptions.clear();
+            any.clear();
+        }
+
+        private int[] toSortedArray(List<Integer> ids) {
+            return ids.stream().mapToInt(Integer::intValue).sorted().toArray();
+        }
+    }
+}
@@ -1,24 +1,63 @@
 package ru.yandex.practicum.filmorate.storage.film;
 
 import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.FilmFilter;
 
+import java.time.Duration;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 public interface FilmStorage {
     Film add(Film film);
 
+    // добавляет фильмы пачкой и проставляет им id в порядке списка
+    List<Film> addAll(List<Film> films);
+
     void remove(Film film);
 
     Film update(Film film);
 
     List<Film> getAll();
 
+    // фильмы с id больше after по возрастанию id, не больше limit штук
+    List<Film> getPage(int after, int limit);
+
+    // подходящие под фильтр фильмы с id больше after по возрастанию id, не больше limit штук
+    List<Film> getPage(FilmFilter filter, int after, int limit);
+
+    // передает все фильмы по одному, не загружая весь список в память
+    void exportAll(Consumer<Film> consumer);
+
     Optional<Film> getFilm(int id);
 
+    // фильмы в порядке переданных id одним запросом, несуществующие id пропускаются
+    List<Film> getFilms(List<Integer> ids);
+
     void addLike(Integer filmId, Integer userId);
 
     void removeLike(Integer filmId, Integer userId);
 
+    // версия фильма для ETag, меняется при каждом изменении фильма и его лайков
+    long getVersion(int id);
+
+    // версия каталога для ETag списков, меняется при любом изменении фильмов и лайков
+    long getVersion();
+
     List<Film> getNFilms(Integer count);
+
+    // самые популярные фильмы жанра genreId, вышедшие в году year; null - без этого условия
+    List<Film> getNFilms(Integer count, Integer genreId, Integer year);
+
+    // фильмы, набравшие больше всего лайков за последнее время; вклад лайка убывает с постоянной времени window
+    List<Film> getTrending(Duration window, int count);
+
+    // фильмы, которые понравились пользователям с похожими лайками, не больше count штук
+    List<Film> getRecommendations(int userId, int count);
+
+    // фильмы, в названии или описании которых есть все слова запроса, по убыванию релевантности
+    List<Film> search(String query, int offset, int limit);
+
+    // фильмы, название которых начинается с prefix, сначала самые популярные, не больше limit штук
+    List<Film> suggest(String prefix, int limit);
 }
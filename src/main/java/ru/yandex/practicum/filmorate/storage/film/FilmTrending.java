@@ -0,0 +1,303 @@
+package ru.yandex.practicum.filmorate.storage.film;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.exceptions.ValidationException;
+import ru.yandex.practicum.filmorate.storage.TopK;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// рейтинги фильмов по свежим лайкам: вклад лайка убывает экспоненциально, постоянная времени равна окну
+// лайк в момент t добавляет exp((t - L) / окно) относительно опорного момента L, поэтому накопленные счетчики
+// не нужно уменьшать с течением времени - порядок фильмов от L не зависит, а L лишь изредка переносится вперед
+// лайк меняет только счетчики фильма, а верхушку рейтинга по ним пересчитывает планировщик
+@Slf4j
+@Component
+public class FilmTrending {
+    public static final String DEFAULT_WINDOWS = "1h,24h,7d";
+    // сколько фильмов хранится в верхушке каждого окна
+    public static final int MAX_COUNT = 100;
+    // опорный момент переносится раньше, чем экспонента перестанет помещаться в double
+    private static final double MAX_EXPONENT = 300;
+    // фильм, у которого во всех окнах осталось меньше этой доли одного свежего лайка, выпадает из счетчиков
+    private static final double MIN_SCORE = 0.01;
+    private static final int[][] NO_TOP = new int[0][];
+    // по убыванию счетчика, при равенстве выше меньший id
+    private static final Comparator<Map.Entry<Integer, Double>> TOP_ORDER =
+            Map.Entry.<Integer, Double>comparingByValue(Comparator.reverseOrder())
+                    .thenComparing(Map.Entry.comparingByKey());
+
+    private final String[] labels;
+    // постоянные времени окон в миллисекундах
+    private final double[] taus;
+    private final Map<Duration, Integer> windowIndex = new HashMap<>();
+    private final long refreshIntervalMs;
+    // обычные изменения счетчиков идут параллельно под блокировкой чтения, перенос L - под блокировкой записи
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // опорные моменты окон, массив подменяется целиком
+    private volatile long[] landmarks;
+    // счетчики фильма по окнам; массивы не изменяются после публикации, запись подменяет их копией
+    private final ConcurrentHashMap<Integer, double[]> scores = new ConcurrentHashMap<>();
+    // id лучших фильмов каждого окна по убыванию счетчика, из них отвечают запросы
+    private volatile int[][] top = NO_TOP;
+    private volatile boolean dirty;
+    private ScheduledExecutorService scheduler;
+
+    public FilmTrending(@Value("${filmorate.trending.windows:" + DEFAULT_WINDOWS + "}") String windows,
+                        @Value("${filmorate.trending.refresh-interval-ms:1000}") long refreshIntervalMs) {
+        String[] names = windows.split(",");
+        this.labels = new String[names.length];
+        this.taus = new double[names.length];
+        for (int i = 0; i < names.length; i++) {
+            Duration window = parseWindow(names[i]);
+            labels[i] = names[i].trim();
+            taus[i] = window.toMillis();
+            windowIndex.put(window, i);
+        }
+        this.refreshIntervalMs = refreshIntervalMs;
+        this.landmarks = startingAt(System.currentTimeMillis());
+    }
+
+    // окно вида 30m, 24h или 7d
+    public static Duration parseWindow(String window) {
+        String value = window == null ? "" : window.trim();
+        if (value.length() < 2) {
+            throw new ValidationException("Окно должно быть задано как число и m, h или d: " + window);
+        }
+
+        long amount;
+        try {
+            amount = Long.parseLong(value.substring(0, value.length() - 1));
+        } catch (NumberFormatException e) {
+            throw new ValidationException("Окно должно быть задано как число и m, h или d: " + window);
+        }
+        if (amount < 1) {
+            throw new ValidationException("Окно должно быть положительным: " + window);
+        }
+
+        switch (value.charAt(value.length() - 1)) {
+            case 'm':
+                return Duration.ofMinutes(amount);
+            case 'h':
+                return Duration.ofHours(amount);
+            case 'd':
+                return Duration.ofDays(amount);
+            default:
+                throw new ValidationException("Окно должно быть задано как число и m, h или d: " + window);
+        }
+    }
+
+    // без планировщика (интервал 0) верхушка пересчитывается при чтении после каждого изменения
+    public synchronized void start() {
+        refresh();
+
+        if (refreshIntervalMs > 0 && scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "film-trending");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::tickQuietly, refreshIntervalMs, refreshIntervalMs,
+                    TimeUnit.MILLISECONDS);
+
+            log.info("Рейтинг свежих лайков включен: окна {}, пересчет каждые {} мс.",
+                    String.join(", ", labels), refreshIntervalMs);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+
+    public void addLike(int filmId, long likedAt) {
+        change(filmId, likedAt, 1);
+    }
+
+    // likedAt - время снятого лайка, чтобы вычесть ровно тот вклад, который он внес
+    public void removeLike(int filmId, long likedAt) {
+        change(filmId, likedAt, -1);
+    }
+
+    public void removeFilm(int filmId) {
+        if (scores.remove(filmId) != null) {
+            dirty = true;
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            scores.clear();
+            landmarks = startingAt(System.currentTimeMillis());
+            top = NO_TOP;
+            dirty = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // шаг планировщика: перенос опорного момента, когда самое короткое окно прошло целиком, и пересчет верхушки
+    public void tick(long now) {
+        long[] current = landmarks;
+        for (int i = 0; i < taus.length; i++) {
+            if (now - current[i] > taus[i]) {
+                rebase(now);
+                break;
+            }
+        }
+        if (dirty) {
+            refresh();
+        }
+    }
+
+    private void tickQuietly() {
+        try {
+            tick(System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            log.error("Не удалось пересчитать рейтинг свежих лайков: {}", e.getMessage());
+        }
+    }
+
+    public List<Integer> getTop(Duration window, int count) {
+        Integer index = windowIndex.get(window);
+        if (index == null) {
+            throw new ValidationException("Окно длиной " + window.toMinutes() + " мин. не поддерживается, доступны: "
+                    + String.join(", ", labels));
+        }
+        if (refreshIntervalMs <= 0 && dirty) {
+            refresh();
+        }
+
+        int[][] current = top;
+        int[] ids = index < current.length ? current[index] : new int[0];
+        List<Integer> result = new ArrayList<>(Math.min(count, ids.length));
+        for (int i = 0; i < ids.length && i < count; i++) {
+            result.add(ids[i]);
+        }
+        return result;
+    }
+
+    // число фильмов, у которых есть свежие лайки
+    public int size() {
+        return scores.size();
+    }
+
+    private long[] startingAt(long now) {
+        long[] result = new long[taus.length];
+        Arrays.fill(result, now);
+        return result;
+    }
+
+    private void change(int filmId, long time, int sign) {
+        long[] current = landmarks;
+        for (int i = 0; i < taus.length; i++) {
+            if ((time - current[i]) / taus[i] > MAX_EXPONENT) {
+                rebase(time);
+                break;
+            }
+        }
+
+        lock.readLock().lock();
+        try {
+            long[] landmarks = this.landmarks;
+            scores.compute(filmId, (id, old) -> {
+                double[] updated = old == null ? new double[taus.length] : old.clone();
+                boolean keep = false;
+
+                for (int i = 0; i < taus.length; i++) {
+                    double weight = Math.exp((time - landmarks[i]) / taus[i]);
+                    updated[i] += sign * weight;
+                    // остаток от ошибок округления после снятия всех лайков считается нулем
+                    if (updated[i] <= weight * 1e-9) {
+                        updated[i] = 0;
+                    } else {
+                        keep = true;
+                    }
+                }
+                return keep ? updated : null;
+            });
+            dirty = true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // пересчитывает счетчики к новому опорному моменту и выбрасывает угасшие фильмы
+    private void rebase(long now) {
+        lock.writeLock().lock();
+        try {
+            long[] old = landmarks;
+            double[] factors = new double[taus.length];
+            for (int i = 0; i < taus.length; i++) {
+                factors[i] = Math.exp((Math.min(old[i], now) - now) / taus[i]);
+            }
+
+            int before = scores.size();
+            scores.replaceAll((filmId, values) -> {
+                double[] updated = new double[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    updated[i] = values[i] * factors[i];
+                }
+                return updated;
+            });
+            scores.values().removeIf(values -> Arrays.stream(values).allMatch(value -> value < MIN_SCORE));
+
+            long[] updated = new long[taus.length];
+            for (int i = 0; i < taus.length; i++) {
+                updated[i] = Math.max(old[i], now);
+            }
+            landmarks = updated;
+            dirty = true;
+
+            log.debug("Опорный момент рейтинга свежих лайков перенесен: фильмов {}, выбыло {}.",
+                    scores.size(), before - scores.size());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // один проход по счетчикам заполняет верхушки всех окон
+    private synchronized void refresh() {
+        lock.readLock().lock();
+        try {
+            dirty = false;
+            List<TopK<Map.Entry<Integer, Double>>> tops = new ArrayList<>(taus.length);
+            for (int i = 0; i < taus.length; i++) {
+                tops.add(new TopK<>(MAX_COUNT, TOP_ORDER));
+            }
+
+            scores.forEach((filmId, values) -> {
+                for (int i = 0; i < values.length; i++) {
+                    if (values[i] > 0) {
+                        tops.get(i).offer(Map.entry(filmId, values[i]));
+                    }
+                }
+            });
+
+            int[][] updated = new int[taus.length][];
+            for (int i = 0; i < taus.length; i++) {
+                updated[i] = tops.get(i).result().stream().mapToInt(Map.Entry::getKey).toArray();
+            }
+            top = updated;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
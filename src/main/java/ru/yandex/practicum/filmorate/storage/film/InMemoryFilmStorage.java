@@ -6,8 +6,14 @@ import org.springframework.stereotype.Component;
 import ru.yandex.practicum.filmorate.exceptions.FilmAlreadyExistException;
 import ru.yandex.practicum.filmorate.exceptions.NotFoundException;
 import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.FilmFilter;
+import ru.yandex.practicum.filmorate.model.Genre;
+import ru.yandex.practicum.filmorate.storage.EntityVersions;
+import ru.yandex.practicum.filmorate.storage.PrefixIndex;
 
+import java.time.Duration;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -15,8 +21,20 @@ import java.util.stream.Collectors;
 @Qualifier("InMemory")
 public class InMemoryFilmStorage implements FilmStorage {
     private final List<Film> films = new ArrayList<>();
-    private final Map<List<Integer>, Integer> likesUsers = new HashMap<>();
-    private final Map<Integer, Integer> likesFilms = new HashMap<>();
+    // те же фильмы по id, для чтения страниц по битовым картам
+    private final Map<Integer, Film> filmsById = new HashMap<>();
+    // ключ - пара (пользователь, фильм), значение - время лайка
+    private final Map<List<Integer>, Long> likesUsers = new HashMap<>();
+    private final FilmPopularity popularity = new FilmPopularity();
+    private final LikeMatrix likeMatrix = new LikeMatrix();
+    private final FilmSearchIndex searchIndex = new FilmSearchIndex();
+    private final PrefixIndex titleIndex = new PrefixIndex(popularity::getLikes);
+    private final FilmCharts charts = new FilmCharts(popularity::getLikes);
+    private final FilmTrending trending = new FilmTrending(FilmTrending.DEFAULT_WINDOWS, 0);
+    private final EntityVersions versions = new EntityVersions();
+    // битовые карты id фильмов по жанрам и рейтингам
+    private final Map<Integer, BitSet> filmsByGenre = new HashMap<>();
+    private final Map<Integer, BitSet> filmsByMpa = new HashMap<>();
 
     @Override
     public Film add(Film film) {
@@ -28,13 +46,33 @@ public class InMemoryFilmStorage implements FilmStorage {
 
         log.debug("Текущий фильм: {}", film);
         films.add(film);
+        filmsById.put(film.getId(), film);
+        searchIndex.put(film.getId(), film.getName(), film.getDescription());
+        titleIndex.put(film.getId(), film.getName());
+        setBits(film, true);
+        putToCharts(film);
         return film;
     }
 
+    @Override
+    public List<Film> addAll(List<Film> films) {
+        films.forEach(this::add);
+        return films;
+    }
+
     @Override
     public void remove(Film film) {
         if (films.contains(film)) {
+            setBits(films.get(films.indexOf(film)), false);
             films.remove(film);
+            filmsById.remove(film.getId());
+            popularity.remove(film.getId());
+            likeMatrix.removeFilm(film.getId());
+            searchIndex.remove(film.getId());
+            titleIndex.remove(film.getId());
+            charts.removeFilm(film.getId());
+            trending.removeFilm(film.getId());
+            versions.changed(film.getId());
         } else {
             throw new NotFoundException("Такого фильма не существует: " + film);
         }
@@ -43,6 +81,7 @@ public class InMemoryFilmStorage implements FilmStorage {
     @Override
     public Film update(Film film) {
         if (films.contains(film)) {
+            setBits(films.get(films.indexOf(film)), false);
             films.remove(film);
         } else {
             throw new NotFoundException("Такого фильма не существует: " + film);
@@ -50,47 +89,196 @@ public class InMemoryFilmStorage implements FilmStorage {
 
         log.debug("Текущий фильм: {}", film);
         films.add(film);
+        filmsById.put(film.getId(), film);
+        searchIndex.put(film.getId(), film.getName(), film.getDescription());
+        titleIndex.put(film.getId(), film.getName());
+        setBits(film, true);
+        putToCharts(film);
         return film;
     }
 
+    private void putToCharts(Film film) {
+        charts.putFilm(film.getId(), film.getGenres() == null ? new int[0]
+                : film.getGenres().stream().mapToInt(Genre::getId).distinct().toArray(),
+                film.getReleaseDate().getYear());
+        versions.changed(film.getId());
+    }
+
+    private void setBits(Film film, boolean value) {
+        if (film.getGenres() != null) {
+            for (Genre genre : film.getGenres()) {
+                filmsByGenre.computeIfAbsent(genre.getId(), id -> new BitSet()).set(film.getId(), value);
+            }
+        }
+        if (film.getMpa() != null && film.getMpa().getId() != null) {
+            filmsByMpa.computeIfAbsent(film.getMpa().getId(), id -> new BitSet()).set(film.getId(), value);
+        }
+    }
+
     @Override
     public List<Film> getAll() {
         log.debug("Текущее количество фильмов: {}", films.size());
         return films;
     }
 
+    @Override
+    public List<Film> getPage(int after, int limit) {
+        return films.stream()
+                .filter(f -> f.getId() > after)
+                .sorted(Comparator.comparingInt(Film::getId))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Film> getPage(FilmFilter filter, int after, int limit) {
+        BitSet matches = matchingGenreAndMpa(filter);
+        if (matches == null) {
+            // без жанра и рейтинга битовой карты нет, фильмы просматриваются целиком
+            return films.stream()
+                    .filter(f -> f.getId() > after)
+                    .filter(f -> filter.isReleasedBetween(f.getReleaseDate()))
+                    .sorted(Comparator.comparingInt(Film::getId))
+                    .limit(limit)
+                    .collect(Collectors.toList());
+        }
+
+        // биты идут по возрастанию id, поэтому чтение останавливается, как только страница заполнена
+        List<Film> page = new ArrayList<>();
+        for (int id = matches.nextSetBit(after + 1); id >= 0 && page.size() < limit; id = matches.nextSetBit(id + 1)) {
+            Film film = filmsById.get(id);
+            if (film != null && filter.isReleasedBetween(film.getReleaseDate())) {
+                page.add(film);
+            }
+        }
+        return page;
+    }
+
+    // пересечение битовых карт жанра и рейтинга, null - ни жанр, ни рейтинг не заданы
+    private BitSet matchingGenreAndMpa(FilmFilter filter) {
+        BitSet matches = null;
+
+        if (filter.getGenreId() != null) {
+            matches = (BitSet) filmsByGenre.getOrDefault(filter.getGenreId(), new BitSet()).clone();
+        }
+        if (filter.getMpaId() != null) {
+            BitSet mpaFilms = filmsByMpa.getOrDefault(filter.getMpaId(), new BitSet());
+            if (matches == null) {
+                matches = (BitSet) mpaFilms.clone();
+            } else {
+                matches.and(mpaFilms);
+            }
+        }
+        return matches;
+    }
+
+    @Override
+    public void exportAll(Consumer<Film> consumer) {
+        films.stream()
+                .sorted(Comparator.comparingInt(Film::getId))
+                .forEach(consumer);
+    }
+
+    @Override
+    public List<Film> getFilms(List<Integer> ids) {
+        Map<Integer, Film> filmsById = films.stream()
+                .collect(Collectors.toMap(Film::getId, f -> f));
+
+        return ids.stream()
+                .map(filmsById::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
     @Override
     public Optional<Film> getFilm(int id) {
         return Optional.ofNullable(films.stream().filter(f -> id == f.getId()).findFirst()
-                .orElseThrow(() -> new NotFoundException("Такого фильма с id = " + id + " не существует.")));
+                .orElseThrow(() -> NotFoundException.withoutStackTrace("Такого фильма с id = " + id
+                        + " не существует.")));
     }
 
     @Override
     public void addLike(Integer filmId, Integer userId) {
-        likesUsers.put(List.of(userId, filmId), 1);
-        likesFilms.put(filmId, likesFilms.getOrDefault(filmId, 0) + 1);
+        // учитываем лайк только если его не было
+        long likedAt = System.currentTimeMillis();
+        if (likesUsers.putIfAbsent(List.of(userId, filmId), likedAt) == null) {
+            popularity.addLike(filmId);
+            likeMatrix.addLike(filmId, userId);
+            charts.likesChanged(filmId);
+            trending.addLike(filmId, likedAt);
+            versions.changed(filmId);
+        }
     }
 
     @Override
     public void removeLike(Integer filmId, Integer userId) {
-        likesUsers.remove(List.of(userId, filmId));
-
-        // если у фильма уже есть лайки , убираем 1
-        if (likesFilms.containsKey(filmId)) {
-            int likeCount = likesFilms.get(filmId);
-            if (likeCount > 1) {
-                likesFilms.put(filmId, likeCount - 1);
-            }
+        // убираем лайк только если он был
+        Long likedAt = likesUsers.remove(List.of(userId, filmId));
+        if (likedAt != null) {
+            popularity.removeLike(filmId);
+            likeMatrix.removeLike(filmId, userId);
+            charts.likesChanged(filmId);
+            trending.removeLike(filmId, likedAt);
+            versions.changed(filmId);
         }
     }
 
+    @Override
+    public long getVersion(int id) {
+        return versions.getVersion(id);
+    }
+
+    @Override
+    public long getVersion() {
+        return versions.getVersion();
+    }
+
     @Override
     public List<Film> getNFilms(Integer count) {
-        return likesFilms.entrySet()
+        return popularity.getTop(count)
+                .stream()
+                .map(id -> getFilm(id).orElse(null))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Film> getNFilms(Integer count, Integer genreId, Integer year) {
+        if (genreId == null && year == null) {
+            return getNFilms(count);
+        }
+        return charts.getTop(genreId, year, count)
+                .stream()
+                .map(id -> getFilm(id).orElse(null))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Film> getTrending(Duration window, int count) {
+        return trending.getTop(window, count)
                 .stream()
-                .sorted(Map.Entry.<Integer, Integer>comparingByValue().reversed())
-                .limit(count)
-                .map(e -> getFilm(e.getKey()).orElse(null))
+                .map(id -> getFilm(id).orElse(null))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Film> getRecommendations(int userId, int count) {
+        return Arrays.stream(likeMatrix.recommend(userId, count))
+                .mapToObj(id -> getFilm(id).orElse(null))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Film> search(String query, int offset, int limit) {
+        return searchIndex.search(query, offset, limit)
+                .stream()
+                .map(id -> getFilm(id).orElse(null))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Film> suggest(String prefix, int limit) {
+        return Arrays.stream(titleIndex.search(prefix, limit))
+                .mapToObj(id -> getFilm(id).orElse(null))
                 .collect(Collectors.toList());
     }
 }
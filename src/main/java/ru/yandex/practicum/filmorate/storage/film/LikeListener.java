@@ -0,0 +1,8 @@
+package ru.yandex.practicum.filmorate.storage.film;
+
+// вызывается после того, как лайк действительно добавлен в таблицу likes или удален из нее
+// likedAt - время лайка в миллисекундах: для нового лайка момент записи, для снятого - когда он был поставлен
+@FunctionalInterface
+public interface LikeListener {
+    void onLikeChanged(int filmId, int userId, boolean liked, long likedAt);
+}
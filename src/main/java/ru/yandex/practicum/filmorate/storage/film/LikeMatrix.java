@@ -0,0 +1,198 @@
+package ru.yandex.practicum.filmorate.storage.film;
+
+import ru.yandex.practicum.filmorate.storage.SortedIds;
+import ru.yandex.practicum.filmorate.storage.TopK;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntToDoubleFunction;
+import java.util.stream.IntStream;
+
+// разреженная матрица пользователь x фильм из таблицы likes: для каждой строки и столбца отсортированный массив id
+public class LikeMatrix {
+    private static final int[] EMPTY = new int[0];
+    // сколько поклонников каждого фильма рассматривается при поиске похожих пользователей
+    private static final int LIKERS_PER_FILM = 500;
+    // сколько самых похожих пользователей участвует в подборе фильмов
+    private static final int NEIGHBOURS = 50;
+    // заголовок массива и запись в ConcurrentHashMap с ключом Integer, приблизительно
+    private static final int ENTRY_OVERHEAD_BYTES = 80;
+
+    private final ConcurrentHashMap<Integer, int[]> filmsByUser = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, int[]> usersByFilm = new ConcurrentHashMap<>();
+
+    public void addLike(int filmId, int userId) {
+        filmsByUser.compute(userId, (id, ids) -> SortedIds.insert(ids, filmId));
+        usersByFilm.compute(filmId, (id, ids) -> SortedIds.insert(ids, userId));
+    }
+
+    public void removeLike(int filmId, int userId) {
+        filmsByUser.compute(userId, (id, ids) -> SortedIds.delete(ids, filmId));
+        usersByFilm.compute(filmId, (id, ids) -> SortedIds.delete(ids, userId));
+    }
+
+    public void removeFilm(int filmId) {
+        int[] userIds = usersByFilm.remove(filmId);
+
+        if (userIds != null) {
+            for (int userId : userIds) {
+                filmsByUser.compute(userId, (id, ids) -> SortedIds.delete(ids, filmId));
+            }
+        }
+    }
+
+    // начальная загрузка из строк, отсортированных по (user_id, film_id)
+    public Loader loader() {
+        filmsByUser.clear();
+        usersByFilm.clear();
+        return new Loader();
+    }
+
+    // возвращаемый массив нельзя изменять
+    public int[] getLikedFilms(int userId) {
+        return filmsByUser.getOrDefault(userId, EMPTY);
+    }
+
+    // возвращаемый массив нельзя изменять
+    public int[] getLikers(int filmId) {
+        return usersByFilm.getOrDefault(filmId, EMPTY);
+    }
+
+    // фильмы, которые понравились похожим пользователям и которых еще нет в лайках пользователя
+    public int[] recommend(int userId, int count) {
+        int[] liked = getLikedFilms(userId);
+        if (liked.length == 0) {
+            return EMPTY;
+        }
+
+        // кандидаты - все, кто лайкнул хотя бы один из фильмов пользователя
+        int[] candidates = Arrays.stream(liked)
+                .flatMap(filmId -> {
+                    int[] likers = getLikers(filmId);
+                    return Arrays.stream(likers, 0, Math.min(likers.length, LIKERS_PER_FILM));
+                })
+                .filter(candidateId -> candidateId != userId)
+                .sorted()
+                .distinct()
+                .toArray();
+
+        // косинусная мера на бинарных векторах, считается параллельно в ForkJoinPool
+        double[] similarity = IntStream.range(0, candidates.length)
+                .parallel()
+                .mapToDouble(i -> {
+                    int[] candidateLiked = getLikedFilms(candidates[i]);
+                    return candidateLiked.length == 0 ? 0
+                            : overlap(liked, candidateLiked) / Math.sqrt((double) liked.length * candidateLiked.length);
+                })
+                .toArray();
+
+        int[] neighbours = top(candidates.length, NEIGHBOURS, i -> similarity[i]);
+
+        Map<Integer, Double> scores = new HashMap<>();
+        for (int neighbour : neighbours) {
+            for (int filmId : getLikedFilms(candidates[neighbour])) {
+                if (Arrays.binarySearch(liked, filmId) < 0) {
+                    scores.merge(filmId, similarity[neighbour], Double::sum);
+                }
+            }
+        }
+
+        int[] filmIds = scores.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+        return Arrays.stream(top(filmIds.length, count, i -> scores.get(filmIds[i])))
+                .map(i -> filmIds[i])
+                .toArray();
+    }
+
+    // приблизительный объем памяти, занятый матрицей
+    public long estimatedBytes() {
+        long bytes = 0;
+        for (int[] ids : filmsByUser.values()) {
+            bytes += ENTRY_OVERHEAD_BYTES + 4L * ids.length;
+        }
+        for (int[] ids : usersByFilm.values()) {
+            bytes += ENTRY_OVERHEAD_BYTES + 4L * ids.length;
+        }
+        return bytes;
+    }
+
+    // индексы count лучших значений по убыванию, при равенстве раньше идет меньший индекс
+    private static int[] top(int size, int count, IntToDoubleFunction score) {
+        TopK<Integer> top = new TopK<>(count, Comparator.<Integer>comparingDouble(score::applyAsDouble).reversed()
+                .thenComparing(Comparator.naturalOrder()));
+        for (int i = 0; i < size; i++) {
+            if (score.applyAsDouble(i) > 0) {
+                top.offer(i);
+            }
+        }
+        return top.result().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int overlap(int[] ids, int[] otherIds) {
+        int count = 0;
+        int i = 0;
+        int j = 0;
+
+        while (i < ids.length && j < otherIds.length) {
+            if (ids[i] < otherIds[j]) {
+                i++;
+            } else if (ids[i] > otherIds[j]) {
+                j++;
+            } else {
+                count++;
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+
+    public class Loader {
+        private final Map<Integer, int[]> likers = new HashMap<>();
+        private final Map<Integer, Integer> likerCounts = new HashMap<>();
+        private boolean started;
+        private int userId;
+        private int[] filmIds = new int[16];
+        private int filmCount;
+
+        public void add(int userId, int filmId) {
+            if (!started || userId != this.userId) {
+                flushUser();
+                started = true;
+                this.userId = userId;
+            }
+
+            if (filmCount == filmIds.length) {
+                filmIds = Arrays.copyOf(filmIds, filmCount * 2);
+            }
+            filmIds[filmCount++] = filmId;
+
+            // строки идут по возрастанию user_id, поэтому поклонники фильма добавляются уже отсортированными
+            int likerCount = likerCounts.getOrDefault(filmId, 0);
+            int[] filmLikers = likers.get(filmId);
+            if (filmLikers == null || likerCount == filmLikers.length) {
+                filmLikers = filmLikers == null ? new int[4] : Arrays.copyOf(filmLikers, likerCount * 2);
+                likers.put(filmId, filmLikers);
+            }
+            filmLikers[likerCount] = userId;
+            likerCounts.put(filmId, likerCount + 1);
+        }
+
+        // публикует загруженные данные, вызывается после всех строк
+        public void finish() {
+            flushUser();
+            likers.forEach((filmId, userIds) -> usersByFilm.put(filmId, Arrays.copyOf(userIds, likerCounts.get(filmId))));
+            likers.clear();
+            likerCounts.clear();
+        }
+
+        private void flushUser() {
+            if (filmCount > 0) {
+                filmsByUser.put(userId, Arrays.copyOf(filmIds, filmCount));
+            }
+            filmCount = 0;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package ru.yandex.practicum.filmorate.storage.film;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// приблизительный рейтинг популярности фиксированного объема для очень больших потоков лайков
+// Count-Min sketch завышает число лайков фильма не больше чем на epsilon * (всего лайков) с вероятностью confidence,
+// а ограниченный набор кандидатов хранит фильмы с наибольшими оценками; объем не зависит от числа фильмов
+@Slf4j
+@Component
+public class LikeSketch {
+    // простое число Мерсенна 2^31 - 1 для попарно независимых хеш-функций
+    private static final long PRIME = Integer.MAX_VALUE;
+    // запись кандидата: ключ в TreeSet, запись в HashMap и упакованные числа, приблизительно
+    private static final int CANDIDATE_BYTES = 120;
+
+    private final boolean enabled;
+    private final int width;
+    private final int depth;
+    private final int capacity;
+    // строки счетчиков подряд: строка i занимает позиции [i * width, (i + 1) * width)
+    private final AtomicIntegerArray counters;
+    private final long[] hashA;
+    private final long[] hashB;
+    // кандидаты в лидеры: старшие 32 бита - оценка на момент последнего изменения фильма, младшие - id
+    private final TreeSet<Long> candidates = new TreeSet<>();
+    private final Map<Integer, Integer> candidateEstimates = new HashMap<>();
+
+    public LikeSketch(@Value("${filmorate.popularity.sketch.enabled:false}") boolean enabled,
+                      @Value("${filmorate.popularity.sketch.epsilon:0.0001}") double epsilon,
+                      @Value("${filmorate.popularity.sketch.confidence:0.99}") double confidence,
+                      @Value("${filmorate.popularity.sketch.candidates:1000}") int capacity) {
+        if (epsilon <= 0 || epsilon >= 1 || confidence <= 0 || confidence >= 1 || capacity < 1) {
+            throw new IllegalArgumentException("Некорректные параметры приблизительного рейтинга: epsilon " + epsilon
+                    + ", confidence " + confidence + ", кандидатов " + capacity);
+        }
+
+        this.enabled = enabled;
+        this.width = (int) Math.ceil(Math.E / epsilon);
+        this.depth = (int) Math.ceil(Math.log(1 / (1 - confidence)));
+        this.capacity = capacity;
+        this.counters = new AtomicIntegerArray(enabled ? width * depth : 0);
+        this.hashA = new long[depth];
+        this.hashB = new long[depth];
+
+        // фиксированное зерно: после перезапуска хеш-функции те же, что удобно при сверке
+        Random random = new Random(20_240_601);
+        for (int i = 0; i < depth; i++) {
+            hashA[i] = 1 + random.nextInt(Integer.MAX_VALUE - 1);
+            hashB[i] = random.nextInt(Integer.MAX_VALUE);
+        }
+
+        if (enabled) {
+            log.info("Приблизительный рейтинг популярности включен: {} x {} счетчиков, {} кандидатов, ~{} КБ.",
+                    depth, width, capacity, estimatedBytes() / 1024);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void addLike(int filmId) {
+        add(filmId, 1);
+    }
+
+    public void removeLike(int filmId) {
+        add(filmId, -1);
+    }
+
+    // убирает все лайки удаленного фильма; count - их точное число
+    public void removeFilm(int filmId, int count) {
+        add(filmId, -count);
+        synchronized (candidates) {
+            Integer estimate = candidateEstimates.remove(filmId);
+            if (estimate != null) {
+                candidates.remove(key(filmId, estimate));
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+        synchronized (candidates) {
+            candidates.clear();
+            candidateEstimates.clear();
+        }
+    }
+
+    public void add(int filmId, int delta) {
+        if (delta == 0) {
+            return;
+        }
+
+        int estimate = Integer.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            estimate = Math.min(estimate, counters.addAndGet(index(i, filmId), delta));
+        }
+        offer(filmId, Math.max(estimate, 0));
+    }
+
+    // оценка сверху числа лайков фильма
+    public int estimate(int filmId) {
+        int estimate = Integer.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            estimate = Math.min(estimate, counters.get(index(i, filmId)));
+        }
+        return Math.max(estimate, 0);
+    }
+
+    // оценки кандидатов могли вырасти из-за коллизий с другими фильмами, поэтому пересчитываются при чтении
+    public List<Integer> getTop(int count) {
+        List<Integer> filmIds;
+        synchronized (candidates) {
+            filmIds = new ArrayList<>(candidateEstimates.keySet());
+        }
+
+        TreeSet<Long> ranked = new TreeSet<>();
+        for (int filmId : filmIds) {
+            int estimate = estimate(filmId);
+            if (estimate > 0) {
+                ranked.add(key(filmId, estimate));
+            }
+        }
+
+        List<Integer> top = new ArrayList<>(Math.min(count, ranked.size()));
+        for (long key : ranked.descendingSet()) {
+            if (top.size() >= count) {
+                break;
+            }
+            top.add(filmId(key));
+        }
+        return top;
+    }
+
+    // объем счетчиков и кандидатов, он не меняется с ростом числа фильмов и лайков
+    public long estimatedBytes() {
+        return 4L * counters.length() + (long) CANDIDATE_BYTES * capacity;
+    }
+
+    private void offer(int filmId, int estimate) {
+        synchronized (candidates) {
+            Integer old = candidateEstimates.get(filmId);
+            if (old != null) {
+                candidates.remove(key(filmId, old));
+            } else if (candidateEstimates.size() >= capacity) {
+                // в полный набор фильм попадает, только если его оценка выше самой низкой
+                long lowest = candidates.first();
+                if (estimate <= estimateOf(lowest)) {
+                    return;
+                }
+                candidates.pollFirst();
+                candidateEstimates.remove(filmId(lowest));
+            }
+
+            if (estimate > 0) {
+                candidates.add(key(filmId, estimate));
+                candidateEstimates.put(filmId, estimate);
+            } else {
+                candidateEstimates.remove(filmId);
+            }
+        }
+    }
+
+    private int index(int row, int filmId) {
+        long hash = (hashA[row] * (filmId & 0xFFFFFFFFL) + hashB[row]) % PRIME;
+        return row * width + (int) (hash % width);
+    }
+
+    // при равной оценке выше в рейтинге меньший id, поэтому id в ключе инвертирован
+    private static long key(int filmId, int estimate) {
+        return ((long) estimate << 32) | (Integer.MAX_VALUE - filmId);
+    }
+
+    private static int filmId(long key) {
+        return Integer.MAX_VALUE - (int) key;
+    }
+
+    private static int estimateOf(long key) {
+        return (int) (key >>> 32);
+    }
+}
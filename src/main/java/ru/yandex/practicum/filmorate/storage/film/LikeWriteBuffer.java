@@ -0,0 +1,274 @@
+package ru.yandex.practicum.filmorate.storage.film;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+// отложенная запись лайков: события копятся в памяти и пачками сбрасываются в таблицу likes
+@Slf4j
+@Component
+public class LikeWriteBuffer {
+    // время лайка задается явно, чтобы рейтинг свежих лайков в памяти совпадал с likes.last_updated
+    static final String INSERT_SQL = "INSERT INTO likes (user_id, film_id, last_updated)\n" +
+            "SELECT CAST(? AS INTEGER), CAST(? AS INTEGER), CAST(? AS TIMESTAMP) FROM DUAL\n" +
+            "WHERE NOT EXISTS (SELECT 1 FROM likes WHERE user_id = ? AND film_id = ?)";
+    static final String DELETE_SQL = "DELETE FROM likes WHERE user_id = ? AND film_id = ?";
+    // удаляет лайк и возвращает время, когда он был поставлен
+    static final String UNLIKE_SQL = "SELECT last_updated FROM OLD TABLE (" + DELETE_SQL + ")";
+    // сколько пар (пользователь, фильм) передается в одном запросе времени лайков
+    private static final int IN_BATCH_SIZE = 500;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final boolean enabled;
+    private final int capacity;
+    private final int batchSize;
+    private final long flushIntervalMs;
+
+    // ключ - пара (пользователь, фильм), значение - последнее действие: true - лайк, false - снятие лайка
+    private Map<Long, Boolean> pending = new HashMap<>();
+    // сбросы выполняются строго по очереди, чтобы более позднее действие не записалось раньше
+    private final Object flushLock = new Object();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile LikeListener listener = (filmId, userId, liked, likedAt) -> {
+    };
+    private ScheduledExecutorService scheduler;
+
+    public LikeWriteBuffer(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate,
+                           @Value("${filmorate.likes.write-behind.enabled:false}") boolean enabled,
+                           @Value("${filmorate.likes.write-behind.capacity:10000}") int capacity,
+                           @Value("${filmorate.likes.write-behind.batch-size:1000}") int batchSize,
+                           @Value("${filmorate.likes.write-behind.flush-interval-ms:1000}") long flushIntervalMs) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.enabled = enabled;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized void start(LikeListener listener) {
+        this.listener = listener;
+
+        if (enabled && scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "like-write-buffer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs,
+                    TimeUnit.MILLISECONDS);
+
+            log.info("Отложенная запись лайков включена: емкость {}, пачка {}, интервал {} мс.",
+                    capacity, batchSize, flushIntervalMs);
+        }
+    }
+
+    public void like(int filmId, int userId) {
+        offer(key(filmId, userId), true);
+    }
+
+    public void unlike(int filmId, int userId) {
+        offer(key(filmId, userId), false);
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    private void offer(long key, boolean liked) {
+        while (true) {
+            synchronized (this) {
+                // повторное действие с той же парой заменяет предыдущее и не занимает новое место
+                if (pending.size() < capacity || pending.containsKey(key)) {
+                    pending.put(key, liked);
+
+                    if (pending.size() >= batchSize) {
+                        scheduleFlush();
+                    }
+                    return;
+                }
+            }
+
+            // буфер заполнен: поток запроса сам сбрасывает его в базу и тем самым притормаживает поток лайков
+            log.debug("Буфер лайков заполнен, сбрасываем его в потоке запроса.");
+            flush();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (scheduler != null && flushScheduled.compareAndSet(false, true)) {
+            scheduler.execute(this::flushQuietly);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.error("Не удалось сбросить буфер лайков: {}", e.getMessage());
+        }
+    }
+
+    public void flush() {
+        synchronized (flushLock) {
+            flushScheduled.set(false);
+
+            Map<Long, Boolean> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new HashMap<>();
+            }
+
+            write(batch);
+        }
+    }
+
+    private void write(Map<Long, Boolean> batch) {
+        List<Long> likes = new ArrayList<>();
+        List<Long> unlikes = new ArrayList<>();
+        batch.forEach((key, liked) -> (liked ? likes : unlikes).add(key));
+
+        long now = System.currentTimeMillis();
+        Map<Long, Long> likedAt = new HashMap<>();
+
+        try {
+            List<int[]> counts = transactionTemplate.execute(status -> {
+                // время снимаемых лайков читается до удаления в той же транзакции
+                likedAt.putAll(findLikedAt(unlikes));
+                return List.of(
+                        jdbcTemplate.batchUpdate(INSERT_SQL, toArgs(likes, true, now)),
+                        jdbcTemplate.batchUpdate(DELETE_SQL, toArgs(unlikes, false, now)));
+            });
+
+            notifyListener(likes, counts.get(0), true, key -> now);
+            notifyListener(unlikes, counts.get(1), false, key -> likedAt.getOrDefault(key, now));
+        } catch (DataAccessException e) {
+            // пачка не записалась целиком, например из-за несуществующего пользователя: пишем по одному
+            log.warn("Пачка лайков не записана, повторяем по одному: {}", e.getMessage());
+            likes.forEach(key -> writeOne(key, true));
+            unlikes.forEach(key -> writeOne(key, false));
+        }
+
+        log.debug("Сброшено в базу лайков: {}, снятий лайков: {}", likes.size(), unlikes.size());
+    }
+
+    private void writeOne(long key, boolean liked) {
+        try {
+            if (liked) {
+                long now = System.currentTimeMillis();
+                if (like(jdbcTemplate, filmId(key), userId(key), now)) {
+                    listener.onLikeChanged(filmId(key), userId(key), true, now);
+                }
+            } else {
+                for (long likedAt : unlike(jdbcTemplate, filmId(key), userId(key))) {
+                    listener.onLikeChanged(filmId(key), userId(key), false, likedAt);
+                }
+            }
+        } catch (DataAccessException e) {
+            log.error("Лайк пользователя {} фильму {} не записан: {}", userId(key), filmId(key), e.getMessage());
+        }
+    }
+
+    private void notifyListener(List<Long> keys, int[] counts, boolean liked, ToLongFunction<Long> likedAt) {
+        for (int i = 0; i < keys.size(); i++) {
+            long key = keys.get(i);
+            if (counts[i] > 0) {
+                listener.onLikeChanged(filmId(key), userId(key), liked, likedAt.applyAsLong(key));
+            }
+        }
+    }
+
+    // ставит лайк с временем likedAt, если его еще не было
+    static boolean like(JdbcTemplate jdbcTemplate, int filmId, int userId, long likedAt) {
+        return jdbcTemplate.update(INSERT_SQL, userId, filmId, new Timestamp(likedAt), userId, filmId) > 0;
+    }
+
+    // удаляет лайк и возвращает время, когда он был поставлен, или пустой список, если лайка не было
+    static List<Long> unlike(JdbcTemplate jdbcTemplate, int filmId, int userId) {
+        return jdbcTemplate.query(UNLIKE_SQL, (rs, rowNum) -> toMillis(rs.getTimestamp("last_updated")),
+                userId, filmId);
+    }
+
+    private Map<Long, Long> findLikedAt(List<Long> keys) {
+        Map<Long, Long> likedAt = new HashMap<>();
+
+        for (int from = 0; from < keys.size(); from += IN_BATCH_SIZE) {
+            List<Long> chunk = keys.subList(from, Math.min(from + IN_BATCH_SIZE, keys.size()));
+            String pairs = String.join(", ", Collections.nCopies(chunk.size(), "(?, ?)"));
+            Object[] args = chunk.stream()
+                    .flatMap(key -> Stream.of(userId(key), filmId(key)))
+                    .toArray();
+
+            jdbcTemplate.query("SELECT user_id, film_id, last_updated FROM likes\n" +
+                            "WHERE (user_id, film_id) IN (" + pairs + ")",
+                    (RowCallbackHandler) rs -> likedAt.put(key(rs.getInt("film_id"), rs.getInt("user_id")),
+                            toMillis(rs.getTimestamp("last_updated"))),
+                    args);
+        }
+        return likedAt;
+    }
+
+    private static long toMillis(Timestamp timestamp) {
+        return timestamp == null ? System.currentTimeMillis() : timestamp.getTime();
+    }
+
+    private static List<Object[]> toArgs(List<Long> keys, boolean insert, long likedAt) {
+        List<Object[]> args = new ArrayList<>(keys.size());
+        Timestamp timestamp = new Timestamp(likedAt);
+
+        for (long key : keys) {
+            args.add(insert
+                    ? new Object[]{userId(key), filmId(key), timestamp, userId(key), filmId(key)}
+                    : new Object[]{userId(key), filmId(key)});
+        }
+        return args;
+    }
+
+    @PreDestroy
+    public void stop() {
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.shutdown();
+            }
+        }
+        flush();
+    }
+
+    private static long key(int filmId, int userId) {
+        return ((long) userId << 32) | (filmId & 0xFFFFFFFFL);
+    }
+
+    private static int userId(long key) {
+        return (int) (key >>> 32);
+    }
+
+    private static int filmId(long key) {
+        return (int) key;
+    }
+}
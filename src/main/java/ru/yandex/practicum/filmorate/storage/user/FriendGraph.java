@@ -0,0 +1,166 @@
+package ru.yandex.practicum.filmorate.storage.user;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.model.FriendshipStatus;
+import ru.yandex.practicum.filmorate.storage.SortedIds;
+import ru.yandex.practicum.filmorate.storage.TopK;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+
+// граф дружбы в памяти: для каждого пользователя отсортированные массивы id друзей
+@Component
+public class FriendGraph {
+    private static final int[] EMPTY = new int[0];
+
+    private final boolean enabled;
+    // все дружбы пользователя, включая неподтвержденные
+    private final ConcurrentHashMap<Integer, int[]> outgoing = new ConcurrentHashMap<>();
+    // только подтвержденные дружбы
+    private final ConcurrentHashMap<Integer, int[]> accepted = new ConcurrentHashMap<>();
+
+    public FriendGraph(@Value("${filmorate.friends.graph-index.enabled:false}") boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // начальная загрузка из строк, отсортированных по (user_id, friend_id)
+    public Loader loader() {
+        clear();
+        return new Loader();
+    }
+
+    public void clear() {
+        outgoing.clear();
+        accepted.clear();
+    }
+
+    public void addFriend(int userId, int friendId, boolean isAccepted) {
+        outgoing.compute(userId, (id, ids) -> SortedIds.insert(ids, friendId));
+        setAccepted(userId, friendId, isAccepted);
+    }
+
+    public void removeFriend(int userId, int friendId) {
+        outgoing.compute(userId, (id, ids) -> SortedIds.delete(ids, friendId));
+        accepted.compute(userId, (id, ids) -> SortedIds.delete(ids, friendId));
+    }
+
+    public void setAccepted(int userId, int friendId, boolean isAccepted) {
+        if (isAccepted) {
+            accepted.compute(userId, (id, ids) -> SortedIds.insert(ids, friendId));
+        } else {
+            accepted.compute(userId, (id, ids) -> SortedIds.delete(ids, friendId));
+        }
+    }
+
+    // возвращаемый массив нельзя изменять
+    public int[] getFriends(int userId) {
+        return outgoing.getOrDefault(userId, EMPTY);
+    }
+
+    public int[] getFriends(int userId, FriendshipStatus status) {
+        if (status == null) {
+            return getFriends(userId);
+        }
+        if (status == FriendshipStatus.ACCEPTED) {
+            return accepted.getOrDefault(userId, EMPTY);
+        }
+        return difference(getFriends(userId), accepted.getOrDefault(userId, EMPTY));
+    }
+
+    public int[] getCommonFriends(int userId, int otherUserId) {
+        return SortedIds.intersect(getFriends(userId), getFriends(otherUserId));
+    }
+
+    // кандидаты в друзья - друзья первых friendsPerHop друзей пользователя, кроме него самого и его друзей,
+    // по убыванию числа общих друзей, при равенстве по возрастанию id; friendIds отдает всех друзей по возрастанию id
+    public static List<Integer> suggestFriends(int userId, IntFunction<int[]> friendIds, int friendsPerHop,
+                                               int limit) {
+        int[] userFriendIds = friendIds.apply(userId);
+        Map<Integer, Integer> mutualFriends = new HashMap<>();
+
+        for (int i = 0; i < Math.min(userFriendIds.length, friendsPerHop); i++) {
+            int[] candidateIds = friendIds.apply(userFriendIds[i]);
+            for (int j = 0; j < Math.min(candidateIds.length, friendsPerHop); j++) {
+                int candidateId = candidateIds[j];
+                if (candidateId != userId && Arrays.binarySearch(userFriendIds, candidateId) < 0) {
+                    mutualFriends.merge(candidateId, 1, Integer::sum);
+                }
+            }
+        }
+
+        TopK<Map.Entry<Integer, Integer>> top = new TopK<>(limit,
+                Map.Entry.<Integer, Integer>comparingByValue(Comparator.reverseOrder())
+                        .thenComparing(Map.Entry.comparingByKey()));
+        mutualFriends.entrySet().forEach(top::offer);
+
+        return top.result().stream().map(Map.Entry::getKey).collect(Collectors.toList());
+    }
+
+    private static int[] difference(int[] ids, int[] excluded) {
+        int[] result = new int[ids.length];
+        int size = 0;
+        int j = 0;
+
+        for (int id : ids) {
+            while (j < excluded.length && excluded[j] < id) {
+                j++;
+            }
+            if (j == excluded.length || excluded[j] != id) {
+                result[size++] = id;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    public class Loader {
+        private boolean started;
+        private int userId;
+        private int[] friendIds = new int[16];
+        private int friendCount;
+        private int[] acceptedIds = new int[16];
+        private int acceptedCount;
+
+        public void add(int userId, int friendId, boolean isAccepted) {
+            if (!started || userId != this.userId) {
+                finish();
+                started = true;
+                this.userId = userId;
+            }
+
+            if (friendCount == friendIds.length) {
+                friendIds = Arrays.copyOf(friendIds, friendCount * 2);
+            }
+            friendIds[friendCount++] = friendId;
+
+            if (isAccepted) {
+                if (acceptedCount == acceptedIds.length) {
+                    acceptedIds = Arrays.copyOf(acceptedIds, acceptedCount * 2);
+                }
+                acceptedIds[acceptedCount++] = friendId;
+            }
+        }
+
+        // публикует друзей последнего пользователя, вызывается после всех строк
+        public void finish() {
+            if (friendCount > 0) {
+                outgoing.put(userId, Arrays.copyOf(friendIds, friendCount));
+            }
+            if (acceptedCount > 0) {
+                accepted.put(userId, Arrays.copyOf(acceptedIds, acceptedCount));
+            }
+            friendCount = 0;
+            acceptedCount = 0;
+        }
+    }
+}
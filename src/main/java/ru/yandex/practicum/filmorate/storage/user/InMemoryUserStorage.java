@@ -7,8 +7,13 @@ import ru.yandex.practicum.filmorate.exceptions.NotFoundException;
 import ru.yandex.practicum.filmorate.exceptions.UserAlreadyExistException;
 import ru.yandex.practicum.filmorate.model.FriendshipStatus;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.storage.EntityVersions;
+import ru.yandex.practicum.filmorate.storage.PrefixIndex;
+import ru.yandex.practicum.filmorate.storage.SortedIds;
 
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 @Slf4j
 @Component
@@ -16,6 +21,10 @@ import java.util.*;
 public class InMemoryUserStorage implements UserStorage {
     private final List<User> users = new ArrayList<>();
     private final Map<List<Integer>, FriendshipStatus> friendships = new HashMap<>();
+    // сколько пользователей добавили каждого в друзья
+    private final Map<Integer, Integer> followers = new HashMap<>();
+    private final PrefixIndex loginIndex = new PrefixIndex(id -> followers.getOrDefault(id, 0));
+    private final EntityVersions versions = new EntityVersions();
 
     @Override
     public User add(User user) {
@@ -27,13 +36,23 @@ public class InMemoryUserStorage implements UserStorage {
 
         log.debug("Текущий пользователь: {}", user);
         users.add(user);
+        loginIndex.put(user.getId(), user.getLogin());
+        versions.changed(user.getId());
         return user;
     }
 
+    @Override
+    public List<User> addAll(List<User> users) {
+        users.forEach(this::add);
+        return users;
+    }
+
     @Override
     public void remove(User user) {
         if (users.contains(user)) {
             users.remove(user);
+            loginIndex.remove(user.getId());
+            versions.changed(user.getId());
         } else {
             throw new NotFoundException("Такого пользователя не существует: " + user);
         }
@@ -49,6 +68,8 @@ public class InMemoryUserStorage implements UserStorage {
 
         log.debug("Текущий пользователь: {}", user);
         users.add(user);
+        loginIndex.put(user.getId(), user.getLogin());
+        versions.changed(user.getId());
         return user;
     }
 
@@ -58,21 +79,62 @@ public class InMemoryUserStorage implements UserStorage {
         return users;
     }
 
+    @Override
+    public List<User> getPage(int after, int limit) {
+        return users.stream()
+                .filter(u -> u.getId() > after)
+                .sorted(Comparator.comparingInt(User::getId))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void exportAll(Consumer<User> consumer) {
+        users.stream()
+                .sorted(Comparator.comparingInt(User::getId))
+                .forEach(consumer);
+    }
+
+    @Override
+    public long getVersion(int id) {
+        return versions.getVersion(id);
+    }
+
+    @Override
+    public long getVersion() {
+        return versions.getVersion();
+    }
+
     @Override
     public Optional<User> getUser(int id) {
         return Optional.ofNullable(users.stream().filter(u -> id == u.getId()).findFirst()
-                .orElseThrow(() -> new NotFoundException("Такого пользователя с id = " + id + " не существует.")));
+                .orElseThrow(() -> NotFoundException.withoutStackTrace("Такого пользователя с id = " + id
+                        + " не существует.")));
+    }
+
+    @Override
+    public List<User> getUsers(List<Integer> ids) {
+        Map<Integer, User> usersById = users.stream()
+                .collect(Collectors.toMap(User::getId, u -> u));
+
+        return ids.stream()
+                .map(usersById::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
     }
 
     @Override
     public void addFriend(User user, User friend) {
         if (!friendships.containsKey(List.of(user.getId(), friend.getId()))) {
             friendships.put(List.of(user.getId(), friend.getId()), FriendshipStatus.UNACCEPTED);
+            followers.merge(friend.getId(), 1, Integer::sum);
         }
         if (friendships.containsKey(List.of(friend.getId(), user.getId()))) {
             friendships.put(List.of(user.getId(), friend.getId()), FriendshipStatus.ACCEPTED);
             friendships.put(List.of(friend.getId(), user.getId()), FriendshipStatus.ACCEPTED);
         }
+        versions.changed(user.getId());
+        versions.changed(friend.getId());
     }
 
     @Override
@@ -80,7 +142,11 @@ public class InMemoryUserStorage implements UserStorage {
         if (friendships.containsKey(List.of(friend.getId(), user.getId()))) {
             friendships.put(List.of(friend.getId(), user.getId()), FriendshipStatus.UNACCEPTED);
         }
-        friendships.remove(List.of(user.getId(), friend.getId()));
+        if (friendships.remove(List.of(user.getId(), friend.getId())) != null) {
+            followers.merge(friend.getId(), -1, Integer::sum);
+        }
+        versions.changed(user.getId());
+        versions.changed(friend.getId());
     }
 
     @Override
@@ -96,4 +162,47 @@ public class InMemoryUserStorage implements UserStorage {
         }
         return friends;
     }
+
+    @Override
+    public List<User> getUserFriends(User user, FriendshipStatus status, int after, int limit) {
+        List<Integer> friendIds = friendships.entrySet().stream()
+                .filter(e -> e.getKey().get(0) == user.getId())
+                .filter(e -> status == null || e.getValue() == status)
+                .map(e -> e.getKey().get(1))
+                .filter(id -> id > after)
+                .sorted()
+                .limit(limit)
+                .collect(Collectors.toList());
+
+        return getUsers(friendIds);
+    }
+
+    @Override
+    public int[] getFriendIds(int userId, int limit) {
+        return friendships.keySet().stream()
+                .filter(couple -> couple.get(0) == userId)
+                .mapToInt(couple -> couple.get(1))
+                .sorted()
+                .limit(limit)
+                .toArray();
+    }
+
+    @Override
+    public List<User> getCommonFriends(User user, User otherUser) {
+        int[] commonIds = SortedIds.intersect(getFriendIds(user.getId(), Integer.MAX_VALUE),
+                getFriendIds(otherUser.getId(), Integer.MAX_VALUE));
+
+        return getUsers(Arrays.stream(commonIds).boxed().collect(Collectors.toList()));
+    }
+
+    @Override
+    public List<Integer> getFriendSuggestionIds(int userId, int friendsPerHop, int limit) {
+        return FriendGraph.suggestFriends(userId, id -> getFriendIds(id, Integer.MAX_VALUE), friendsPerHop, limit);
+    }
+
+    @Override
+    public List<User> suggest(String prefix, int limit) {
+        int[] ids = loginIndex.search(prefix, limit);
+        return getUsers(Arrays.stream(ids).boxed().collect(Collectors.toList()));
+    }
 }
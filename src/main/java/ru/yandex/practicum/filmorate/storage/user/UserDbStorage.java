@@ -2,63 +2,203 @@ package ru.yandex.practicum.filmorate.storage.user;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.jdbc.support.rowset.SqlRowSet;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
 import ru.yandex.practicum.filmorate.exceptions.NotFoundException;
 import ru.yandex.practicum.filmorate.model.FriendshipStatus;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.storage.EntityCache;
+import ru.yandex.practicum.filmorate.storage.EntityVersions;
+import ru.yandex.practicum.filmorate.storage.PrefixIndex;
+import ru.yandex.practicum.filmorate.storage.SingleFlight;
+import ru.yandex.practicum.filmorate.storage.SortedIds;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Slf4j
 @Component
 @Qualifier("Db")
 public class UserDbStorage implements UserStorage {
+    private static final int EXPORT_FETCH_SIZE = 500;
+    private static final int WRITE_BATCH_SIZE = 500;
+    private static final int IN_BATCH_SIZE = 500;
+    private static final String FRIENDS_SQL = "SELECT u.* FROM friends f JOIN users u ON u.id = f.friend_id\n" +
+            "WHERE f.user_id = ?";
+
     private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final FriendGraph friendGraph;
+    // сколько пользователей добавили каждого в друзья, по этому числу сортируются подсказки
+    private final ConcurrentHashMap<Integer, Integer> followers = new ConcurrentHashMap<>();
+    private final PrefixIndex loginIndex = new PrefixIndex(id -> followers.getOrDefault(id, 0));
+    private final EntityVersions versions = new EntityVersions();
+    private final EntityCache<User> cache;
+    private final SingleFlight<User> loads;
 
-    public UserDbStorage(JdbcTemplate jdbcTemplate) {
+    public UserDbStorage(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate, FriendGraph friendGraph,
+                         @Value("${filmorate.cache.users.max-size:10000}") int cacheSize,
+                         @Value("${filmorate.cache.users.absent-max-size:10000}") int absentCacheSize,
+                         @Value("${filmorate.cache.users.ttl-ms:60000}") long cacheTtlMs,
+                         @Value("${filmorate.coalescing.users.enabled:true}") boolean coalescing) {
         this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.friendGraph = friendGraph;
+        this.cache = new EntityCache<>(cacheSize, absentCacheSize, cacheTtlMs, UserDbStorage::copy);
+        this.loads = new SingleFlight<>(coalescing, UserDbStorage::copy);
+
+        if (friendGraph.isEnabled()) {
+            loadFriendGraph();
+        }
+        loadLoginIndex();
+    }
+
+    // индекс подсказок по логинам и число подписчиков восстанавливаются из таблиц при старте
+    private void loadLoginIndex() {
+        followers.clear();
+        jdbcTemplate.query("SELECT friend_id, COUNT(*) AS followers FROM friends GROUP BY friend_id",
+                (RowCallbackHandler) rs -> followers.put(rs.getInt("friend_id"), rs.getInt("followers")));
+
+        Map<Integer, String> logins = new HashMap<>();
+        jdbcTemplate.query("SELECT id, login FROM users",
+                (RowCallbackHandler) rs -> logins.put(rs.getInt("id"), rs.getString("login")));
+        loginIndex.rebuild(logins);
+
+        log.info("Индекс логинов пользователей загружен");
+    }
+
+    private void loadFriendGraph() {
+        FriendGraph.Loader loader = friendGraph.loader();
+
+        jdbcTemplate.query("SELECT user_id, friend_id, friendship_status FROM friends ORDER BY user_id, friend_id",
+                (RowCallbackHandler) rs -> loader.add(rs.getInt("user_id"), rs.getInt("friend_id"),
+                        FriendshipStatus.valueOf(rs.getString("friendship_status")) == FriendshipStatus.ACCEPTED));
+        loader.finish();
+
+        log.info("Граф дружбы загружен в память");
     }
 
     @Override
     public User add(User user) {
-        jdbcTemplate.update(
-                "INSERT INTO users (email, login, name, birthday) VALUES (?, ?, ?, ?)",
-                user.getEmail(), user.getLogin(), user.getName(), user.getBirthday()
-        );
+        KeyHolder keyHolder = new GeneratedKeyHolder();
+        jdbcTemplate.update(con -> {
+            PreparedStatement ps = con.prepareStatement(
+                    "INSERT INTO users (email, login, name, birthday) VALUES (?, ?, ?, ?)",
+                    new String[]{"id"});
+            ps.setString(1, user.getEmail());
+            ps.setString(2, user.getLogin());
+            ps.setString(3, user.getName());
+            ps.setObject(4, user.getBirthday());
+            return ps;
+        }, keyHolder);
 
-        setUserId(user);
+        user.setId(Objects.requireNonNull(keyHolder.getKey()).intValue());
+        loginIndex.put(user.getId(), user.getLogin());
+        loads.forget(user.getId());
+        cache.invalidate(user.getId());
+        versions.changed(user.getId());
 
         log.debug("Текущий пользователь: {}", user);
         return user;
     }
 
+    @Override
+    public List<User> addAll(List<User> users) {
+        for (int from = 0; from < users.size(); from += WRITE_BATCH_SIZE) {
+            List<User> batch = users.subList(from, Math.min(from + WRITE_BATCH_SIZE, users.size()));
+            transactionTemplate.executeWithoutResult(status -> insertUsers(batch));
+            batch.forEach(user -> {
+                loginIndex.put(user.getId(), user.getLogin());
+                loads.forget(user.getId());
+                cache.invalidate(user.getId());
+                versions.changed(user.getId());
+            });
+        }
+
+        log.debug("Добавлено пользователей: {}", users.size());
+
+        return users;
+    }
+
+    private void insertUsers(List<User> users) {
+        List<Integer> ids = jdbcTemplate.execute((ConnectionCallback<List<Integer>>) con -> {
+            try (PreparedStatement ps = con.prepareStatement(
+                    "INSERT INTO users (email, login, name, birthday) VALUES (?, ?, ?, ?)",
+                    new String[]{"id"})) {
+                for (User user : users) {
+                    ps.setString(1, user.getEmail());
+                    ps.setString(2, user.getLogin());
+                    ps.setString(3, user.getName());
+                    ps.setObject(4, user.getBirthday());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+
+                List<Integer> keys = new ArrayList<>(users.size());
+                try (ResultSet rs = ps.getGeneratedKeys()) {
+                    while (rs.next()) {
+                        keys.add(rs.getInt(1));
+                    }
+                }
+                return keys;
+            }
+        });
+
+        for (int i = 0; i < users.size(); i++) {
+            users.get(i).setId(ids.get(i));
+        }
+    }
+
     @Override
     public void remove(User user) {
-        if (getUser(user.getId()).isPresent()) {
-            jdbcTemplate.update(
-                    "DELETE FROM users WHERE id = ?", user.getId()
-            );
-        } else {
+        if (jdbcTemplate.update("DELETE FROM users WHERE id = ?", user.getId()) == 0) {
             throw new NotFoundException("Такого пользователя не существует: " + user);
         }
+
+        loginIndex.remove(user.getId());
+        followers.remove(user.getId());
+        loads.forget(user.getId());
+        cache.invalidate(user.getId());
+        versions.changed(user.getId());
     }
 
     @Override
     public User update(User user) {
-        if (getUser(user.getId()).isPresent()) {
-            jdbcTemplate.update(
-                    "UPDATE users SET email = ?, login = ?, name = ?, birthday = ? WHERE id = ?",
-                    user.getEmail(), user.getLogin(), user.getName(), user.getBirthday(), user.getId()
-            );
-        } else {
+        int updated = jdbcTemplate.update(
+                "UPDATE users SET email = ?, login = ?, name = ?, birthday = ? WHERE id = ?",
+                user.getEmail(), user.getLogin(), user.getName(), user.getBirthday(), user.getId()
+        );
+
+        if (updated == 0) {
             throw new NotFoundException("Такого пользователя не существует: " + user);
         }
 
+        loginIndex.put(user.getId(), user.getLogin());
+        loads.forget(user.getId());
+        cache.invalidate(user.getId());
+        versions.changed(user.getId());
+
         log.debug("Текущий пользователь: {}", user);
 
         return user;
@@ -71,8 +211,50 @@ public class UserDbStorage implements UserStorage {
         return jdbcTemplate.query(sql, (rs, rowNum) -> makeUser(rs));
     }
 
+    @Override
+    public List<User> getPage(int after, int limit) {
+        String sql = "SELECT * FROM users WHERE id > ? ORDER BY id LIMIT ?";
+
+        return jdbcTemplate.query(sql, (rs, rowNum) -> makeUser(rs), after, limit);
+    }
+
+    @Override
+    public void exportAll(Consumer<User> consumer) {
+        PreparedStatementCreator statement = con -> {
+            PreparedStatement ps = con.prepareStatement("SELECT * FROM users ORDER BY id");
+            ps.setFetchSize(EXPORT_FETCH_SIZE);
+            return ps;
+        };
+
+        try (Stream<User> users = jdbcTemplate.queryForStream(statement, (rs, rowNum) -> makeUser(rs))) {
+            users.forEach(consumer);
+        }
+    }
+
+    @Override
+    public long getVersion(int id) {
+        return versions.getVersion(id);
+    }
+
+    @Override
+    public long getVersion() {
+        return versions.getVersion();
+    }
+
     @Override
     public Optional<User> getUser(int id) {
+        return cache.get(id, userId -> loads.load(userId, this::findUser));
+    }
+
+    public EntityCache.Stats getCacheStats() {
+        return cache.getStats();
+    }
+
+    private static User copy(User user) {
+        return new User(user.getId(), user.getEmail(), user.getLogin(), user.getName(), user.getBirthday());
+    }
+
+    private Optional<User> findUser(int id) {
         SqlRowSet userRows = jdbcTemplate.queryForRowSet("SELECT * FROM users WHERE id = ?", id);
 
         if (userRows.next()) {
@@ -86,24 +268,30 @@ public class UserDbStorage implements UserStorage {
 
             return Optional.of(user);
         } else {
-            log.info("Пользователь с идентификатором {} не найден.", id);
+            log.debug("Пользователь с идентификатором {} не найден.", id);
             return Optional.empty();
         }
     }
 
-    private void setUserId(User user) {
-        SqlRowSet userRows = jdbcTemplate.queryForRowSet("SELECT * FROM users WHERE login = ?", user.getLogin());
-
-        // обрабатываем результат выполнения запроса
-        if (userRows.next()) {
-            int id = userRows.getInt("id");
-            user.setId(id);
+    @Override
+    public List<User> getUsers(List<Integer> ids) {
+        Map<Integer, User> users = new HashMap<>();
 
-            log.info("Найден id - {} для пользователя {}", id, user);
+        for (int from = 0; from < ids.size(); from += IN_BATCH_SIZE) {
+            List<Integer> batch = ids.subList(from, Math.min(from + IN_BATCH_SIZE, ids.size()));
+            String placeholders = String.join(", ", Collections.nCopies(batch.size(), "?"));
 
-        } else {
-            log.info("Пользователь с логином {} не найден.", user.getLogin());
+            jdbcTemplate.query("SELECT * FROM users WHERE id IN (" + placeholders + ")",
+                    (RowCallbackHandler) rs -> {
+                        User user = makeUser(rs);
+                        users.put(user.getId(), user);
+                    }, batch.toArray());
         }
+
+        return ids.stream()
+                .map(users::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
     }
 
     private User makeUser(ResultSet rs) throws SQLException {
@@ -126,6 +314,10 @@ public class UserDbStorage implements UserStorage {
             jdbcTemplate.update(
                     "INSERT INTO friends (user_id, friend_id) VALUES (?, ?)", user.getId(), friend.getId()
             );
+            followers.merge(friend.getId(), 1, Integer::sum);
+            if (friendGraph.isEnabled()) {
+                friendGraph.addFriend(user.getId(), friend.getId(), false);
+            }
         }
 
         // уже есть дружба непринятая friend - user
@@ -141,7 +333,13 @@ public class UserDbStorage implements UserStorage {
                     "UPDATE friends SET friendship_status = 'ACCEPTED', last_updated = NOW() WHERE user_id = ? AND friend_id = ?",
                     user.getId(), friend.getId()
             );
+            if (friendGraph.isEnabled()) {
+                friendGraph.setAccepted(friend.getId(), user.getId(), true);
+                friendGraph.setAccepted(user.getId(), friend.getId(), true);
+            }
         }
+        versions.changed(user.getId());
+        versions.changed(friend.getId());
     }
 
     @Override
@@ -158,6 +356,10 @@ public class UserDbStorage implements UserStorage {
                     "DELETE FROM friends WHERE user_id = ? AND friend_id = ?",
                     user.getId(), friend.getId()
             );
+            removeFollower(friend.getId());
+            if (friendGraph.isEnabled()) {
+                friendGraph.removeFriend(user.getId(), friend.getId());
+            }
         }
 
         // если была одобренная дружба friend - user
@@ -172,14 +374,103 @@ public class UserDbStorage implements UserStorage {
                     "UPDATE friends SET last_updated = NOW() WHERE user_id = ? AND friend_id = ?",
                     friend.getId(), user.getId()
             );
+            if (friendGraph.isEnabled()) {
+                friendGraph.setAccepted(friend.getId(), user.getId(), false);
+            }
         }
+        versions.changed(user.getId());
+        versions.changed(friend.getId());
+    }
+
+    private void removeFollower(int userId) {
+        followers.computeIfPresent(userId, (id, count) -> count > 1 ? count - 1 : null);
     }
 
     @Override
     public List<User> getUserFriends(User user) {
-        String sql = "SELECT * FROM friends WHERE user_id = ?";
-
-        return jdbcTemplate.query(sql, (rs, rowNum) -> getUser(rs.getInt("friend_id")).orElse(null),
+        return jdbcTemplate.query(FRIENDS_SQL + " ORDER BY f.friend_id", (rs, rowNum) -> makeUser(rs),
                 user.getId());
     }
+
+    @Override
+    public List<User> getUserFriends(User user, FriendshipStatus status, int after, int limit) {
+        if (friendGraph.isEnabled()) {
+            int[] friendIds = friendGraph.getFriends(user.getId(), status);
+            int from = SortedIds.indexAfter(friendIds, after);
+            int to = (int) Math.min((long) from + limit, friendIds.length);
+
+            return getUsers(Arrays.stream(friendIds, from, to).boxed().collect(Collectors.toList()));
+        }
+
+        // порядок по friend_id совпадает с первичным ключом friends, страница читается по индексу
+        if (status == null) {
+            return jdbcTemplate.query(FRIENDS_SQL + " AND f.friend_id > ? ORDER BY f.friend_id LIMIT ?",
+                    (rs, rowNum) -> makeUser(rs), user.getId(), after, limit);
+        }
+
+        return jdbcTemplate.query(FRIENDS_SQL + " AND f.friendship_status = ? AND f.friend_id > ? " +
+                        "ORDER BY f.friend_id LIMIT ?",
+                (rs, rowNum) -> makeUser(rs), user.getId(), status.name(), after, limit);
+    }
+
+    @Override
+    public int[] getFriendIds(int userId, int limit) {
+        if (friendGraph.isEnabled()) {
+            int[] friendIds = friendGraph.getFriends(userId);
+            return friendIds.length <= limit ? friendIds : Arrays.copyOf(friendIds, limit);
+        }
+
+        return jdbcTemplate.queryForList("SELECT friend_id FROM friends WHERE user_id = ? ORDER BY friend_id LIMIT ?",
+                        Integer.class, userId, limit).stream()
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    @Override
+    public List<User> getCommonFriends(User user, User otherUser) {
+        if (friendGraph.isEnabled()) {
+            int[] commonIds = friendGraph.getCommonFriends(user.getId(), otherUser.getId());
+            return getUsers(Arrays.stream(commonIds).boxed().collect(Collectors.toList()));
+        }
+
+        // для каждой дружбы первого пользователя проверяем пару во втором по первичному ключу friends
+        String sql = "SELECT u.* FROM friends f1\n" +
+                "JOIN friends f2 ON f2.user_id = ? AND f2.friend_id = f1.friend_id\n" +
+                "JOIN users u ON u.id = f1.friend_id\n" +
+                "WHERE f1.user_id = ?\n" +
+                "ORDER BY f1.friend_id";
+
+        return jdbcTemplate.query(sql, (rs, rowNum) -> makeUser(rs), otherUser.getId(), user.getId());
+    }
+
+    @Override
+    public List<Integer> getFriendSuggestionIds(int userId, int friendsPerHop, int limit) {
+        if (friendGraph.isEnabled()) {
+            return FriendGraph.suggestFriends(userId, friendGraph::getFriends, friendsPerHop, limit);
+        }
+
+        // оба шага обхода и подсчет общих друзей - один запрос вместо запроса на каждого друга;
+        // rn нумерует друзей каждого друга, чтобы брать не больше friendsPerHop с каждого
+        String sql = "SELECT candidate_id FROM (\n" +
+                "    SELECT f2.friend_id AS candidate_id,\n" +
+                "        ROW_NUMBER() OVER (PARTITION BY f2.user_id ORDER BY f2.friend_id) AS rn\n" +
+                "    FROM (SELECT friend_id FROM friends WHERE user_id = ? ORDER BY friend_id LIMIT ?) f1\n" +
+                "    JOIN friends f2 ON f2.user_id = f1.friend_id\n" +
+                ") hop\n" +
+                "WHERE rn <= ? AND candidate_id <> ?\n" +
+                "AND NOT EXISTS (SELECT 1 FROM friends f3\n" +
+                "    WHERE f3.user_id = ? AND f3.friend_id = hop.candidate_id)\n" +
+                "GROUP BY candidate_id\n" +
+                "ORDER BY COUNT(*) DESC, candidate_id\n" +
+                "LIMIT ?";
+
+        return jdbcTemplate.queryForList(sql, Integer.class, userId, friendsPerHop, friendsPerHop, userId, userId,
+                limit);
+    }
+
+    @Override
+    public List<User> suggest(String prefix, int limit) {
+        int[] ids = loginIndex.search(prefix, limit);
+        return getUsers(Arrays.stream(ids).boxed().collect(Collectors.toList()));
+    }
 }
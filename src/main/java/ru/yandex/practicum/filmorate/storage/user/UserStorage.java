@@ -1,24 +1,60 @@
 package ru.yandex.practicum.filmorate.storage.user;
 
+import ru.yandex.practicum.filmorate.model.FriendshipStatus;
 import ru.yandex.practicum.filmorate.model.User;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 public interface UserStorage {
     User add(User user);
 
+    // добавляет пользователей пачкой и проставляет им id в порядке списка
+    List<User> addAll(List<User> users);
+
     void remove(User user);
 
     User update(User user);
 
     List<User> getAll();
 
+    // пользователи с id больше after по возрастанию id, не больше limit штук
+    List<User> getPage(int after, int limit);
+
+    // передает всех пользователей по одному, не загружая весь список в память
+    void exportAll(Consumer<User> consumer);
+
     Optional<User> getUser(int id);
 
+    // версия пользователя для ETag, меняется при каждом изменении пользователя и его друзей
+    long getVersion(int id);
+
+    // версия списка пользователей для ETag, меняется при любом изменении пользователей и дружб
+    long getVersion();
+
+    // пользователи в порядке переданных id одним запросом, несуществующие id пропускаются
+    List<User> getUsers(List<Integer> ids);
+
     void addFriend(User user, User friend);
 
     void removeFriend(User user, User friend);
 
     List<User> getUserFriends(User user);
+
+    // друзья с id больше after по возрастанию id, не больше limit штук; status == null - с любым статусом
+    List<User> getUserFriends(User user, FriendshipStatus status, int after, int limit);
+
+    // id друзей пользователя по возрастанию, не больше limit штук
+    int[] getFriendIds(int userId, int limit);
+
+    // общие друзья двух пользователей по возрастанию id
+    List<User> getCommonFriends(User user, User otherUser);
+
+    // id кандидатов в друзья: друзья первых friendsPerHop друзей пользователя (у каждого тоже первые friendsPerHop),
+    // кроме самого пользователя и его друзей; по убыванию числа общих друзей, при равенстве по возрастанию id
+    List<Integer> getFriendSuggestionIds(int userId, int friendsPerHop, int limit);
+
+    // пользователи, логин которых начинается с prefix, сначала те, кого больше всего добавили в друзья
+    List<User> suggest(String prefix, int limit);
 }
@@ -1,11 +0,0 @@
-DELETE FROM RATINGS;
-INSERT INTO RATINGS (NAME) VALUES ('G'), ('PG'), ('PG-13'), ('R'), ('NC-17');
-
-DELETE FROM genres;
-INSERT INTO genres (NAME) VALUES
-    ('Комедия'),
-    ('Драма'),
-    ('Мультфильм'),
-    ('Триллер'),
-    ('Документальный'),
-    ('Боевик');
\ No newline at end of file
@@ -1,12 +1,3 @@
-DROP TABLE IF EXISTS film_genre;
-DROP TABLE IF EXISTS film_rating;
-DROP TABLE IF EXISTS genres;
-DROP TABLE IF EXISTS likes;
-DROP TABLE IF EXISTS films;
-DROP TABLE IF EXISTS ratings;
-DROP TABLE IF EXISTS friends;
-DROP TABLE IF EXISTS users;
-
 CREATE TABLE IF NOT EXISTS users(
 	id INTEGER NOT NULL GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
 	email CHARACTER VARYING(50) NOT NULL,
@@ -67,4 +58,4 @@ CREATE TABLE IF NOT EXISTS film_rating(
 	rating_id INTEGER NOT NULL REFERENCES ratings(id),
 	last_updated TIMESTAMP DEFAULT NOW(),
 	PRIMARY KEY (film_id, rating_id)
-);
\ No newline at end of file
+);
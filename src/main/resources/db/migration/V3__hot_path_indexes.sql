@@ -0,0 +1,3 @@
+-- likes.film_id и friends.friend_id уже проиндексированы внешними ключами из V1, отдельные индексы не нужны
+CREATE INDEX IF NOT EXISTS idx_users_login ON users(login);
+CREATE INDEX IF NOT EXISTS idx_films_name ON films(name);
@@ -0,0 +1,3 @@
+CREATE INDEX IF NOT EXISTS idx_film_genre_genre_id ON film_genre(genre_id, film_id);
+CREATE INDEX IF NOT EXISTS idx_film_rating_rating_id ON film_rating(rating_id, film_id);
+CREATE INDEX IF NOT EXISTS idx_films_release_date ON films(release_date, id);
@@ -1,31 +1,90 @@
 package ru.yandex.practicum.filmorate;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.jdbc.JdbcTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.context.request.ServletWebRequest;
+import ru.yandex.practicum.filmorate.controller.FilmController;
+import ru.yandex.practicum.filmorate.exceptions.NotFoundException;
+import ru.yandex.practicum.filmorate.exceptions.ValidationException;
+import ru.yandex.practicum.filmorate.model.BatchResult;
 import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.FilmFilter;
 import ru.yandex.practicum.filmorate.model.Genre;
 import ru.yandex.practicum.filmorate.model.Mpa;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.service.FilmService;
+import ru.yandex.practicum.filmorate.storage.EntityCache;
+import ru.yandex.practicum.filmorate.storage.EntityVersions;
+import ru.yandex.practicum.filmorate.storage.GenreStorage;
+import ru.yandex.practicum.filmorate.storage.MpaStorage;
+import ru.yandex.practicum.filmorate.storage.SingleFlight;
 import ru.yandex.practicum.filmorate.storage.film.FilmDbStorage;
+import ru.yandex.practicum.filmorate.storage.film.FilmStorage;
+import ru.yandex.practicum.filmorate.storage.film.FilmTrending;
+import ru.yandex.practicum.filmorate.storage.film.InMemoryFilmStorage;
+import ru.yandex.practicum.filmorate.storage.film.LikeSketch;
+import ru.yandex.practicum.filmorate.storage.film.LikeWriteBuffer;
+import ru.yandex.practicum.filmorate.storage.user.FriendGraph;
 import ru.yandex.practicum.filmorate.storage.user.UserDbStorage;
 
+import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+import static org.assertj.core.api.AssertionsForClassTypes.assertThatThrownBy;
 
+@Slf4j
 @JdbcTest // указываем, о необходимости подготовить бины для работы с БД
 @RequiredArgsConstructor(onConstructor_ = @Autowired)
 public class FilmDbStorageTest {
     private final JdbcTemplate jdbcTemplate;
+    private final PlatformTransactionManager transactionManager;
+    private final DataSource dataSource;
 
     @Test
     public void testFindFilmById() {
         // Подготавливаем данные для теста
-        FilmDbStorage filmStorage = new FilmDbStorage(jdbcTemplate);
+        FilmDbStorage filmStorage = createFilmStorage(jdbcTemplate);
 
         Film newFilm = new Film(1, "Dune", "The most boring movie ever.",
                 LocalDate.of(1990, 1, 1), 666, new Mpa(1, null),
@@ -45,7 +104,7 @@ public class FilmDbStorageTest {
     @Test
     public void testUpdateFilm() {
         // Подготавливаем данные для теста
-        FilmDbStorage filmStorage = new FilmDbStorage(jdbcTemplate);
+        FilmDbStorage filmStorage = createFilmStorage(jdbcTemplate);
 
         Film newFilm = new Film(1, "Dune", "The most boring movie ever.",
                 LocalDate.of(1990, 1, 1), 666, new Mpa(1, null),
@@ -70,7 +129,7 @@ public class FilmDbStorageTest {
     @Test
     public void testGetAllFilms() {
         // Подготавливаем данные для теста
-        FilmDbStorage filmStorage = new FilmDbStorage(jdbcTemplate);
+        FilmDbStorage filmStorage = createFilmStorage(jdbcTemplate);
 
         Film newFilm1 = new Film(1, "Dune", "The most boring movie ever.",
                 LocalDate.of(1990, 1, 1), 666, new Mpa(1, null),
@@ -95,7 +154,7 @@ public class FilmDbStorageTest {
     @Test
     public void testAddLike() {
         // Подготавливаем данные для теста
-        UserDbStorage userStorage = new UserDbStorage(jdbcTemplate);
+        UserDbStorage userStorage = createUserStorage();
 
         User newUser1 = new User(1, "user@email.ru", "vanya123", "Ivan Petrov",
                 LocalDate.of(1990, 1, 1));
@@ -105,7 +164,7 @@ public class FilmDbStorageTest {
                 LocalDate.of(1991, 2, 3));
         userStorage.add(newUser2);
 
-        FilmDbStorage filmStorage = new FilmDbStorage(jdbcTemplate);
+        FilmDbStorage filmStorage = createFilmStorage(jdbcTemplate);
 
         Film newFilm1 = new Film(1, "Dune", "The most boring movie ever.",
                 LocalDate.of(1990, 1, 1), 666, new Mpa(1, null),
@@ -133,7 +192,7 @@ public class FilmDbStorageTest {
     @Test
     public void testRemoveLike() {
         // Подготавливаем данные для теста
-        UserDbStorage userStorage = new UserDbStorage(jdbcTemplate);
+        UserDbStorage userStorage = createUserStorage();
 
         User newUser1 = new User(1, "user@email.ru", "vanya123", "Ivan Petrov",
                 LocalDate.of(1990, 1, 1));
@@ -145,9 +204,9 @@ public class FilmDbStorageTest {
 
         User newUser3 = new User(3, "user@email222.ru", "vanya123456", "Ivan0 Petrov",
                 LocalDate.of(1991, 2, 3));
-        userStorage.add(newUser2);
+        userStorage.add(newUser3);
 
-        FilmDbStorage filmStorage = new FilmDbStorage(jdbcTemplate);
+        FilmDbStorage filmStorage = createFilmStorage(jdbcTemplate);
 
         Film newFilm1 = new Film(1, "Dune", "The most boring movie ever.",
                 LocalDate.of(1990, 1, 1), 666, new Mpa(1, null),
@@ -174,4 +233,1322 @@ public class FilmDbStorageTest {
                 .usingRecursiveComparison() // проверяем, что значения полей нового
                 .isEqualTo(List.of(newFilm2, newFilm1));        // и сохраненного пользователя - совпадают
     }
+
+    @Test
+    public void testGetAllQueryCountDoesNotDependOnCatalogSize() {
+        // Подготавливаем данные для теста
+        StatementCounter counter = new StatementCounter(dataSource);
+        FilmDbStorage filmStorage = createFilmStorage(counter.jdbcTemplate());
+
+        addFilms(filmStorage, 3);
+        counter.reset();
+        List<Film> smallCatalog = filmStorage.getAll();
+        int smallCatalogStatements = counter.getCount();
+
+        addFilms(filmStorage, 30);
+        counter.reset();
+        List<Film> bigCatalog = filmStorage.getAll();
+        int bigCatalogStatements = counter.getCount();
+
+        // проверяем утверждения
+        assertThat(smallCatalog.size()).isEqualTo(3);
+        assertThat(bigCatalog.size()).isEqualTo(33);
+        assertThat(bigCatalog.get(32).getGenres().size()).isEqualTo(2);
+        assertThat(bigCatalog.get(32).getMpa()).isEqualTo(new Mpa(4, "R"));
+        assertThat(bigCatalogStatements).isEqualTo(smallCatalogStatements);
+        assertThat(bigCatalogStatements).isEqualTo(1);
+    }
+
+    @Test
+    public void testGetNFilmsQueryCountDoesNotDependOnCount() {
+        // Подготавливаем данные для теста
+        StatementCounter counter = new StatementCounter(dataSource);
+        FilmDbStorage filmStorage = createFilmStorage(counter.jdbcTemplate());
+        UserDbStorage userStorage = createUserStorage();
+
+        User user = new User(1, "user@email.ru", "vanya123", "Ivan Petrov",
+                LocalDate.of(1990, 1, 1));
+        userStorage.add(user);
+
+        for (Film film : addFilms(filmStorage, 20)) {
+            filmStorage.addLike(film.getId(), user.getId());
+        }
+
+        counter.reset();
+        List<Film> fewFilms = filmStorage.getNFilms(2);
+        int fewFilmsStatements = counter.getCount();
+
+        counter.reset();
+        List<Film> manyFilms = filmStorage.getNFilms(20);
+        int manyFilmsStatements = counter.getCount();
+
+        // проверяем утверждения
+        assertThat(fewFilms.size()).isEqualTo(2);
+        assertThat(manyFilms.size()).isEqualTo(20);
+        assertThat(manyFilmsStatements).isEqualTo(fewFilmsStatements);
+    }
+
+    @Test
+    public void testWriteStatementCount() {
+        // Подготавливаем данные для теста
+        StatementCounter counter = new StatementCounter(dataSource);
+        FilmDbStorage filmStorage = createFilmStorage(counter.jdbcTemplate());
+
+        Film newFilm = new Film(0, "Dune", "The most boring movie ever.",
+                LocalDate.of(1990, 1, 1), 666, new Mpa(1, null),
+                List.of(new Genre(1, null), new Genre(3, null), new Genre(6, null)));
+
+        // вызываем тестируемые методы
+        counter.reset();
+        filmStorage.add(newFilm);
+        int addStatements = counter.getCount();
+
+        Film updatedFilm = new Film(newFilm.getId(), "Dune", "The most boring movie ever 2.",
+                LocalDate.of(1990, 1, 1), 6666, new Mpa(4, null),
+                List.of(new Genre(2, null), new Genre(4, null), new Genre(5, null)));
+        counter.reset();
+        filmStorage.update(updatedFilm);
+        int updateStatements = counter.getCount();
+
+        counter.reset();
+        filmStorage.remove(updatedFilm);
+        int removeStatements = counter.getCount();
+
+        // проверяем утверждения: фильм, его рейтинг, все жанры одним пакетом
+        assertThat(addStatements).isEqualTo(3);
+        // фильм, удаление и вставка рейтинга, удаление и пакетная вставка жанров
+        assertThat(updateStatements).isEqualTo(5);
+        assertThat(removeStatements).isEqualTo(3);
+        assertThat(filmStorage.getFilm(newFilm.getId()).isPresent()).isFalse();
+    }
+
+    @Test
+    public void testAddFilmsWithSameName() {
+        // Подготавливаем данные для теста
+        FilmDbStorage filmStorage = createFilmStorage(jdbcTemplate);
+
+        Film newFilm1 = new Film(0, "Dune", "The most boring movie ever.",
+                LocalDate.of(1990, 1, 1), 666, new Mpa(1, null), List.of());
+        Film newFilm2 = new Film(0, "Dune", "Remake.",
+                LocalDate.of(2021, 1, 1), 155, new Mpa(3, null), List.of());
+
+        // вызываем тестируемый метод
+        filmStorage.add(newFilm1);
+        filmStorage.add(newFilm2);
+
+        // проверяем утверждения
+        assertThat(newFilm1.getId()).isNotEqualTo(newFilm2.getId());
+        assertThat(filmStorage.getFilm(newFilm2.getId()).orElse(null))
+                .usingRecursiveComparison()
+                .isEqualTo(newFilm2);
+    }
+
+    @Test
+    public void testPopularFilmsMatchSqlAggregation() {
+        // Подготавливаем данные для теста
+        FilmDbStorage filmStorage = createFilmStorage(jdbcTemplate);
+        UserDbStorage userStorage = createUserStorage();
+
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            User user = new User(0, "user" + i + "@email.ru", "login" + i, "User " + i,
+                    LocalDate.of(1990, 1, 1));
+            users.add(userStorage.add(user));
+        }
+        List<Film> films = addFilms(filmStorage, 5);
+
+        // фильм с индексом i получает i + 1 лайк, затем часть лайков убираем
+        for (int i = 0; i < films.size(); i++) {
+            for (int j = 0; j <= i; j++) {
+                filmStorage.addLike(films.get(i).getId(), users.get(j).getId());
+            }
+        }
+        filmStorage.addLike(films.get(0).getId(), users.get(0).getId());
+        filmStorage.removeLike(films.get(4).getId(), users.get(0).getId());
+        filmStorage.removeLike(films.get(4).getId(), users.get(1).getId());
+        filmStorage.removeLike(films.get(4).getId(), users.get(2).getId());
+        filmStorage.removeLike(films.get(1).getId(), users.get(5).getId());
+
+        List<Integer> sqlTop = jdbcTemplate.queryForList("SELECT film_id FROM likes " +
+                "GROUP BY film_id ORDER BY COUNT(*) DESC, film_id LIMIT 10", Integer.class);
+
+        // вызываем тестируемый метод
+        List<Integer> top = filmStorage.getNFilms(10).stream()
+                .map(Film::getId)
+                .collect(Collectors.toList());
+        List<Integer> rebuiltTop = createFilmStorage(jdbcTemplate).getNFilms(10).stream()
+                .map(Film::getId)
+                .collect(Collectors.toList());
+
+        // проверяем утверждения
+        assertThat(top).isEqualTo(sqlTop);
+        assertThat(rebuiltTop).isEqualTo(sqlTop);
+    }
+
+    @Test
+    public void testGenreAndYearChartsMatchSqlAggregation() {
+        // Подготавливаем данные для теста: фильмы трех лет с разными жанрами и случайные лайки
+        FilmDbStorage filmStorage = createFilmStorage(jdbcTemplate);
+        UserDbStorage userStorage = createUserStorage();
+        Random random = new Random(42);
+
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            users.add(userStorage.add(new User(0, "user" + i + "@email.ru", "login" + i, "User " + i,
+                    LocalDate.of(1990, 1, 1))));
+        }
+        List<Film> films = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            films.add(filmStorage.add(new Film(0, "Film " + i, "Description " + i,
+                    LocalDate.of(2000 + i % 3, 1, 1), 100, new Mpa(1, null),
+                    List.of(new Genre(1 + i % 4, null), new Genre(5 + i % 2, null)))));
+        }
+        for (Film film : films) {
+            for (User user : users) {
+                if (random.nextInt(3) == 0) {
+                    filmStorage.addLike(film.getId(), user.getId());
+                }
+            }
+        }
+        filmStorage.removeLike(films.get(0).getId(), users.get(0).getId());
+        // фильм переходит в другой жанр и год вместе со своими лайками
+        Film moved = films.get(1);
+        filmStorage.update(new Film(moved.getId(), moved.getName(), moved.getDescription(),
+                LocalDate.of(2002, 6, 1), 100, new Mpa(1, null), List.of(new Genre(3, null))));
+
+        // вызываем тестируемый метод и проверяем утверждения
+        FilmDbStorage rebuiltStorage = createFilmStorage(jdbcTemplate);
+        for (Integer genreId : Arrays.asList(null, 1, 3, 5, 6)) {
+            for (Integer year : Arrays.asList(null, 2000, 2002)) {
+                if (genreId == null && year == null) {
+                    continue;
+                }
+                List<Integer> sqlTop = sqlChart(genreId, year);
+
+                assertThat(chartIds(filmStorage, genreId, year)).isEqualTo(sqlTop);
+                assertThat(chartIds(rebuiltStorage, genreId, year)).isEqualTo(sqlTop);
+            }
+        }
+    }
+
+    private List<Integer> chartIds(FilmDbStorage filmStorage, Integer genreId, Integer year) {
+        return filmStorage.getNFilms(5, genreId, year).stream()
+                .map(Film::getId)
+                .collect(Collectors.toList());
+    }
+
+    private List<Integer> sqlChart(Integer genreId, Integer year) {
+        return jdbcTemplate.queryForList("SELECT l.film_id FROM likes l\n" +
+                "JOIN films f ON f.id = l.film_id\n" +
+                "WHERE (CAST(? AS INTEGER) IS NULL OR EXISTS " +
+                "(SELECT 1 FROM film_genre fg WHERE fg.film_id = l.film_id AND fg.genre_id = ?))\n" +
+                "AND (CAST(? AS INTEGER) IS NULL OR EXTRACT(YEAR FROM f.release_date) = ?)\n" +
+                "GROUP BY l.film_id ORDER BY COUNT(*) DESC, l.film_id LIMIT 5",
+                Integer.class, genreId, genreId, year, year);
+    }
+
+    @Test
+    public void testTrending() {
+        // Подготавливаем данные для теста
+        FilmDbStorage filmStorage = createFilmStorage(jdbcTemplate);
+        UserDbStorage userStorage = createUserStorage();
+        List<Film> films = addFilms(filmStorage, 3);
+        List<User> users = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            users.add(userStorage.add(new User(0, "user" + i + "@email.ru", "login" + i, "User " + i,
+                    LocalDate.of(1990, 1, i))));
+        }
+        int film1 = films.get(0).getId();
+        int film2 = films.get(1).getId();
+        int film3 = films.get(2).getId();
+        filmStorage.addLike(film1, users.get(0).getId());
+        filmStorage.addLike(film1, users.get(1).getId());
+        for (User user : users) {
+            filmStorage.addLike(film2, user.getId());
+            filmStorage.addLike(film3, user.getId());
+        }
+        // снятые лайки вычитаются с тем же весом, с которым были добавлены
+        filmStorage.removeLike(film3, users.get(1).getId());
+        filmStorage.removeLike(film3, users.get(2).getId());
+
+        // вызываем тестируемые методы
+        List<Integer> trending = trendingIds(filmStorage, Duration.ofHours(24));
+        // после перезапуска счетчики восстанавливаются по likes.last_updated
+        List<Integer> trendingAfterRestart = trendingIds(createFilmStorage(jdbcTemplate), Duration.ofHours(24));
+
+        // проверяем утверждения
+        assertThat(trending).isEqualTo(List.of(film2, film1, film3));
+        assertThat(trendingAfterRestart).isEqualTo(trending);
+        assertThatThrownBy(() -> filmStorage.getTrending(Duration.ofHours(2), 10))
+                .isInstanceOf(ValidationException.class);
+    }
+
+    @Test
+    public void testTrendingDecay() {
+        // Подготавливаем данные для теста: у первого фильма три лайка двое суток назад, у второго один сейчас
+        FilmTrending trending = new FilmTrending(FilmTrending.DEFAULT_WINDOWS, 0);
+        long now = System.currentTimeMillis();
+        long twoDaysAgo = now - Duration.ofDays(2).toMillis();
+        for (int i = 0; i < 3; i++) {
+            trending.addLike(1, twoDaysAgo);
+        }
+        trending.addLike(2, now);
+
+        // вызываем тестируемые методы
+        List<Integer> lastHour = trending.getTop(Duration.ofHours(1), 10);
+        List<Integer> lastWeek = trending.getTop(Duration.ofDays(7), 10);
+        trending.removeLike(1, twoDaysAgo);
+        trending.removeLike(1, twoDaysAgo);
+        List<Integer> lastWeekAfterUnlike = trending.getTop(Duration.ofDays(7), 10);
+
+        // проверяем утверждения
+        assertThat(lastHour).isEqualTo(List.of(2, 1));
+        assertThat(lastWeek).isEqualTo(List.of(1, 2));
+        assertThat(lastWeekAfterUnlike).isEqualTo(List.of(2, 1));
+    }
+
+    @Test
+    public void testTrendingReplayMatchesExactTop() {
+        // Подготавливаем данные для теста
+        FilmTrending trending = new FilmTrending(FilmTrending.DEFAULT_WINDOWS, 1_000);
+
+        // вызываем тестируемый метод
+        List<Integer> expectedTop = replayLikes(trending, 200_000, 10_000, 10_000);
+
+        // проверяем утверждения: после переносов опорного момента верхушка совпадает с точным расчетом
+        assertThat(trending.getTop(Duration.ofDays(7), 10)).isEqualTo(expectedTop);
+    }
+
+    // запускается отдельно, масштаб задается так: mvn test -Dtest=FilmDbStorageTest#testTrendingReplayBenchmark
+    //   -Dfilmorate.benchmark=true -Dfilmorate.benchmark.likeEvents=100000000
+    @Test
+    @EnabledIfSystemProperty(named = "filmorate.benchmark", matches = "true")
+    public void testTrendingReplayBenchmark() {
+        // Подготавливаем данные для теста
+        long events = Long.getLong("filmorate.benchmark.likeEvents", 100_000_000L);
+        int filmCount = Integer.getInteger("filmorate.benchmark.films", 100_000);
+        FilmTrending trending = new FilmTrending(FilmTrending.DEFAULT_WINDOWS, 1_000);
+
+        // вызываем тестируемый метод: планировщик заменен явным шагом раз в миллион событий
+        long replayStart = System.nanoTime();
+        List<Integer> expectedTop = replayLikes(trending, events, filmCount, 1_000_000);
+        long replayNanos = System.nanoTime() - replayStart;
+
+        int requests = 10_000;
+        long[] nanos = new long[requests];
+        for (int i = 0; i < requests; i++) {
+            long requestStart = System.nanoTime();
+            trending.getTop(Duration.ofHours(24), 10);
+            nanos[i] = System.nanoTime() - requestStart;
+        }
+        Arrays.sort(nanos);
+
+        log.debug("Свежие лайки: {} событий, {} фильмов, {} тыс. событий/с, чтение p50 {} нс, p99 {} нс",
+                events, filmCount, events * 1_000_000 / replayNanos, nanos[requests / 2],
+                nanos[requests * 99 / 100]);
+
+        // проверяем утверждения: время сверяется с бюджетом из README по логу, здесь - только результат
+        assertThat(trending.getTop(Duration.ofDays(7), 10)).isEqualTo(expectedTop);
+    }
+
+    // месяц лайков с неравномерной популярностью фильмов, шаг планировщика - раз в tickEvery событий;
+    // возвращает точную верхушку окна 7d относительно конца месяца для сверки
+    private List<Integer> replayLikes(FilmTrending trending, long events, int filmCount, int tickEvery) {
+        long span = Duration.ofDays(30).toMillis();
+        double tau = Duration.ofDays(7).toMillis();
+        Random random = new Random(42);
+        long start = System.currentTimeMillis();
+        long end = start + span;
+        double[] expected = new double[filmCount + 1];
+
+        for (long i = 0; i < events; i++) {
+            long time = start + span * i / events;
+            double u = random.nextDouble();
+            int filmId = 1 + (int) (filmCount * u * u * u);
+            trending.addLike(filmId, time);
+            expected[filmId] += Math.exp((time - end) / tau);
+
+            if (i % tickEvery == 0) {
+                trending.tick(time);
+            }
+        }
+        trending.tick(end);
+
+        return IntStream.rangeClosed(1, filmCount).boxed()
+                .sorted((id1, id2) -> expected[id1] != expected[id2]
+                        ? Double.compare(expected[id2], expected[id1]) : Integer.compare(id1, id2))
+                .limit(10)
+                .collect(Collectors.toList());
+    }
+
+    private List<Integer> trendingIds(FilmDbStorage filmStorage, Duration window) {
+        return filmStorage.getTrending(window, 10).stream()
+                .map(Film::getId)
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testSketchPopularityMatchesSqlAggregation() {
+        // Подготавливаем данные для теста: узкий скетч, чтобы коллизии действительно случались
+        double epsilon = 0.01;
+        FilmDbStorage filmStorage = createFilmStorage(jdbcTemplate, createLikeBuffer(jdbcTemplate, false),
+                new LikeSketch(true, epsilon, 0.99, 50));
+        UserDbStorage userStorage = createUserStorage();
+        List<Film> films = addFilms(filmStorage, 200);
+        Random random = new Random(42);
+
+        for (int i = 0; i < 100; i++) {
+            User user = userStorage.add(new User(0, "user" + i + "@email.ru", "login" + i, "User " + i,
+                    LocalDate.of(1990, 1, 1)));
+            // популярность фильмов неравномерна, каждый седьмой лайк потом снимается
+            int likeCount = 1 + random.nextInt(40);
+            for (int j = 0; j < likeCount; j++) {
+                double r = random.nextDouble();
+                int filmId = films.get((int) (films.size() * r * r)).getId();
+                filmStorage.addLike(filmId, user.getId());
+                if (random.nextInt(7) == 0) {
+                    filmStorage.removeLike(filmId, user.getId());
+                }
+            }
+        }
+
+        Map<Integer, Integer> exact = new HashMap<>();
+        jdbcTemplate.query("SELECT film_id, COUNT(*) AS likes FROM likes GROUP BY film_id",
+                (RowCallbackHandler) rs -> exact.put(rs.getInt("film_id"), rs.getInt("likes")));
+        List<Integer> sqlTop = jdbcTemplate.queryForList("SELECT film_id FROM likes " +
+                "GROUP BY film_id ORDER BY COUNT(*) DESC, film_id LIMIT 10", Integer.class);
+        double bound = epsilon * countLikes();
+        int tenthLikes = exact.get(sqlTop.get(9));
+
+        // вызываем тестируемый метод
+        List<Integer> top = filmStorage.getNFilms(10).stream()
+                .map(Film::getId)
+                .collect(Collectors.toList());
+        List<Integer> rebuiltTop = createFilmStorage(jdbcTemplate, createLikeBuffer(jdbcTemplate, false),
+                new LikeSketch(true, epsilon, 0.99, 50)).getNFilms(10).stream()
+                .map(Film::getId)
+                .collect(Collectors.toList());
+
+        // проверяем утверждения: в рейтинг попадают только фильмы, отстающие от точного топа не больше границы
+        assertThat(top.size()).isEqualTo(10);
+        assertThat(rebuiltTop.size()).isEqualTo(10);
+        for (int filmId : top) {
+            assertThat((double) exact.get(filmId)).isGreaterThanOrEqualTo(tenthLikes - bound);
+        }
+        for (int filmId : rebuiltTop) {
+            assertThat((double) exact.get(filmId)).isGreaterThanOrEqualTo(tenthLikes - bound);
+        }
+        assertThat(top.stream().filter(sqlTop::contains).count()).isGreaterThanOrEqualTo(8L);
+    }
+
+    @Test
+    public void testSketchModeFeedsChartsAndSuggestions() {
+        // Подготавливаем данные для теста: на трех фильмах широкий скетч считает лайки без коллизий
+        FilmDbStorage filmStorage = createFilmStorage(jdbcTemplate, createLikeBuffer(jdbcTemplate, false),
+                new LikeSketch(true, 0.0001, 0.99, 1000));
+        UserDbStorage userStorage = createUserStorage();
+        List<Film> films = addFilms(filmStorage, 3);
+        int film1 = films.get(0).getId();
+        int film2 = films.get(1).getId();
+        int film3 = films.get(2).getId();
+        for (int i = 1; i <= 3; i++) {
+            User user = userStorage.add(new User(0, "user" + i + "@email.ru", "login" + i, "User " + i,
+                    LocalDate.of(1990, 1, i)));
+            filmStorage.addLike(film2, user.getId());
+            if (i <= 2) {
+                filmStorage.addLike(film1, user.getId());
+            }
+            if (i == 1) {
+                filmStorage.addLike(film3, user.getId());
+            }
+        }
+
+        // вызываем тестируемые методы
+        List<Integer> top = filmIds(filmStorage.getNFilms(10));
+        List<Integer> genreTop = filmIds(filmStorage.getNFilms(10, 2, null));
+        List<Integer> yearTop = filmIds(filmStorage.getNFilms(10, null, 2000));
+        List<Integer> suggested = suggestIds(filmStorage, "film", 10);
+
+        // проверяем утверждения: без точных счетчиков рейтинги и подсказки упорядочены по оценкам скетча
+        assertThat(top).isEqualTo(List.of(film2, film1, film3));
+        assertThat(genreTop).isEqualTo(top);
+        assertThat(yearTop).isEqualTo(top);
+        assertThat(suggested).isEqualTo(top);
+    }
+
+    // запускается отдельно, масштаб задается так: mvn test -Dtest=FilmDbStorageTest#testSketchStorageHeapComparedToExact
+    //   -Dfilmorate.benchmark=true -Dfilmorate.benchmark.films=1000000
+    @Test
+    @EnabledIfSystemProperty(named = "filmorate.benchmark", matches = "true")
+    public void testSketchStorageHeapComparedToExact() {
+        // Подготавливаем данные для теста: у первых 100 фильмов от 901 до 1000 лайков, у остальных от 1 до 10
+        int filmCount = Integer.getInteger("filmorate.benchmark.films", 200_000);
+        jdbcTemplate.update("INSERT INTO users (email, login, name, birthday) " +
+                "SELECT CONCAT('user', X, '@email.ru'), CONCAT('login', X), CONCAT('User ', X), DATE '1990-01-01' " +
+                "FROM SYSTEM_RANGE(1, 1000)");
+        jdbcTemplate.update("INSERT INTO films (name, description, release_date, duration) " +
+                "SELECT CONCAT('Film ', X), 'Description', DATEADD(DAY, MOD(X, 10000), DATE '1950-01-01'), 100 " +
+                "FROM SYSTEM_RANGE(1, ?)", filmCount);
+        jdbcTemplate.update("INSERT INTO film_genre (film_id, genre_id) SELECT id, MOD(id, 6) + 1 FROM films");
+        int firstUserId = jdbcTemplate.queryForObject("SELECT MIN(id) FROM users", Integer.class);
+        int firstFilmId = jdbcTemplate.queryForObject("SELECT MIN(id) FROM films", Integer.class);
+        jdbcTemplate.update("INSERT INTO likes (user_id, film_id) SELECT ? + r.X - 1, f.id FROM films f " +
+                "JOIN SYSTEM_RANGE(1, 1000) r ON r.X <= 1000 - (f.id - ?) WHERE f.id < ?",
+                firstUserId, firstFilmId, firstFilmId + 100);
+        jdbcTemplate.update("INSERT INTO likes (user_id, film_id) SELECT ? + r.X - 1, f.id FROM films f " +
+                "JOIN SYSTEM_RANGE(1, 10) r ON r.X <= 1 + MOD(f.id * 7, 10) WHERE f.id >= ?",
+                firstUserId, firstFilmId + 100);
+        long likes = countLikes();
+
+        // вызываем тестируемый метод: прирост кучи после загрузки каждого хранилища, пока на него есть ссылка
+        long baseline = usedHeapAfterGc();
+        FilmDbStorage exactStorage = createFilmStorage(jdbcTemplate);
+        long exactBytes = usedHeapAfterGc() - baseline;
+        List<Integer> exactTop = filmIds(exactStorage.getNFilms(100));
+        exactStorage = null;
+
+        baseline = usedHeapAfterGc();
+        FilmDbStorage sketchStorage = createFilmStorage(jdbcTemplate, createLikeBuffer(jdbcTemplate, false),
+                new LikeSketch(true, 0.0001, 0.99, 1000));
+        long sketchBytes = usedHeapAfterGc() - baseline;
+        List<Integer> sketchTop = filmIds(sketchStorage.getNFilms(100));
+        long recall = sketchTop.stream().filter(exactTop::contains).count();
+
+        log.debug("Скетч популярности: {} фильмов, {} лайков, хранилище с точными счетчиками ~{} МБ, со скетчем ~{} МБ, " +
+                        "совпадение топ-100 {}%", filmCount, likes, exactBytes / (1024 * 1024),
+                sketchBytes / (1024 * 1024), recall);
+
+        // проверяем утверждения
+        assertThat(sketchBytes).isLessThan(exactBytes);
+        assertThat(recall).isGreaterThanOrEqualTo(90L);
+    }
+
+    private static long usedHeapAfterGc() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private List<Integer> filmIds(List<Film> films) {
+        return films.stream()
+                .map(Film::getId)
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testGetPage() {
+        // Подготавливаем данные для теста
+        FilmDbStorage filmStorage = createFilmStorage(jdbcTemplate);
+        List<Film> films = addFilms(filmStorage, 5);
+
+        // вызываем тестируемый метод
+        List<Film> firstPage = filmStorage.getPage(0, 2);
+        List<Film> secondPage = filmStorage.getPage(firstPage.get(1).getId(), 2);
+        List<Film> lastPage = filmStorage.getPage(films.get(3).getId(), 2);
+
+        // проверяем утверждения
+        assertThat(firstPage)
+                .usingRecursiveComparison()
+                .isEqualTo(films.subList(0, 2));
+        assertThat(secondPage)
+                .usingRecursiveComparison()
+                .isEqualTo(films.subList(2, 4));
+        assertThat(lastPage)
+                .usingRecursiveComparison()
+                .isEqualTo(films.subList(4, 5));
+    }
+
+    @Test
+    public void testGetPageWithFilter() {
+        // Подготавливаем данные для теста
+        FilmDbStorage filmStorage = createFilmStorage(jdbcTemplate);
+        Film comedy1990 = filmStorage.add(new Film(0, "Comedy 1990", "PG comedy.",
+                LocalDate.of(1990, 5, 1), 90, new Mpa(2, null), List.of(new Genre(1, null))));
+        Film drama1995 = filmStorage.add(new Film(0, "Drama 1995", "R drama.",
+                LocalDate.of(1995, 5, 1), 120, new Mpa(4, null), List.of(new Genre(2, null))));
+        Film comedyDrama2000 = filmStorage.add(new Film(0, "Comedy drama 2000", "PG comedy drama.",
+                LocalDate.of(2000, 5, 1), 100, new Mpa(2, null), List.of(new Genre(1, null), new Genre(2, null))));
+        Film comedy2010 = filmStorage.add(new Film(0, "Comedy 2010", "R comedy.",
+                LocalDate.of(2010, 5, 1), 95, new Mpa(4, null), List.of(new Genre(1, null))));
+
+        // вызываем тестируемые методы
+        List<Integer> comedies = pageIds(filmStorage, new FilmFilter(1, null, null, null), 0, 10);
+        List<Integer> rated = pageIds(filmStorage, new FilmFilter(null, 4, null, null), 0, 10);
+        List<Integer> nineties = pageIds(filmStorage, new FilmFilter(null, null,
+                LocalDate.of(1990, 1, 1), LocalDate.of(1999, 12, 31)), 0, 10);
+        List<Integer> allConditions = pageIds(filmStorage, new FilmFilter(1, 2,
+                LocalDate.of(1995, 1, 1), LocalDate.of(2005, 1, 1)), 0, 10);
+        List<Integer> firstPage = pageIds(filmStorage, new FilmFilter(1, null, null, null), 0, 2);
+        List<Integer> secondPage = pageIds(filmStorage, new FilmFilter(1, null, null, null),
+                firstPage.get(1), 2);
+        List<Integer> noMatch = pageIds(filmStorage, new FilmFilter(6, null, null, null), 0, 10);
+        List<Film> loaded = filmStorage.getPage(new FilmFilter(2, 2, null, null), 0, 10);
+
+        // проверяем утверждения
+        assertThat(comedies).isEqualTo(List.of(comedy1990.getId(), comedyDrama2000.getId(), comedy2010.getId()));
+        assertThat(rated).isEqualTo(List.of(drama1995.getId(), comedy2010.getId()));
+        assertThat(nineties).isEqualTo(List.of(comedy1990.getId(), drama1995.getId()));
+        assertThat(allConditions).isEqualTo(List.of(comedyDrama2000.getId()));
+        assertThat(firstPage).isEqualTo(List.of(comedy1990.getId(), comedyDrama2000.getId()));
+        assertThat(secondPage).isEqualTo(List.of(comedy2010.getId()));
+        assertThat(noMatch).isEqualTo(List.of());
+        // у найденного фильма загружены все жанры, а не только тот, по которому шел отбор
+        assertThat(loaded)
+                .usingRecursiveComparison()
+                .isEqualTo(List.of(comedyDrama2000));
+    }
+
+    @Test
+    public void testInMemoryGetPageWithFilter() {
+        // Подготавливаем данные для теста: в памяти id фильмов идут с 1
+        InMemoryFilmStorage filmStorage = new InMemoryFilmStorage();
+        filmStorage.add(new Film(0, "Comedy 1990", "PG comedy.",
+                LocalDate.of(1990, 5, 1), 90, new Mpa(2, null), List.of(new Genre(1, null))));
+        filmStorage.add(new Film(0, "Drama 1995", "R drama.",
+                LocalDate.of(1995, 5, 1), 120, new Mpa(4, null), List.of(new Genre(2, null))));
+        Film comedyDrama2000 = filmStorage.add(new Film(0, "Comedy drama 2000", "PG comedy drama.",
+                LocalDate.of(2000, 5, 1), 100, new Mpa(2, null), List.of(new Genre(1, null), new Genre(2, null))));
+        filmStorage.add(new Film(0, "Comedy 2010", "R comedy.",
+                LocalDate.of(2010, 5, 1), 95, new Mpa(4, null), List.of(new Genre(1, null))));
+
+        // вызываем тестируемые методы
+        List<Integer> comedies = pageIds(filmStorage, new FilmFilter(1, null, null, null), 0, 10);
+        List<Integer> nineties = pageIds(filmStorage, new FilmFilter(null, null,
+                LocalDate.of(1990, 1, 1), LocalDate.of(1999, 12, 31)), 0, 10);
+        List<Integer> allConditions = pageIds(filmStorage, new FilmFilter(1, 2,
+                LocalDate.of(1995, 1, 1), LocalDate.of(2005, 1, 1)), 0, 10);
+        List<Integer> firstPage = pageIds(filmStorage, new FilmFilter(1, null, null, null), 0, 2);
+        List<Integer> secondPage = pageIds(filmStorage, new FilmFilter(1, null, null, null), 3, 2);
+        List<Integer> noMatch = pageIds(filmStorage, new FilmFilter(6, null, null, null), 0, 10);
+        filmStorage.remove(comedyDrama2000);
+        List<Integer> afterRemove = pageIds(filmStorage, new FilmFilter(1, null, null, null), 0, 10);
+
+        // проверяем утверждения
+        assertThat(comedies).isEqualTo(List.of(1, 3, 4));
+        assertThat(pageIds(filmStorage, new FilmFilter(null, 4, null, null), 0, 10)).isEqualTo(List.of(2, 4));
+        assertThat(nineties).isEqualTo(List.of(1, 2));
+        assertThat(allConditions).isEqualTo(List.of(3));
+        assertThat(firstPage).isEqualTo(List.of(1, 3));
+        assertThat(secondPage).isEqualTo(List.of(4));
+        assertThat(noMatch).isEqualTo(List.of());
+        assertThat(afterRemove).isEqualTo(List.of(1, 4));
+    }
+
+    private List<Integer> pageIds(FilmStorage filmStorage, FilmFilter filter, int after, int limit) {
+        return filmStorage.getPage(filter, after, limit).stream()
+                .map(Film::getId)
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testExportAllMergesGenresAcrossFetchBoundaries() {
+        // Подготавливаем данные для теста: у фильмов по три строки жанров, поэтому строки одного фильма
+        // попадают по разные стороны границ выборки в 500 строк; каждый седьмой фильм без жанров
+        FilmDbStorage filmStorage = createFilmStorage(jdbcTemplate);
+        List<Film> films = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            films.add(new Film(0, "Film " + i, "Description " + i, LocalDate.of(2000, 1, 1), 100,
+                    new Mpa(1, null), i % 7 == 0 ? List.of()
+                    : List.of(new Genre(1, null), new Genre(2, null), new Genre(3, null))));
+        }
+        filmStorage.addAll(films);
+
+        // вызываем тестируемый метод
+        List<Film> exported = new ArrayList<>();
+        filmStorage.exportAll(exported::add);
+
+        // проверяем утверждения: каждый фильм выгружен один раз и со всеми своими жанрами
+        assertThat(exported.size()).isEqualTo(films.size());
+        for (int i = 0; i < films.size(); i++) {
+            assertThat(exported.get(i))
+                    .usingRecursiveComparison()
+                    .isEqualTo(filmStorage.getFilm(films.get(i).getId()).orElseThrow());
+            assertThat(exported.get(i).getGenres().size()).isEqualTo(i % 7 == 0 ? 0 : 3);
+        }
+        assertThat(exported.get(1).getGenres().get(2)).isEqualTo(new Genre(3, "Мультфильм"));
+    }
+
+    @Test
+    public void testAddAll() {
+        // Подготавливаем данные для теста
+        FilmDbStorage filmStorage = createFilmStorage(jdbcTemplate);
+
+        List<Film> films = List.of(
+                new Film(0, "Dune", "The most boring movie ever.",
+                        LocalDate.of(1990, 1, 1), 666, new Mpa(1, null),
+                        List.of(new Genre(1, null), new Genre(3, null))),
+                new Film(0, "Dune", "Same title, another film.",
+                        LocalDate.of(2021, 1, 1), 155, new Mpa(3, null),
+                        List.of()));
+
+        // вызываем тестируемый метод
+        List<Film> savedFilms = filmStorage.addAll(films);
+
+        // проверяем утверждения
+        assertThat(savedFilms.get(0).getId()).isLessThan(savedFilms.get(1).getId());
+        assertThat(filmStorage.getFilm(savedFilms.get(0).getId()).orElse(null))
+                .usingRecursiveComparison()
+                .isEqualTo(films.get(0));
+        assertThat(filmStorage.getFilm(savedFilms.get(1).getId()).orElse(null))
+                .usingRecursiveComparison()
+                .isEqualTo(films.get(1));
+    }
+
+    @Test
+    public void testAddAllStatementCountComparedToAdd() {
+        // Подготавливаем данные для теста
+        StatementCounter counter = new StatementCounter(dataSource);
+        FilmDbStorage filmStorage = createFilmStorage(counter.jdbcTemplate());
+        int count = 1200;
+
+        // вызываем тестируемые методы
+        counter.reset();
+        createFilms(count).forEach(filmStorage::add);
+        int singleStatements = counter.getCount();
+
+        counter.reset();
+        filmStorage.addAll(createFilms(count));
+        int batchStatements = counter.getCount();
+
+        // проверяем утверждения: по одному - фильм, рейтинг и жанры на каждый фильм,
+        // пачкой - те же три пакетных запроса на каждые 500 фильмов
+        assertThat(singleStatements).isEqualTo(3 * count);
+        assertThat(batchStatements).isEqualTo(3 * 3);
+    }
+
+    @Test
+    public void testWriteBehindLikes() {
+        // Подготавливаем данные для теста
+        LikeWriteBuffer likeBuffer = createLikeBuffer(jdbcTemplate, true);
+        FilmDbStorage filmStorage = createFilmStorage(jdbcTemplate, likeBuffer);
+        UserDbStorage userStorage = createUserStorage();
+
+        User user1 = userStorage.add(new User(0, "user1@email.ru", "login1", "User 1",
+                LocalDate.of(1990, 1, 1)));
+        User user2 = userStorage.add(new User(0, "user2@email.ru", "login2", "User 2",
+                LocalDate.of(1990, 1, 1)));
+        List<Film> films = addFilms(filmStorage, 2);
+        int film1 = films.get(0).getId();
+        int film2 = films.get(1).getId();
+
+        // лайк и снятие лайка одной пары схлопываются в одно действие
+        filmStorage.addLike(film1, user1.getId());
+        filmStorage.addLike(film1, user2.getId());
+        filmStorage.removeLike(film1, user2.getId());
+        filmStorage.addLike(film2, user1.getId());
+
+        int likesBeforeFlush = countLikes();
+        int pendingBeforeFlush = likeBuffer.size();
+
+        // буфер заполнен, поэтому новый лайк сбрасывает его в базу
+        filmStorage.addLike(film2, user2.getId());
+        int likesAfterOverflow = countLikes();
+
+        likeBuffer.flush();
+        List<Integer> top = filmStorage.getNFilms(10).stream()
+                .map(Film::getId)
+                .collect(Collectors.toList());
+        likeBuffer.stop();
+
+        // проверяем утверждения
+        assertThat(likesBeforeFlush).isEqualTo(0);
+        assertThat(pendingBeforeFlush).isEqualTo(3);
+        assertThat(likesAfterOverflow).isEqualTo(2);
+        assertThat(countLikes()).isEqualTo(3);
+        assertThat(top).isEqualTo(List.of(film2, film1));
+    }
+
+    @Test
+    public void testRecommendations() {
+        // Подготавливаем данные для теста
+        FilmDbStorage filmStorage = createFilmStorage(jdbcTemplate);
+        UserDbStorage userStorage = createUserStorage();
+        List<Film> films = addFilms(filmStorage, 4);
+        List<User> users = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            users.add(userStorage.add(new User(0, "user" + i + "@email.ru", "login" + i, "User " + i,
+                    LocalDate.of(1990, 1, i))));
+        }
+        // у первого и второго пользователя два общих лайка, третий лайкает другое
+        filmStorage.addLike(films.get(0).getId(), users.get(0).getId());
+        filmStorage.addLike(films.get(1).getId(), users.get(0).getId());
+        filmStorage.addLike(films.get(0).getId(), users.get(1).getId());
+        filmStorage.addLike(films.get(1).getId(), users.get(1).getId());
+        filmStorage.addLike(films.get(2).getId(), users.get(1).getId());
+        filmStorage.addLike(films.get(3).getId(), users.get(2).getId());
+
+        // вызываем тестируемые методы
+        List<Integer> recommended = recommendedIds(filmStorage, users.get(0).getId());
+        // после перезапуска матрица восстанавливается из таблицы likes
+        List<Integer> recommendedAfterRestart = recommendedIds(createFilmStorage(jdbcTemplate), users.get(0).getId());
+        filmStorage.addLike(films.get(2).getId(), users.get(0).getId());
+        List<Integer> recommendedAfterLike = recommendedIds(filmStorage, users.get(0).getId());
+
+        // проверяем утверждения
+        assertThat(recommended).isEqualTo(List.of(films.get(2).getId()));
+        assertThat(recommendedAfterRestart).isEqualTo(recommended);
+        assertThat(recommendedAfterLike).isEqualTo(List.of());
+    }
+
+    @Test
+    public void testSearch() {
+        // Подготавливаем данные для теста
+        FilmDbStorage filmStorage = createFilmStorage(jdbcTemplate);
+        Film matrix = filmStorage.add(new Film(0, "The Matrix", "Хакер узнает правду о мире.",
+                LocalDate.of(1999, 3, 31), 136, new Mpa(4, null), List.of()));
+        Film trees = filmStorage.add(new Film(0, "Ёлки", "Новогодняя комедия о том, как хакер спасает праздник.",
+                LocalDate.of(2010, 12, 16), 90, new Mpa(1, null), List.of()));
+        Film hackers = filmStorage.add(new Film(0, "Хакеры", "Подростки против корпорации.",
+                LocalDate.of(1995, 9, 15), 105, new Mpa(3, null), List.of()));
+
+        // вызываем тестируемые методы
+        List<Integer> byName = searchIds(filmStorage, "MATRIX", 0, 10);
+        List<Integer> withYo = searchIds(filmStorage, "елки", 0, 10);
+        List<Integer> allWords = searchIds(filmStorage, "хакер праздник", 0, 10);
+        // формы одного слова сводятся к общей основе
+        List<Integer> otherForm = searchIds(filmStorage, "хакеры", 0, 10);
+        List<Integer> wordForms = searchIds(filmStorage, "хакер хакеры", 0, 10);
+        List<Integer> firstPage = searchIds(filmStorage, "о", 0, 1);
+        List<Integer> secondPage = searchIds(filmStorage, "о", 1, 1);
+
+        filmStorage.update(new Film(matrix.getId(), "The Matrix Reloaded", "Продолжение.",
+                LocalDate.of(2003, 5, 15), 138, new Mpa(4, null), List.of()));
+        List<Integer> afterUpdate = searchIds(filmStorage, "reloaded", 0, 10);
+        List<Integer> oldDescription = searchIds(filmStorage, "правду", 0, 10);
+        // после перезапуска индекс строится заново из таблицы films
+        List<Integer> afterRestart = searchIds(createFilmStorage(jdbcTemplate), "reloaded", 0, 10);
+
+        // проверяем утверждения
+        assertThat(byName).isEqualTo(List.of(matrix.getId()));
+        assertThat(withYo).isEqualTo(List.of(trees.getId()));
+        assertThat(allWords).isEqualTo(List.of(trees.getId()));
+        assertThat(otherForm).isEqualTo(List.of(hackers.getId(), matrix.getId(), trees.getId()));
+        assertThat(wordForms).isEqualTo(List.of(hackers.getId(), matrix.getId(), trees.getId()));
+        assertThat(firstPage).isEqualTo(List.of(matrix.getId()));
+        assertThat(secondPage).isEqualTo(List.of(trees.getId()));
+        assertThat(afterUpdate).isEqualTo(List.of(matrix.getId()));
+        assertThat(oldDescription).isEqualTo(List.of());
+        assertThat(afterRestart).isEqualTo(List.of(matrix.getId()));
+    }
+
+    @Test
+    public void testSearchRanksNameMatchesFirst() {
+        // Подготавливаем данные для теста
+        FilmDbStorage filmStorage = createFilmStorage(jdbcTemplate);
+        Film inDescription = filmStorage.add(new Film(0, "Сеть", "Фильм про хакера.",
+                LocalDate.of(1995, 7, 28), 114, new Mpa(3, null), List.of()));
+        Film inName = filmStorage.add(new Film(0, "Хакера не поймать", "Детектив.",
+                LocalDate.of(2001, 1, 1), 100, new Mpa(3, null), List.of()));
+
+        // вызываем тестируемый метод
+        List<Integer> ranked = searchIds(filmStorage, "хакера", 0, 10);
+
+        // проверяем утверждения
+        assertThat(ranked).isEqualTo(List.of(inName.getId(), inDescription.getId()));
+    }
+
+    @Test
+    public void testSuggest() {
+        // Подготавливаем данные для теста
+        UserDbStorage userStorage = createUserStorage();
+        User user1 = userStorage.add(new User(0, "user@email.ru", "vanya123", "Ivan Petrov",
+                LocalDate.of(1990, 1, 1)));
+        User user2 = userStorage.add(new User(0, "user@email222.ru", "vanya123456", "Ivan0 Petrov",
+                LocalDate.of(1991, 2, 3)));
+
+        FilmDbStorage filmStorage = createFilmStorage(jdbcTemplate);
+        Film trees = filmStorage.add(new Film(0, "Ёлки", "Новогодняя комедия.",
+                LocalDate.of(2010, 12, 16), 90, new Mpa(1, null), List.of()));
+        Film trees2 = filmStorage.add(new Film(0, "Елки 2", "Продолжение.",
+                LocalDate.of(2011, 12, 15), 90, new Mpa(1, null), List.of()));
+        Film hedgehog = filmStorage.add(new Film(0, "Ежик в тумане", "Мультфильм.",
+                LocalDate.of(1975, 1, 1), 10, new Mpa(1, null), List.of()));
+        filmStorage.add(new Film(0, "The Matrix", "Хакер узнает правду о мире.",
+                LocalDate.of(1999, 3, 31), 136, new Mpa(4, null), List.of()));
+        filmStorage.addLike(trees2.getId(), user1.getId());
+        filmStorage.addLike(trees2.getId(), user2.getId());
+        filmStorage.addLike(hedgehog.getId(), user1.getId());
+
+        // вызываем тестируемые методы
+        List<Integer> byPopularity = suggestIds(filmStorage, "Е", 10);
+        List<Integer> withYo = suggestIds(filmStorage, "  ЁЛК", 10);
+        List<Integer> limited = suggestIds(filmStorage, "е", 1);
+        List<Integer> noMatch = suggestIds(filmStorage, "ёлы", 10);
+
+        filmStorage.update(new Film(trees.getId(), "Матрица: перезагрузка", "Продолжение.",
+                LocalDate.of(2003, 5, 15), 138, new Mpa(4, null), List.of()));
+        List<Integer> oldName = suggestIds(filmStorage, "елки", 10);
+        List<Integer> newName = suggestIds(filmStorage, "матрица", 10);
+        // после перезапуска индекс строится заново из таблицы films
+        List<Integer> afterRestart = suggestIds(createFilmStorage(jdbcTemplate), "е", 10);
+
+        // проверяем утверждения
+        assertThat(byPopularity).isEqualTo(List.of(trees2.getId(), hedgehog.getId(), trees.getId()));
+        assertThat(withYo).isEqualTo(List.of(trees2.getId(), trees.getId()));
+        assertThat(limited).isEqualTo(List.of(trees2.getId()));
+        assertThat(noMatch).isEqualTo(List.of());
+        assertThat(oldName).isEqualTo(List.of(trees2.getId()));
+        assertThat(newName).isEqualTo(List.of(trees.getId()));
+        assertThat(afterRestart).isEqualTo(List.of(trees2.getId(), hedgehog.getId()));
+    }
+
+    private List<Integer> searchIds(FilmDbStorage filmStorage, String query, int offset, int limit) {
+        return filmStorage.search(query, offset, limit).stream()
+                .map(Film::getId)
+                .collect(Collectors.toList());
+    }
+
+    private List<Integer> suggestIds(FilmDbStorage filmStorage, String prefix, int limit) {
+        return filmStorage.suggest(prefix, limit).stream()
+                .map(Film::getId)
+                .collect(Collectors.toList());
+    }
+
+    private List<Integer> recommendedIds(FilmDbStorage filmStorage, int userId) {
+        return filmStorage.getRecommendations(userId, 10).stream()
+                .map(Film::getId)
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testConditionalGetSkipsDatabase() {
+        // Подготавливаем данные для теста
+        int polls = Integer.getInteger("filmorate.benchmark.polls", 1_000);
+        StatementCounter counter = new StatementCounter(dataSource);
+        FilmDbStorage filmStorage = createCachedFilmStorage(counter.jdbcTemplate());
+        UserDbStorage userStorage = createUserStorage();
+        FilmController controller = new FilmController(new FilmService(filmStorage, userStorage), new ObjectMapper());
+
+        Film film = addFilms(filmStorage, 1).get(0);
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < polls / 50; i++) {
+            User user = new User(0, "user" + i + "@email.ru", "user" + i, "User " + i, LocalDate.of(1990, 1, 1));
+            userStorage.add(user);
+            users.add(user);
+        }
+
+        // вызываем тестируемый метод: клиент опрашивает фильм, изредка фильм получает лайк
+        int statements = 0;
+        int notModified = 0;
+        String etag = null;
+        Film lastFilm = null;
+
+        for (int i = 0; i < polls; i++) {
+            if (i % 50 == 49) {
+                filmStorage.addLike(film.getId(), users.get(i / 50).getId());
+            }
+
+            MockHttpServletRequest request = new MockHttpServletRequest("GET", "/films/" + film.getId());
+            if (etag != null) {
+                request.addHeader(HttpHeaders.IF_NONE_MATCH, etag);
+            }
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            counter.reset();
+            Film result = controller.getFilmById(film.getId(), new ServletWebRequest(request, response));
+            statements += counter.getCount();
+
+            if (response.getStatus() == HttpStatus.NOT_MODIFIED.value()) {
+                notModified++;
+                assertThat(result).isNull();
+            } else {
+                lastFilm = result;
+            }
+            etag = response.getHeader(HttpHeaders.ETAG);
+        }
+
+        // проверяем утверждения: ответ 304 отдается, пока фильм не изменился, а сам фильм читается из базы один раз
+        assertThat(etag).isNotNull();
+        assertThat(notModified).isEqualTo(polls - 1 - polls / 50);
+        assertThat(statements).isEqualTo(1);
+        assertThat(lastFilm).isEqualTo(film);
+    }
+
+    @Test
+    public void testConditionalGetOfMissingFilm() {
+        // Подготавливаем данные для теста
+        StatementCounter counter = new StatementCounter(dataSource);
+        FilmDbStorage filmStorage = createCachedFilmStorage(counter.jdbcTemplate());
+        FilmController controller = new FilmController(new FilmService(filmStorage, createUserStorage()),
+                new ObjectMapper());
+        int missingId = addFilms(filmStorage, 1).get(0).getId() + 1000;
+        String initialETag = EntityVersions.etag(filmStorage.getVersion(missingId));
+
+        // вызываем тестируемый метод: клиент подставляет ETag, который был бы у фильма, не менявшегося с запуска
+        counter.reset();
+        List<MockHttpServletResponse> responses = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            MockHttpServletRequest request = new MockHttpServletRequest("GET", "/films/" + missingId);
+            request.addHeader(HttpHeaders.IF_NONE_MATCH, initialETag);
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            assertThat(controller.getFilmById(missingId, new ServletWebRequest(request, response))).isNull();
+            responses.add(response);
+        }
+
+        // проверяем утверждения: у отсутствующего фильма нет ETag и ответа 304, повторы обслуживает кэш
+        for (MockHttpServletResponse response : responses) {
+            assertThat(response.getStatus()).isEqualTo(HttpStatus.OK.value());
+            assertThat(response.getHeader(HttpHeaders.ETAG)).isNull();
+        }
+        assertThat(counter.getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testGetFilmsByIdsInOneQuery() {
+        // Подготавливаем данные для теста
+        StatementCounter counter = new StatementCounter(dataSource);
+        FilmDbStorage filmStorage = createFilmStorage(counter.jdbcTemplate());
+        FilmService filmService = new FilmService(filmStorage, createUserStorage());
+        List<Film> films = addFilms(filmStorage, 5);
+        int missingId = films.get(4).getId() + 1000;
+        List<Integer> ids = List.of(films.get(3).getId(), films.get(0).getId(), missingId, films.get(3).getId(),
+                films.get(4).getId());
+
+        // вызываем тестируемый метод
+        counter.reset();
+        BatchResult<Film> result = filmService.getFilmsByIds(ids);
+        int statements = counter.getCount();
+
+        // проверяем утверждения: порядок запроса, повтор id отдан один раз, отсутствующий id назван в ответе
+        assertThat(statements).isEqualTo(1);
+        assertThat(result.getItems().stream().map(Film::getId).collect(Collectors.toList()))
+                .isEqualTo(List.of(films.get(3).getId(), films.get(0).getId(), films.get(4).getId()));
+        assertThat(result.getItems().get(0).getGenres().size()).isEqualTo(2);
+        assertThat(result.getMissing()).isEqualTo(List.of(missingId));
+        assertThatThrownBy(() -> filmService.getFilmsByIds(IntStream.rangeClosed(1, 101).boxed()
+                .collect(Collectors.toList())))
+                .isInstanceOf(ValidationException.class);
+    }
+
+    @Test
+    public void testFilmCacheInvalidatedByWrites() {
+        // Подготавливаем данные для теста
+        StatementCounter counter = new StatementCounter(dataSource);
+        FilmDbStorage filmStorage = createCachedFilmStorage(counter.jdbcTemplate());
+        Film film = addFilms(filmStorage, 1).get(0);
+
+        // вызываем тестируемый метод
+        counter.reset();
+        for (int i = 0; i < 10; i++) {
+            filmStorage.getFilm(film.getId()).orElseThrow().setGenres(List.of());
+        }
+        int cachedStatements = counter.getCount();
+        Film cached = filmStorage.getFilm(film.getId()).orElseThrow();
+
+        Film updatedFilm = new Film(film.getId(), "Dune", "The most boring movie ever 2.",
+                LocalDate.of(1990, 1, 1), 6666, new Mpa(1, null),
+                List.of(new Genre(1, null), new Genre(3, null)));
+        filmStorage.update(updatedFilm);
+        Film afterUpdate = filmStorage.getFilm(film.getId()).orElseThrow();
+
+        filmStorage.remove(updatedFilm);
+        boolean presentAfterRemove = filmStorage.getFilm(film.getId()).isPresent();
+
+        // проверяем утверждения: изменение полученной копии не портит кэш, запись сбрасывает фильм
+        assertThat(cachedStatements).isEqualTo(1);
+        assertThat(cached.getGenres().size()).isEqualTo(2);
+        assertThat(afterUpdate.getDescription()).isEqualTo("The most boring movie ever 2.");
+        assertThat(afterUpdate.getMpa()).isEqualTo(new Mpa(1, "G"));
+        assertThat(afterUpdate.getGenres().size()).isEqualTo(2);
+        assertThat(afterUpdate.getGenres().get(0)).isEqualTo(new Genre(1, "Комедия"));
+        assertThat(presentAfterRemove).isFalse();
+        assertThat(filmStorage.getCacheStats().getHits()).isEqualTo(10);
+        assertThat(filmStorage.getCacheStats().getMisses()).isEqualTo(3);
+    }
+
+    @Test
+    public void testFilmCacheClearedAfterDictionaryRefresh() {
+        // Подготавливаем данные для теста
+        GenreStorage genreStorage = new GenreStorage(jdbcTemplate);
+        MpaStorage mpaStorage = new MpaStorage(jdbcTemplate);
+        FilmDbStorage filmStorage = createCachedFilmStorage(jdbcTemplate, genreStorage, mpaStorage);
+        Film film = addFilms(filmStorage, 1).get(0);
+        long filmVersion = filmStorage.getVersion(film.getId());
+        long listVersion = filmStorage.getVersion();
+        filmStorage.getFilm(film.getId()).orElseThrow();
+
+        // вызываем тестируемые методы
+        jdbcTemplate.update("UPDATE genres SET name = 'Драма (обновлено)' WHERE id = 2");
+        jdbcTemplate.update("UPDATE ratings SET name = 'NC-17' WHERE id = 4");
+        genreStorage.refresh();
+        mpaStorage.refresh();
+        long filmVersionAfterRefresh = filmStorage.getVersion(film.getId());
+        long listVersionAfterRefresh = filmStorage.getVersion();
+        Film afterRefresh = filmStorage.getFilm(film.getId()).orElseThrow();
+
+        // проверяем утверждения: фильм перечитан с новыми жанром и рейтингом, ETag фильма и списков сменились
+        assertThat(afterRefresh.getGenres().get(0)).isEqualTo(new Genre(2, "Драма (обновлено)"));
+        assertThat(afterRefresh.getMpa()).isEqualTo(new Mpa(4, "NC-17"));
+        assertThat(filmVersionAfterRefresh > filmVersion).isTrue();
+        assertThat(listVersionAfterRefresh > listVersion).isTrue();
+        assertThat(filmStorage.getCacheStats().getMisses()).isEqualTo(2);
+    }
+
+    @Test
+    public void testUnknownFilmIdCachedUntilAdded() {
+        // Подготавливаем данные для теста
+        StatementCounter counter = new StatementCounter(dataSource);
+        FilmDbStorage filmStorage = createCachedFilmStorage(counter.jdbcTemplate());
+        Film existing = addFilms(filmStorage, 1).get(0);
+        // id выдаются по порядку, поэтому следующий фильм получит именно этот id
+        int unknownId = existing.getId() + 1;
+
+        // вызываем тестируемый метод
+        counter.reset();
+        for (int i = 0; i < 10; i++) {
+            assertThat(filmStorage.getFilm(unknownId).isPresent()).isFalse();
+        }
+        int absentStatements = counter.getCount();
+
+        Film added = addFilms(filmStorage, 1).get(0);
+        Optional<Film> afterAdd = filmStorage.getFilm(unknownId);
+
+        // проверяем утверждения: повторные промахи не доходят до базы, добавление сбрасывает отсутствующий id
+        assertThat(absentStatements).isEqualTo(1);
+        assertThat(added.getId()).isEqualTo(unknownId);
+        assertThat(afterAdd.isPresent()).isTrue();
+        assertThat(filmStorage.getCacheStats().getAbsentHits()).isEqualTo(9);
+        assertThat(filmStorage.getCacheStats().getAbsentSize()).isEqualTo(0);
+        assertThatThrownBy(() -> new InMemoryFilmStorage().getFilm(unknownId))
+                .isInstanceOf(NotFoundException.class)
+                .satisfies(e -> assertThat(e.getStackTrace().length).isEqualTo(0));
+        // стек не собирается только при промахе по id, остальные ошибки 404 сохраняют его для отладки
+        assertThatThrownBy(() -> new InMemoryFilmStorage().update(existing))
+                .isInstanceOf(NotFoundException.class)
+                .satisfies(e -> assertThat(e.getStackTrace().length).isGreaterThan(0));
+    }
+
+    @Test
+    public void testEntityCacheEvictsBySizeAndTime() {
+        // Подготавливаем данные для теста
+        long[] now = {0};
+        EntityCache<Film> cache = new EntityCache<>(2, 0, 1000, film -> film, () -> now[0]);
+        int[] loads = new int[1];
+        IntFunction<Optional<Film>> loader = id -> {
+            loads[0]++;
+            return Optional.of(createFilms(1).get(0));
+        };
+
+        // вызываем тестируемый метод
+        cache.get(1, loader);
+        cache.get(2, loader);
+        cache.get(1, loader);
+        cache.get(3, loader);
+        int loadsBeforeExpiry = loads[0];
+        cache.get(1, loader);
+        cache.get(2, loader);
+
+        now[0] += TimeUnit.SECONDS.toNanos(2);
+        cache.get(1, loader);
+
+        // проверяем утверждения: 2 давно не читался и вытеснен первым, 1 устарел по времени
+        assertThat(loadsBeforeExpiry).isEqualTo(3);
+        assertThat(loads[0]).isEqualTo(5);
+        assertThat(cache.getStats().getHits()).isEqualTo(2);
+        assertThat(cache.getStats().getEvictions()).isEqualTo(2);
+        assertThat(cache.getStats().getExpirations()).isEqualTo(1);
+        assertThat(cache.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void testEntityCacheDropsLoadRacingWithInvalidation() throws Exception {
+        // Подготавливаем данные для теста
+        EntityCache<String> cache = new EntityCache<>(100, 0, 60_000, value -> value);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch invalidated = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        // вызываем тестируемый метод: чтение получило из базы старое значение, а запись успела сбросить кэш
+        Future<Optional<String>> staleRead = executor.submit(() -> cache.get(1, id -> {
+            loading.countDown();
+            try {
+                invalidated.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Optional.of("старое");
+        }));
+        loading.await();
+        cache.invalidate(1);
+        invalidated.countDown();
+        String stale = staleRead.get(10, TimeUnit.SECONDS).orElseThrow();
+        executor.shutdown();
+
+        String fresh = cache.get(1, id -> Optional.of("новое")).orElseThrow();
+
+        // проверяем утверждения: старое значение отдано только начатому до записи чтению и не попало в кэш
+        assertThat(stale).isEqualTo("старое");
+        assertThat(fresh).isEqualTo("новое");
+        assertThat(cache.get(1, id -> Optional.of("лишнее")).orElseThrow()).isEqualTo("новое");
+    }
+
+    @Test
+    public void testSingleFlightSharesOneLoad() throws Exception {
+        // Подготавливаем данные для теста
+        int threads = 16;
+        SingleFlight<List<Integer>> flight = new SingleFlight<>(true, list -> new ArrayList<>(list));
+        AtomicInteger loaderCalls = new AtomicInteger();
+        AtomicReference<List<Integer>> loaded = new AtomicReference<>();
+        // загрузка заканчивается, только когда к ней присоединились все остальные потоки
+        IntFunction<Optional<List<Integer>>> loader = id -> {
+            loaderCalls.incrementAndGet();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (flight.getCoalesced() < threads - 1 && System.nanoTime() < deadline) {
+                Thread.onSpinWait();
+            }
+            loaded.set(new ArrayList<>(List.of(1, 2, 3)));
+            return Optional.of(loaded.get());
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+
+        // вызываем тестируемый метод
+        List<Future<Optional<List<Integer>>>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                return flight.load(1, loader);
+            }));
+        }
+        start.countDown();
+
+        Set<List<Integer>> distinctResults = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Future<Optional<List<Integer>>> future : futures) {
+            List<Integer> result = future.get(10, TimeUnit.SECONDS).orElseThrow();
+            assertThat(result).isEqualTo(List.of(1, 2, 3));
+            distinctResults.add(result);
+        }
+        executor.shutdown();
+
+        // проверяем утверждения: одна загрузка на всех, и у каждого потока, включая загрузивший, своя копия;
+        // сам прочитанный объект, с которого копируют ожидающие, наружу не отдается
+        assertThat(loaderCalls.get()).isEqualTo(1);
+        assertThat(flight.getLoads()).isEqualTo(1);
+        assertThat(flight.getCoalesced()).isEqualTo(threads - 1);
+        assertThat(distinctResults.size()).isEqualTo(threads);
+        assertThat(distinctResults.contains(loaded.get())).isFalse();
+    }
+
+    @Test
+    public void testConcurrentGetFilmRunsOneQueryPerBurst() throws Exception {
+        // Подготавливаем данные для теста
+        int threads = 16;
+        int bursts = 3;
+        AtomicBoolean slow = new AtomicBoolean();
+        // медленное соединение: пока первый запрос ждет базу, остальные успевают к нему присоединиться
+        DataSource slowDataSource = new DelegatingDataSource(dataSource) {
+            @Override
+            public Connection getConnection() throws SQLException {
+                if (slow.get()) {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.getConnection();
+            }
+        };
+        StatementCounter counter = new StatementCounter(slowDataSource);
+        FilmDbStorage coalescingStorage = createCoalescingFilmStorage(counter.jdbcTemplate(), true);
+        FilmDbStorage plainStorage = createCoalescingFilmStorage(counter.jdbcTemplate(), false);
+        slow.set(true);
+
+        // вызываем тестируемый метод
+        int coalescingStatements = countBurstStatements(coalescingStorage, counter, threads, bursts);
+        int plainStatements = countBurstStatements(plainStorage, counter, threads, bursts);
+
+        // проверяем утверждения: один запрос к базе на каждую волну одновременных чтений
+        assertThat(coalescingStatements).isEqualTo(bursts);
+        assertThat(plainStatements).isEqualTo(threads * bursts);
+    }
+
+    private int countLikes() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM likes", Integer.class);
+    }
+
+    private FilmDbStorage createFilmStorage(JdbcTemplate template) {
+        return createFilmStorage(template, createLikeBuffer(template, false));
+    }
+
+    private FilmDbStorage createFilmStorage(JdbcTemplate template, LikeWriteBuffer likeBuffer) {
+        return createFilmStorage(template, likeBuffer, new LikeSketch(false, 0.0001, 0.99, 1000));
+    }
+
+    private FilmDbStorage createFilmStorage(JdbcTemplate template, LikeWriteBuffer likeBuffer, LikeSketch sketch) {
+        return new FilmDbStorage(template, new TransactionTemplate(transactionManager),
+                new GenreStorage(template), new MpaStorage(template), likeBuffer,
+                new FilmTrending(FilmTrending.DEFAULT_WINDOWS, 0), sketch, 0, 0, 0, false);
+    }
+
+    private FilmDbStorage createCachedFilmStorage(JdbcTemplate template) {
+        return createCachedFilmStorage(template, new GenreStorage(template), new MpaStorage(template));
+    }
+
+    private FilmDbStorage createCachedFilmStorage(JdbcTemplate template, GenreStorage genreStorage,
+                                                  MpaStorage mpaStorage) {
+        return new FilmDbStorage(template, new TransactionTemplate(transactionManager),
+                genreStorage, mpaStorage, createLikeBuffer(template, false),
+                new FilmTrending(FilmTrending.DEFAULT_WINDOWS, 0), new LikeSketch(false, 0.0001, 0.99, 1000),
+                100, 100, 60_000, true);
+    }
+
+    // потоки каждой волны одновременно читают один и тот же фильм
+    private int countBurstStatements(FilmDbStorage filmStorage, StatementCounter counter, int threads, int bursts)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            counter.reset();
+            for (int burst = 0; burst < bursts; burst++) {
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<Optional<Film>>> futures = new ArrayList<>();
+                for (int i = 0; i < threads; i++) {
+                    futures.add(executor.submit(() -> {
+                        start.await();
+                        return filmStorage.getFilm(1);
+                    }));
+                }
+                start.countDown();
+                for (Future<Optional<Film>> future : futures) {
+                    future.get(10, TimeUnit.SECONDS);
+                }
+            }
+            return counter.getCount();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private FilmDbStorage createCoalescingFilmStorage(JdbcTemplate template, boolean coalescing) {
+        return new FilmDbStorage(template, new TransactionTemplate(transactionManager),
+                new GenreStorage(template), new MpaStorage(template), createLikeBuffer(template, false),
+                new FilmTrending(FilmTrending.DEFAULT_WINDOWS, 0), new LikeSketch(false, 0.0001, 0.99, 1000),
+                0, 0, 0, coalescing);
+    }
+
+    private LikeWriteBuffer createLikeBuffer(JdbcTemplate template, boolean enabled) {
+        // интервал в час: в тесте буфер сбрасывается только явно или при переполнении в потоке теста
+        return new LikeWriteBuffer(template, new TransactionTemplate(transactionManager), enabled,
+                3, 100, 3_600_000);
+    }
+
+    private UserDbStorage createUserStorage() {
+        return new UserDbStorage(jdbcTemplate, new TransactionTemplate(transactionManager), new FriendGraph(false), 0, 0, 0, false);
+    }
+
+    private List<Film> addFilms(FilmDbStorage filmStorage, int count) {
+        List<Film> films = createFilms(count);
+        films.forEach(filmStorage::add);
+        return films;
+    }
+
+    private List<Film> createFilms(int count) {
+        List<Film> films = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            films.add(new Film(0, "Film " + UUID.randomUUID(), "Description " + i,
+                    LocalDate.of(2000, 1, 1), 100 + i, new Mpa(4, null),
+                    List.of(new Genre(2, null), new Genre(5, null))));
+        }
+
+        return films;
+    }
 }
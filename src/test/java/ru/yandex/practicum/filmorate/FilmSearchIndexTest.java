@@ -0,0 +1,92 @@
+package ru.yandex.practicum.filmorate;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import ru.yandex.practicum.filmorate.storage.film.FilmSearchIndex;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+@Slf4j
+public class FilmSearchIndexTest {
+
+    @Test
+    public void testSearchAfterPutAndRemove() {
+        // Подготавливаем данные для теста
+        FilmSearchIndex searchIndex = new FilmSearchIndex();
+        FilmSearchIndex.Loader loader = searchIndex.loader();
+        loader.add(1, "Сеть", "Фильм про хакера.");
+        loader.add(2, "Хакера не поймать", "Детектив.");
+        loader.finish();
+
+        // вызываем тестируемые методы
+        List<Integer> ranked = searchIndex.search("хакера", 0, 10);
+        searchIndex.put(3, "Ёлки", "Комедия про хакера.");
+        searchIndex.remove(1);
+        List<Integer> allWords = searchIndex.search("ЕЛКИ хакера", 0, 10);
+        List<Integer> afterRemove = searchIndex.search("хакера", 0, 10);
+        List<Integer> secondPage = searchIndex.search("хакера", 1, 1);
+        List<Integer> otherForm = searchIndex.search("хакеры", 0, 10);
+
+        // проверяем утверждения: совпадения в названии идут первыми
+        assertThat(ranked).isEqualTo(List.of(2, 1));
+        assertThat(allWords).isEqualTo(List.of(3));
+        assertThat(afterRemove).isEqualTo(List.of(2, 3));
+        assertThat(secondPage).isEqualTo(List.of(3));
+        assertThat(otherForm).isEqualTo(List.of(2, 3));
+    }
+
+    // запускается отдельно, масштаб задается так: mvn test -Dtest=FilmSearchIndexTest -Dfilmorate.benchmark=true
+    //   -Dfilmorate.benchmark.films=1000000
+    @Test
+    @EnabledIfSystemProperty(named = "filmorate.benchmark", matches = "true")
+    public void testSearchLatency() {
+        // Подготавливаем данные для теста: частоты слов распределены неравномерно, как в живых описаниях
+        int filmCount = Integer.getInteger("filmorate.benchmark.films", 100_000);
+        String[] vocabulary = new String[20_000];
+        for (int i = 0; i < vocabulary.length; i++) {
+            vocabulary[i] = (i % 2 == 0 ? "слово" : "word") + i;
+        }
+        Random random = new Random(42);
+        FilmSearchIndex searchIndex = new FilmSearchIndex();
+        FilmSearchIndex.Loader loader = searchIndex.loader();
+        for (int filmId = 1; filmId <= filmCount; filmId++) {
+            loader.add(filmId, randomText(vocabulary, random, 3), randomText(vocabulary, random, 25));
+        }
+        loader.finish();
+
+        // вызываем тестируемый метод, первые запросы прогревают JIT
+        int requests = 2_000;
+        long[] nanos = new long[requests];
+        long found = 0;
+        for (int i = -500; i < requests; i++) {
+            String query = randomText(vocabulary, random, 1 + random.nextInt(2));
+            long start = System.nanoTime();
+            List<Integer> filmIds = searchIndex.search(query, 0, 20);
+            if (i >= 0) {
+                nanos[i] = System.nanoTime() - start;
+                found += filmIds.size();
+            }
+        }
+        Arrays.sort(nanos);
+
+        log.debug("Поиск по {} фильмам: p50 {} мкс, p90 {} мкс, p99 {} мкс", filmCount, nanos[requests / 2] / 1_000,
+                nanos[requests * 9 / 10] / 1_000, nanos[requests * 99 / 100] / 1_000);
+
+        // проверяем утверждения: время сверяется с бюджетом из README по логу, здесь - только результат
+        assertThat(found).isGreaterThan(0L);
+    }
+
+    // слова выбираются со смещением к началу словаря, поэтому первые слова встречаются чаще остальных
+    static String randomText(String[] vocabulary, Random random, int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            text.append(vocabulary[(int) (vocabulary.length * Math.pow(random.nextDouble(), 3))]).append(' ');
+        }
+        return text.toString();
+    }
+}
@@ -53,4 +53,26 @@ public class GenreDbStorageTest {
                 .usingRecursiveComparison() // проверяем, что значения полей нового
                 .isEqualTo(targetGenre);        // и сохраненного пользователя - совпадают
     }
+
+    @Test
+    public void testGenresAreSharedAndRefreshed() {
+        // Подготавливаем данные для теста
+        GenreStorage genreStorage = new GenreStorage(jdbcTemplate);
+
+        Genre first = genreStorage.getGenreById(2).orElse(null);
+        Genre second = genreStorage.getGenres().get(1);
+
+        jdbcTemplate.update("INSERT INTO genres (id, name) VALUES (?, ?)", 100, "Фантастика");
+
+        Genre missingBeforeRefresh = genreStorage.findGenre(100).orElse(null);
+        genreStorage.refresh();
+
+        // проверяем утверждения
+        assertThat(first).isSameAs(second);
+        assertThat(missingBeforeRefresh).isNull();
+        assertThat(genreStorage.findGenre(100).orElse(null))
+                .isNotNull()
+                .usingRecursiveComparison()
+                .isEqualTo(new Genre(100, "Фантастика"));
+    }
 }
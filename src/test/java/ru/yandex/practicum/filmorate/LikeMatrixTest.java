@@ -0,0 +1,89 @@
+package ru.yandex.practicum.filmorate;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import ru.yandex.practicum.filmorate.storage.film.LikeMatrix;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+@Slf4j
+public class LikeMatrixTest {
+
+    @Test
+    public void testRecommendSkipsLikedFilms() {
+        // Подготавливаем данные для теста: у пользователей 1 и 2 два общих лайка, 3 лайкает другое
+        LikeMatrix likeMatrix = new LikeMatrix();
+        LikeMatrix.Loader loader = likeMatrix.loader();
+        loader.add(1, 1);
+        loader.add(1, 2);
+        loader.add(2, 1);
+        loader.add(2, 2);
+        loader.add(2, 3);
+        loader.add(3, 4);
+        loader.finish();
+
+        // вызываем тестируемые методы
+        int[] recommended = likeMatrix.recommend(1, 10);
+        likeMatrix.addLike(3, 1);
+        int[] recommendedAfterLike = likeMatrix.recommend(1, 10);
+
+        // проверяем утверждения
+        assertThat(recommended).isEqualTo(new int[]{3});
+        assertThat(recommendedAfterLike).isEqualTo(new int[0]);
+        assertThat(likeMatrix.recommend(4, 10)).isEqualTo(new int[0]);
+    }
+
+    // запускается отдельно, масштаб задается так: mvn test -Dtest=LikeMatrixTest -Dfilmorate.benchmark=true
+    //   -Dfilmorate.benchmark.users=1000000 -Dfilmorate.benchmark.films=100000 -DargLine=-Xmx2g
+    @Test
+    @EnabledIfSystemProperty(named = "filmorate.benchmark", matches = "true")
+    public void testRecommendationsBenchmark() {
+        // Подготавливаем данные для теста: популярность фильмов и число лайков у пользователей неравномерны
+        int userCount = Integer.getInteger("filmorate.benchmark.users", 100_000);
+        int filmCount = Integer.getInteger("filmorate.benchmark.films", 10_000);
+        Random random = new Random(42);
+        LikeMatrix likeMatrix = new LikeMatrix();
+        LikeMatrix.Loader loader = likeMatrix.loader();
+        long likes = 0;
+
+        for (int userId = 1; userId <= userCount; userId++) {
+            int likeCount = (int) Math.min(filmCount / 10, 5 / Math.pow(1 - random.nextDouble(), 1 / 1.5));
+            int[] filmIds = random.ints(likeCount, 0, Integer.MAX_VALUE)
+                    .map(r -> 1 + (int) (filmCount * Math.pow(r / (double) Integer.MAX_VALUE, 2)))
+                    .sorted()
+                    .distinct()
+                    .toArray();
+            for (int filmId : filmIds) {
+                loader.add(userId, filmId);
+            }
+            likes += filmIds.length;
+        }
+        loader.finish();
+
+        // вызываем тестируемый метод, первые запросы прогревают JIT
+        int requests = 1_000;
+        long[] nanos = new long[requests];
+        int recommended = 0;
+        for (int i = 0; i < 100; i++) {
+            likeMatrix.recommend(1 + random.nextInt(userCount), 10);
+        }
+        for (int i = 0; i < requests; i++) {
+            int userId = 1 + random.nextInt(userCount);
+            long start = System.nanoTime();
+            recommended += likeMatrix.recommend(userId, 10).length;
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+
+        log.debug("Рекомендации: {} пользователей, {} фильмов, {} лайков, матрица ~{} МБ, p50 {} мкс, p99 {} мкс",
+                userCount, filmCount, likes, likeMatrix.estimatedBytes() / (1024 * 1024),
+                nanos[requests / 2] / 1_000, nanos[requests * 99 / 100] / 1_000);
+
+        // проверяем утверждения: время сверяется с бюджетом из README по логу, здесь - только результат
+        assertThat(recommended).isGreaterThan(0);
+    }
+}
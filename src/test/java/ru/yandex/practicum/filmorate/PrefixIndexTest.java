@@ -0,0 +1,85 @@
+package ru.yandex.practicum.filmorate;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import ru.yandex.practicum.filmorate.storage.PrefixIndex;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+@Slf4j
+public class PrefixIndexTest {
+
+    @Test
+    public void testSearchByPopularityAfterPutAndRemove() {
+        // Подготавливаем данные для теста
+        long[] likes = {0, 0, 2, 1, 0};
+        PrefixIndex titleIndex = new PrefixIndex(id -> likes[id]);
+        titleIndex.rebuild(Map.of(1, "Ёлки", 2, "Елки 2", 3, "Ежик в тумане", 4, "The Matrix"));
+
+        // вызываем тестируемые методы
+        int[] byPopularity = titleIndex.search("е", 10);
+        int[] withYo = titleIndex.search("  ЁЛК", 10);
+        int[] limited = titleIndex.search("е", 1);
+        titleIndex.put(1, "Матрица: перезагрузка");
+        titleIndex.remove(2);
+
+        // проверяем утверждения
+        assertThat(byPopularity).isEqualTo(new int[]{2, 3, 1});
+        assertThat(withYo).isEqualTo(new int[]{2, 1});
+        assertThat(limited).isEqualTo(new int[]{2});
+        assertThat(titleIndex.search("елки", 10)).isEqualTo(new int[0]);
+        assertThat(titleIndex.search("матр", 10)).isEqualTo(new int[]{1});
+        assertThat(titleIndex.search("е", 10)).isEqualTo(new int[]{3});
+        assertThat(titleIndex.size()).isEqualTo(3);
+    }
+
+    // запускается отдельно, масштаб задается так: mvn test -Dtest=PrefixIndexTest -Dfilmorate.benchmark=true
+    //   -Dfilmorate.benchmark.films=5000000
+    @Test
+    @EnabledIfSystemProperty(named = "filmorate.benchmark", matches = "true")
+    public void testSuggestLatency() {
+        // Подготавливаем данные для теста: названия из неравномерно распределенных слов и лайки по степенному закону
+        int filmCount = Integer.getInteger("filmorate.benchmark.films", 100_000);
+        String[] vocabulary = new String[20_000];
+        for (int i = 0; i < vocabulary.length; i++) {
+            vocabulary[i] = (i % 2 == 0 ? "слово" : "word") + i;
+        }
+        Random random = new Random(42);
+        Map<Integer, String> titles = new HashMap<>();
+        long[] likes = new long[filmCount + 1];
+        for (int filmId = 1; filmId <= filmCount; filmId++) {
+            titles.put(filmId, FilmSearchIndexTest.randomText(vocabulary, random, 1 + random.nextInt(3)));
+            likes[filmId] = (long) (1 / Math.pow(1 - random.nextDouble(), 1.5));
+        }
+        PrefixIndex titleIndex = new PrefixIndex(filmId -> likes[filmId]);
+        titleIndex.rebuild(titles);
+
+        // вызываем тестируемый метод: каждое название набирается по одной букве, первые прогревают JIT
+        List<Long> nanos = new ArrayList<>();
+        for (int i = -300; i < 2_000; i++) {
+            String title = titles.get(1 + random.nextInt(filmCount));
+            for (int length = 1; length <= Math.min(8, title.length()); length++) {
+                long start = System.nanoTime();
+                titleIndex.search(title.substring(0, length), 10);
+                if (i >= 0) {
+                    nanos.add(System.nanoTime() - start);
+                }
+            }
+        }
+        nanos.sort(Long::compare);
+
+        log.debug("Подсказки по {} названиям: p50 {} мкс, p99 {} мкс на нажатие, индекс около {} МБ", filmCount,
+                nanos.get(nanos.size() / 2) / 1_000, nanos.get(nanos.size() * 99 / 100) / 1_000,
+                titleIndex.estimatedBytes() / (1024 * 1024));
+
+        // проверяем утверждения: время и объем сверяются с бюджетом из README по логу, здесь - только результат
+        assertThat(titleIndex.size()).isEqualTo(filmCount);
+    }
+}
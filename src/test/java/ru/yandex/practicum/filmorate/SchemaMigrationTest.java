@@ -0,0 +1,106 @@
+package ru.yandex.practicum.filmorate;
+
+import lombok.RequiredArgsConstructor;
+import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.output.MigrateResult;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.JdbcTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import ru.yandex.practicum.filmorate.model.FilmFilter;
+import ru.yandex.practicum.filmorate.storage.film.FilmDbStorage;
+import ru.yandex.practicum.filmorate.storage.film.FilmFilterQuery;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+
+@JdbcTest // указываем, о необходимости подготовить бины для работы с БД
+@RequiredArgsConstructor(onConstructor_ = @Autowired)
+public class SchemaMigrationTest {
+    private final JdbcTemplate jdbcTemplate;
+    private final Flyway flyway;
+
+    @Test
+    public void testAllMigrationsApplied() {
+        // вызываем тестируемый метод
+        List<String> versions = jdbcTemplate.queryForList("SELECT \"version\" FROM \"flyway_schema_history\" " +
+                "WHERE \"success\" = TRUE AND \"version\" IS NOT NULL ORDER BY \"installed_rank\"", String.class);
+
+        // проверяем утверждения
+        assertThat(versions).isEqualTo(List.of("1", "2", "3", "4"));
+    }
+
+    @Test
+    public void testHotPathQueriesUseIndexes() {
+        // вызываем тестируемый метод
+        String likesPlan = explain("SELECT user_id FROM likes WHERE film_id = 1");
+        String friendsPlan = explain("SELECT user_id FROM friends WHERE friend_id = 1");
+        String usersPlan = explain("SELECT id FROM users WHERE login = 'vanya123'");
+        String filmsPlan = explain("SELECT id FROM films WHERE name = 'Dune'");
+
+        // проверяем утверждения: likes и friends читаются по индексам внешних ключей, без полного просмотра
+        assertThat(likesPlan.contains("tableScan")).isFalse();
+        assertThat(friendsPlan.contains("tableScan")).isFalse();
+        assertThat(usersPlan.contains("IDX_USERS_LOGIN")).isTrue();
+        assertThat(filmsPlan.contains("IDX_FILMS_NAME")).isTrue();
+    }
+
+    @Test
+    public void testFilmFilterQueriesUseIndexes() {
+        // Подготавливаем данные для теста: каталог, на котором полный просмотр заметно дороже индекса
+        jdbcTemplate.update("INSERT INTO films (name, description, release_date, duration) " +
+                "SELECT CONCAT('Film ', X), 'Description', DATEADD(DAY, X, DATE '1950-01-01'), 100 " +
+                "FROM SYSTEM_RANGE(1, 10000)");
+        jdbcTemplate.update("INSERT INTO film_genre (film_id, genre_id) SELECT id, MOD(id, 6) + 1 FROM films");
+        jdbcTemplate.update("INSERT INTO film_rating (film_id, rating_id) SELECT id, MOD(id, 5) + 1 FROM films");
+        LocalDate from = LocalDate.of(1960, 1, 1);
+        LocalDate to = LocalDate.of(1961, 1, 1);
+
+        // вызываем тестируемый метод
+        String genrePlan = explain(new FilmFilterQuery(new FilmFilter(1, null, null, null), 0, 100));
+        String mpaPlan = explain(new FilmFilterQuery(new FilmFilter(null, 2, null, null), 0, 100));
+        String datePlan = explain(new FilmFilterQuery(new FilmFilter(null, null, from, to), 0, 100));
+        String allPlan = explain(new FilmFilterQuery(new FilmFilter(1, 2, from, to), 0, 100));
+        String noFilterPlan = explain(new FilmFilterQuery(FilmFilter.ALL, 0, 100));
+
+        // проверяем утверждения: ни фильтр, ни присоединение рейтинга и жанров не читают таблицы целиком
+        assertThat(genrePlan.contains("IDX_FILM_GENRE_GENRE_ID")).isTrue();
+        assertThat(mpaPlan.contains("IDX_FILM_RATING_RATING_ID")).isTrue();
+        for (String plan : List.of(genrePlan, mpaPlan, datePlan, allPlan, noFilterPlan)) {
+            assertThat(plan.contains("tableScan")).isFalse();
+        }
+    }
+
+    private String explain(FilmFilterQuery query) {
+        // план строится для всего запроса страницы, вместе с присоединением рейтинга и жанров;
+        // параметры подставляются в текст, чтобы план строился с их значениями
+        String sql = FilmDbStorage.getPageSql(query);
+        for (Object arg : query.getArgs()) {
+            String literal = arg instanceof LocalDate ? "DATE '" + arg + "'" : String.valueOf(arg);
+            sql = sql.replaceFirst("\\?", literal);
+        }
+        return explain(sql);
+    }
+
+    @Test
+    public void testRepeatedMigrationKeepsRows() {
+        // Подготавливаем данные для теста
+        int count = 5_000;
+        jdbcTemplate.update("INSERT INTO users (email, login, name, birthday) " +
+                "SELECT CONCAT('user', X, '@email.ru'), CONCAT('login', X), CONCAT('User ', X), DATE '1990-01-01' " +
+                "FROM SYSTEM_RANGE(1, ?)", count);
+
+        // вызываем тестируемый метод, как при повторном запуске приложения
+        MigrateResult result = flyway.migrate();
+
+        // проверяем утверждения: схема не пересоздается, данные на месте
+        assertThat(result.migrationsExecuted).isEqualTo(0);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM users", Integer.class)).isEqualTo(count);
+    }
+
+    private String explain(String sql) {
+        return jdbcTemplate.queryForObject("EXPLAIN " + sql, String.class);
+    }
+}
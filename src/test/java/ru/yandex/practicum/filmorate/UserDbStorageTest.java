@@ -1,29 +1,51 @@
 package ru.yandex.practicum.filmorate;
 
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.jdbc.JdbcTest;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.yandex.practicum.filmorate.model.BatchResult;
+import ru.yandex.practicum.filmorate.model.FriendshipStatus;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.service.UserService;
+import ru.yandex.practicum.filmorate.storage.user.FriendGraph;
 import ru.yandex.practicum.filmorate.storage.user.UserDbStorage;
 
+import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
 
+@Slf4j
 @JdbcTest // указываем, о необходимости подготовить бины для работы с БД
 @RequiredArgsConstructor(onConstructor_ = @Autowired)
 class UserDbStorageTest {
     private final JdbcTemplate jdbcTemplate;
+    private final PlatformTransactionManager transactionManager;
+    private final DataSource dataSource;
 
     @Test
     public void testFindUserById() {
         // Подготавливаем данные для теста
         User newUser = new User(1, "user@email.ru", "vanya123", "Ivan Petrov",
                 LocalDate.of(1990, 1, 1));
-        UserDbStorage userStorage = new UserDbStorage(jdbcTemplate);
+        UserDbStorage userStorage = createUserStorage();
         userStorage.add(newUser);
 
         // вызываем тестируемый метод
@@ -41,7 +63,7 @@ class UserDbStorageTest {
         // Подготавливаем данные для теста
         User newUser = new User(1, "user@email.ru", "vanya123", "Ivan Petrov",
                 LocalDate.of(1990, 1, 1));
-        UserDbStorage userStorage = new UserDbStorage(jdbcTemplate);
+        UserDbStorage userStorage = createUserStorage();
         userStorage.add(newUser);
 
         User updatedUser = new User(newUser.getId(), "user@emailUPDATES.ru", "vanya123", "Ivan0 Petrov",
@@ -61,7 +83,7 @@ class UserDbStorageTest {
     @Test
     public void testGetAllUsers() {
         // Подготавливаем данные для теста
-        UserDbStorage userStorage = new UserDbStorage(jdbcTemplate);
+        UserDbStorage userStorage = createUserStorage();
 
         User newUser1 = new User(1, "user@email.ru", "vanya123", "Ivan Petrov",
                 LocalDate.of(1990, 1, 1));
@@ -84,7 +106,7 @@ class UserDbStorageTest {
     @Test
     public void testAddFriend() {
         // Подготавливаем данные для теста
-        UserDbStorage userStorage = new UserDbStorage(jdbcTemplate);
+        UserDbStorage userStorage = createUserStorage();
 
         User newUser1 = new User(1, "user@email.ru", "vanya123", "Ivan Petrov",
                 LocalDate.of(1990, 1, 1));
@@ -108,7 +130,7 @@ class UserDbStorageTest {
     @Test
     public void testRemoveFriend() {
         // Подготавливаем данные для теста
-        UserDbStorage userStorage = new UserDbStorage(jdbcTemplate);
+        UserDbStorage userStorage = createUserStorage();
 
         User newUser1 = new User(1, "user@email.ru", "vanya123", "Ivan Petrov",
                 LocalDate.of(1990, 1, 1));
@@ -135,4 +157,629 @@ class UserDbStorageTest {
                 .usingRecursiveComparison() // проверяем, что значения полей нового
                 .isEqualTo(List.of(newUser3));        // и сохраненного пользователя - совпадают
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testGetUserFriendsPageByStatus() {
+        // Подготавливаем данные для теста
+        UserDbStorage userStorage = createUserStorage();
+
+        User newUser1 = new User(1, "user@email.ru", "vanya123", "Ivan Petrov",
+                LocalDate.of(1990, 1, 1));
+        userStorage.add(newUser1);
+
+        User newUser2 = new User(2, "user@email222.ru", "vanya123456", "Ivan0 Petrov",
+                LocalDate.of(1991, 2, 3));
+        userStorage.add(newUser2);
+
+        User newUser3 = new User(3, "user@email333.ru", "vanya12345678", "Ivan0 Petrov",
+                LocalDate.of(1991, 2, 3));
+        userStorage.add(newUser3);
+
+        User newUser4 = new User(4, "user@email444.ru", "vanya1234567890", "Ivan1 Petrov",
+                LocalDate.of(1992, 3, 4));
+        userStorage.add(newUser4);
+
+        userStorage.addFriend(newUser1, newUser2);
+        userStorage.addFriend(newUser1, newUser3);
+        userStorage.addFriend(newUser1, newUser4);
+        userStorage.addFriend(newUser3, newUser1);
+
+        // вызываем тестируемый метод
+        List<User> firstPage = userStorage.getUserFriends(newUser1, null, 0, 2);
+        List<User> lastPage = userStorage.getUserFriends(newUser1, null, newUser3.getId(), 2);
+        List<User> accepted = userStorage.getUserFriends(newUser1, FriendshipStatus.ACCEPTED, 0, 10);
+        List<User> unaccepted = userStorage.getUserFriends(newUser1, FriendshipStatus.UNACCEPTED, 0, 10);
+
+        // проверяем утверждения
+        assertThat(firstPage)
+                .usingRecursiveComparison()
+                .isEqualTo(List.of(newUser2, newUser3));
+        assertThat(lastPage)
+                .usingRecursiveComparison()
+                .isEqualTo(List.of(newUser4));
+        assertThat(accepted)
+                .usingRecursiveComparison()
+                .isEqualTo(List.of(newUser3));
+        assertThat(unaccepted)
+                .usingRecursiveComparison()
+                .isEqualTo(List.of(newUser2, newUser4));
+    }
+
+    @Test
+    public void testGetUserFriendsSingleQuery() {
+        // Подготавливаем данные для теста
+        int count = 5_000;
+        jdbcTemplate.update("INSERT INTO users (email, login, name, birthday) " +
+                "SELECT CONCAT('user', X, '@email.ru'), CONCAT('login', X), CONCAT('User ', X), DATE '1990-01-01' " +
+                "FROM SYSTEM_RANGE(1, ?)", count + 1);
+        int userId = jdbcTemplate.queryForObject("SELECT MIN(id) FROM users", Integer.class);
+        jdbcTemplate.update("INSERT INTO friends (user_id, friend_id) SELECT ?, id FROM users WHERE id <> ?",
+                userId, userId);
+
+        StatementCounter counter = new StatementCounter(dataSource);
+        UserDbStorage userStorage = new UserDbStorage(counter.jdbcTemplate(),
+                new TransactionTemplate(transactionManager), new FriendGraph(false), 0, 0, 0, false);
+        User user = userStorage.getUser(userId).orElseThrow();
+
+        // вызываем тестируемый метод
+        counter.reset();
+        List<User> friends = userStorage.getUserFriends(user);
+
+        // проверяем утверждения
+        assertThat(friends.size()).isEqualTo(count);
+        assertThat(counter.getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testGetUsersByIdsInOneQuery() {
+        // Подготавливаем данные для теста
+        StatementCounter counter = new StatementCounter(dataSource);
+        UserDbStorage userStorage = new UserDbStorage(counter.jdbcTemplate(),
+                new TransactionTemplate(transactionManager), new FriendGraph(false), 0, 0, 0, false);
+        UserService userService = new UserService(userStorage);
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            User user = new User(0, "user" + i + "@email.ru", "user" + i, "User " + i, LocalDate.of(1990, 1, 1));
+            users.add(userStorage.add(user));
+        }
+        int missingId = users.get(2).getId() + 1000;
+
+        // вызываем тестируемый метод
+        counter.reset();
+        BatchResult<User> result = userService.getUsersByIds(List.of(users.get(2).getId(), missingId,
+                users.get(0).getId()));
+
+        // проверяем утверждения
+        assertThat(counter.getCount()).isEqualTo(1);
+        assertThat(result.getItems().stream().map(User::getLogin).collect(Collectors.toList()))
+                .isEqualTo(List.of("user2", "user0"));
+        assertThat(result.getMissing()).isEqualTo(List.of(missingId));
+    }
+
+    @Test
+    public void testGetCommonFriends() {
+        // Подготавливаем данные для теста
+        UserDbStorage userStorage = createUserStorage();
+
+        User newUser1 = new User(1, "user@email.ru", "vanya123", "Ivan Petrov",
+                LocalDate.of(1990, 1, 1));
+        userStorage.add(newUser1);
+
+        User newUser2 = new User(2, "user@email222.ru", "vanya123456", "Ivan0 Petrov",
+                LocalDate.of(1991, 2, 3));
+        userStorage.add(newUser2);
+
+        User newUser3 = new User(3, "user@email333.ru", "vanya12345678", "Ivan0 Petrov",
+                LocalDate.of(1991, 2, 3));
+        userStorage.add(newUser3);
+
+        User newUser4 = new User(4, "user@email444.ru", "vanya1234567890", "Ivan1 Petrov",
+                LocalDate.of(1992, 3, 4));
+        userStorage.add(newUser4);
+
+        userStorage.addFriend(newUser1, newUser3);
+        userStorage.addFriend(newUser1, newUser4);
+        userStorage.addFriend(newUser2, newUser3);
+
+        // вызываем тестируемый метод
+        List<User> commonFriends = userStorage.getCommonFriends(newUser1, newUser2);
+
+        // проверяем утверждения
+        assertThat(commonFriends)
+                .usingRecursiveComparison()
+                .isEqualTo(List.of(newUser3));
+    }
+
+    @Test
+    public void testCommonFriendsOfPowerUsers() {
+        // Подготавливаем данные для теста: у двух пользователей по 2 000 друзей, половина общие
+        int count = 2_000;
+        int[] ids = insertPowerUsers(count);
+        int userId = ids[0];
+        int otherUserId = ids[1];
+        int friendsFrom = ids[2];
+
+        StatementCounter counter = new StatementCounter(dataSource);
+        UserDbStorage userStorage = new UserDbStorage(counter.jdbcTemplate(),
+                new TransactionTemplate(transactionManager), new FriendGraph(false), 0, 0, 0, false);
+        User user = userStorage.getUser(userId).orElseThrow();
+        User otherUser = userStorage.getUser(otherUserId).orElseThrow();
+
+        // вызываем тестируемый метод
+        counter.reset();
+        List<User> commonFriends = userStorage.getCommonFriends(user, otherUser);
+        int statements = counter.getCount();
+
+        // проверяем утверждения: пересечение считается одним запросом
+        assertThat(commonFriends.size()).isEqualTo(count / 2);
+        assertThat(commonFriends.get(0).getId()).isEqualTo(friendsFrom + count / 2);
+        assertThat(commonFriends.get(count / 2 - 1).getId()).isEqualTo(friendsFrom + count - 1);
+        assertThat(statements).isEqualTo(1);
+    }
+
+    // сравнение с прежним способом на 50 000 друзей, запускается отдельно:
+    // mvn test -Dtest=UserDbStorageTest#testCommonFriendsComparedToRetainAll -Dfilmorate.benchmark=true
+    @Test
+    @EnabledIfSystemProperty(named = "filmorate.benchmark", matches = "true")
+    public void testCommonFriendsComparedToRetainAll() {
+        // Подготавливаем данные для теста: у двух пользователей по 50 000 друзей, половина общие
+        int count = 50_000;
+        int[] ids = insertPowerUsers(count);
+        UserDbStorage userStorage = createUserStorage();
+        User user = userStorage.getUser(ids[0]).orElseThrow();
+        User otherUser = userStorage.getUser(ids[1]).orElseThrow();
+
+        // вызываем тестируемый метод
+        long start = System.nanoTime();
+        List<User> commonFriends = userStorage.getCommonFriends(user, otherUser);
+        long intersectionMillis = (System.nanoTime() - start) / 1_000_000;
+
+        // прежний способ: два списка друзей и List.retainAll за O(n * m)
+        start = System.nanoTime();
+        List<User> userFriends = new ArrayList<>(userStorage.getUserFriends(user));
+        userFriends.retainAll(userStorage.getUserFriends(otherUser));
+        long retainAllMillis = (System.nanoTime() - start) / 1_000_000;
+
+        log.debug("Общие друзья {}: пересечение в SQL {} мс, retainAll {} мс", commonFriends.size(),
+                intersectionMillis, retainAllMillis);
+
+        // проверяем утверждения
+        assertThat(commonFriends.size()).isEqualTo(count / 2);
+        assertThat(userFriends.size()).isEqualTo(count / 2);
+    }
+
+    // два пользователя с count друзьями каждый, половина друзей общие; возвращает id обоих и первого друга
+    private int[] insertPowerUsers(int count) {
+        jdbcTemplate.update("INSERT INTO users (email, login, name, birthday) " +
+                "SELECT CONCAT('user', X, '@email.ru'), CONCAT('login', X), CONCAT('User ', X), DATE '1990-01-01' " +
+                "FROM SYSTEM_RANGE(1, ?)", count / 2 * 3 + 2);
+        int userId = jdbcTemplate.queryForObject("SELECT MIN(id) FROM users", Integer.class);
+        int otherUserId = userId + 1;
+        int friendsFrom = userId + 2;
+        jdbcTemplate.update("INSERT INTO friends (user_id, friend_id) SELECT ?, id FROM users " +
+                "WHERE id >= ? AND id < ?", userId, friendsFrom, friendsFrom + count);
+        jdbcTemplate.update("INSERT INTO friends (user_id, friend_id) SELECT ?, id FROM users " +
+                "WHERE id >= ? AND id < ?", otherUserId, friendsFrom + count / 2, friendsFrom + count / 2 + count);
+        return new int[]{userId, otherUserId, friendsFrom};
+    }
+
+    @Test
+    public void testFriendGraphMatchesSql() {
+        // Подготавливаем данные для теста: часть дружб есть до загрузки графа, часть меняется после
+        UserDbStorage sqlStorage = createUserStorage();
+        List<User> users = new ArrayList<>();
+        for (int i = 1; i <= 6; i++) {
+            User user = new User(i, "user" + i + "@email.ru", "login" + i, "User " + i,
+                    LocalDate.of(1990, 1, i));
+            users.add(sqlStorage.add(user));
+        }
+        sqlStorage.addFriend(users.get(0), users.get(1));
+        sqlStorage.addFriend(users.get(1), users.get(0));
+        sqlStorage.addFriend(users.get(0), users.get(2));
+        sqlStorage.addFriend(users.get(3), users.get(2));
+
+        FriendGraph friendGraph = new FriendGraph(true);
+        UserDbStorage graphStorage = new UserDbStorage(jdbcTemplate, new TransactionTemplate(transactionManager),
+                friendGraph, 0, 0, 0, false);
+
+        // вызываем тестируемые методы
+        graphStorage.addFriend(users.get(0), users.get(3));
+        graphStorage.addFriend(users.get(3), users.get(0));
+        graphStorage.addFriend(users.get(0), users.get(4));
+        graphStorage.addFriend(users.get(3), users.get(4));
+        graphStorage.removeFriend(users.get(1), users.get(0));
+        graphStorage.addFriend(users.get(5), users.get(0));
+
+        // проверяем утверждения: граф отвечает так же, как запросы к friends
+        for (User user : users) {
+            for (FriendshipStatus status : new FriendshipStatus[]{null, FriendshipStatus.ACCEPTED,
+                    FriendshipStatus.UNACCEPTED}) {
+                assertThat(graphStorage.getUserFriends(user, status, 0, 100))
+                        .usingRecursiveComparison()
+                        .isEqualTo(sqlStorage.getUserFriends(user, status, 0, 100));
+                assertThat(graphStorage.getUserFriends(user, status, users.get(2).getId(), 1))
+                        .usingRecursiveComparison()
+                        .isEqualTo(sqlStorage.getUserFriends(user, status, users.get(2).getId(), 1));
+            }
+            for (User other : users) {
+                assertThat(graphStorage.getCommonFriends(user, other))
+                        .usingRecursiveComparison()
+                        .isEqualTo(sqlStorage.getCommonFriends(user, other));
+            }
+        }
+    }
+
+    @Test
+    public void testFriendGraphCommonFriendsOfPowerUsers() {
+        // Подготавливаем данные для теста: у двух пользователей по 2 000 друзей, половина общие
+        int count = 2_000;
+        int[] ids = insertPowerUsers(count);
+        int userId = ids[0];
+        int otherUserId = ids[1];
+        int friendsFrom = ids[2];
+
+        FriendGraph friendGraph = new FriendGraph(true);
+        new UserDbStorage(jdbcTemplate, new TransactionTemplate(transactionManager), friendGraph, 0, 0, 0, false);
+
+        // вызываем тестируемый метод
+        int[] commonIds = friendGraph.getCommonFriends(userId, otherUserId);
+
+        // проверяем утверждения
+        assertThat(commonIds.length).isEqualTo(count / 2);
+        assertThat(commonIds[0]).isEqualTo(friendsFrom + count / 2);
+        assertThat(commonIds[count / 2 - 1]).isEqualTo(friendsFrom + count - 1);
+        assertThat(friendGraph.getFriends(userId).length).isEqualTo(count);
+    }
+
+    @Test
+    public void testFriendSuggestions() {
+        // Подготавливаем данные для теста
+        UserDbStorage userStorage = createUserStorage();
+        UserService userService = new UserService(userStorage);
+        List<User> users = new ArrayList<>();
+        for (int i = 1; i <= 6; i++) {
+            User user = new User(i, "user" + i + "@email.ru", "login" + i, "User " + i,
+                    LocalDate.of(1990, 1, i));
+            users.add(userStorage.add(user));
+        }
+        // у пользователя 0 друзья 1 и 2; 3 - друг обоих, 4 - только друга 1, 2 уже в друзьях у 0
+        userStorage.addFriend(users.get(0), users.get(1));
+        userStorage.addFriend(users.get(0), users.get(2));
+        userStorage.addFriend(users.get(1), users.get(3));
+        userStorage.addFriend(users.get(2), users.get(3));
+        userStorage.addFriend(users.get(1), users.get(4));
+        userStorage.addFriend(users.get(1), users.get(2));
+        userStorage.addFriend(users.get(1), users.get(0));
+
+        // вызываем тестируемый метод
+        List<User> suggestions = userService.getFriendSuggestions(users.get(0).getId(), 10);
+        List<User> best = userService.getFriendSuggestions(users.get(0).getId(), 1);
+
+        // проверяем утверждения
+        assertThat(suggestions)
+                .usingRecursiveComparison()
+                .isEqualTo(List.of(users.get(3), users.get(4)));
+        assertThat(best)
+                .usingRecursiveComparison()
+                .isEqualTo(List.of(users.get(3)));
+    }
+
+    @Test
+    public void testFriendSuggestionsOnPowerLawGraph() {
+        // Подготавливаем данные для теста
+        int count = 2_000;
+        int firstId = insertPowerLawGraph(count);
+
+        StatementCounter counter = new StatementCounter(dataSource);
+        UserService sqlService = new UserService(new UserDbStorage(counter.jdbcTemplate(),
+                new TransactionTemplate(transactionManager), new FriendGraph(false), 0, 0, 0, false));
+        UserService graphService = new UserService(new UserDbStorage(jdbcTemplate,
+                new TransactionTemplate(transactionManager), new FriendGraph(true), 0, 0, 0, false));
+
+        // вызываем тестируемый метод для самого популярного пользователя
+        counter.reset();
+        List<User> suggestions = sqlService.getFriendSuggestions(firstId, 10);
+        int statements = counter.getCount();
+
+        // проверяем утверждения: пользователь, два шага обхода одним запросом и загрузка рекомендованных
+        assertThat(statements).isEqualTo(3);
+        assertThat(suggestions.size()).isEqualTo(10);
+        assertThat(suggestions)
+                .usingRecursiveComparison()
+                .isEqualTo(graphService.getFriendSuggestions(firstId, 10));
+        for (int i = 0; i < count; i += 97) {
+            assertThat(sqlService.getFriendSuggestions(firstId + i, 10))
+                    .usingRecursiveComparison()
+                    .isEqualTo(graphService.getFriendSuggestions(firstId + i, 10));
+        }
+    }
+
+    // запускается отдельно, масштаб задается так: mvn test -Dtest=UserDbStorageTest#testFriendSuggestionsBenchmark
+    //   -Dfilmorate.benchmark=true -Dfilmorate.benchmark.users=50000
+    @Test
+    @EnabledIfSystemProperty(named = "filmorate.benchmark", matches = "true")
+    public void testFriendSuggestionsBenchmark() {
+        // Подготавливаем данные для теста
+        int count = Integer.getInteger("filmorate.benchmark.users", 10_000);
+        int firstId = insertPowerLawGraph(count);
+        UserService sqlService = new UserService(createUserStorage());
+        UserService graphService = new UserService(new UserDbStorage(jdbcTemplate,
+                new TransactionTemplate(transactionManager), new FriendGraph(true), 0, 0, 0, false));
+
+        // вызываем тестируемый метод, первые запросы прогревают JIT
+        Random random = new Random(42);
+        int requests = 500;
+        int[] userIds = random.ints(requests, firstId, firstId + count).toArray();
+        long[] sqlNanos = new long[requests];
+        long[] graphNanos = new long[requests];
+        int suggested = 0;
+        for (int i = 0; i < 50; i++) {
+            sqlService.getFriendSuggestions(userIds[i], 10);
+            graphService.getFriendSuggestions(userIds[i], 10);
+        }
+        for (int i = 0; i < requests; i++) {
+            long start = System.nanoTime();
+            suggested += sqlService.getFriendSuggestions(userIds[i], 10).size();
+            sqlNanos[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            graphService.getFriendSuggestions(userIds[i], 10);
+            graphNanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(sqlNanos);
+        Arrays.sort(graphNanos);
+
+        log.debug("Кандидаты в друзья: {} пользователей, SQL p50 {} мкс, p99 {} мкс; "
+                        + "граф в памяти p50 {} мкс, p99 {} мкс",
+                count, sqlNanos[requests / 2] / 1_000, sqlNanos[requests * 99 / 100] / 1_000,
+                graphNanos[requests / 2] / 1_000, graphNanos[requests * 99 / 100] / 1_000);
+
+        // проверяем утверждения: время сверяется с бюджетом из README по логу, здесь - только результат
+        assertThat(suggested).isGreaterThan(0);
+    }
+
+    @Test
+    public void testFriendSuggestionsFanOutCap() {
+        // Подготавливаем данные для теста: у пользователя 250 друзей, обходятся только первые 200;
+        // кандидат near - друг первого друга, кандидат far - друг каждого из последних 50
+        int friends = 250;
+        jdbcTemplate.update("INSERT INTO users (email, login, name, birthday) " +
+                "SELECT CONCAT('user', X, '@email.ru'), CONCAT('login', X), CONCAT('User ', X), DATE '1990-01-01' " +
+                "FROM SYSTEM_RANGE(1, ?)", friends + 3);
+        int userId = jdbcTemplate.queryForObject("SELECT MIN(id) FROM users", Integer.class);
+        int nearId = userId + friends + 1;
+        int farId = userId + friends + 2;
+        jdbcTemplate.update("INSERT INTO friends (user_id, friend_id) SELECT ?, id FROM users " +
+                "WHERE id > ? AND id <= ?", userId, userId, userId + friends);
+        jdbcTemplate.update("INSERT INTO friends (user_id, friend_id) VALUES (?, ?)", userId + 1, nearId);
+        jdbcTemplate.update("INSERT INTO friends (user_id, friend_id) SELECT id, ? FROM users " +
+                "WHERE id > ? AND id <= ?", farId, userId + 200, userId + friends);
+
+        UserService sqlService = new UserService(createUserStorage());
+        UserService graphService = new UserService(new UserDbStorage(jdbcTemplate,
+                new TransactionTemplate(transactionManager), new FriendGraph(true), 0, 0, 0, false));
+
+        // вызываем тестируемый метод
+        List<User> sqlSuggestions = sqlService.getFriendSuggestions(userId, 10);
+        List<User> graphSuggestions = graphService.getFriendSuggestions(userId, 10);
+
+        // проверяем утверждения: друзья после первых 200 не обходятся, поэтому far не рекомендуется
+        assertThat(sqlSuggestions.size()).isEqualTo(1);
+        assertThat(sqlSuggestions.get(0).getId()).isEqualTo(nearId);
+        assertThat(graphSuggestions)
+                .usingRecursiveComparison()
+                .isEqualTo(sqlSuggestions);
+    }
+
+    @Test
+    public void testGetUsers() {
+        // Подготавливаем данные для теста
+        UserDbStorage userStorage = createUserStorage();
+
+        User newUser1 = new User(1, "user@email.ru", "vanya123", "Ivan Petrov",
+                LocalDate.of(1990, 1, 1));
+        userStorage.add(newUser1);
+
+        User newUser2 = new User(2, "user@email222.ru", "vanya123456", "Ivan0 Petrov",
+                LocalDate.of(1991, 2, 3));
+        userStorage.add(newUser2);
+
+        // вызываем тестируемый метод
+        List<User> savedUsers = userStorage.getUsers(List.of(newUser2.getId(), -1, newUser1.getId()));
+
+        // проверяем утверждения: порядок как в запросе, несуществующий id пропущен
+        assertThat(savedUsers)
+                .usingRecursiveComparison()
+                .isEqualTo(List.of(newUser2, newUser1));
+    }
+
+    @Test
+    public void testSuggest() {
+        // Подготавливаем данные для теста
+        UserDbStorage userStorage = createUserStorage();
+        User ivan = userStorage.add(new User(0, "ivan@email.ru", "Vanya123", "Ivan Petrov",
+                LocalDate.of(1990, 1, 1)));
+        User vanessa = userStorage.add(new User(0, "vanessa@email.ru", "vanessa", "Vanessa",
+                LocalDate.of(1991, 2, 3)));
+        User valya = userStorage.add(new User(0, "valya@email.ru", "valya", "Valya",
+                LocalDate.of(1992, 3, 4)));
+        User petr = userStorage.add(new User(0, "petr@email.ru", "petr", "Petr",
+                LocalDate.of(1993, 4, 5)));
+        // vanessa в друзьях у двоих, valya - у одного
+        userStorage.addFriend(ivan, vanessa);
+        userStorage.addFriend(petr, vanessa);
+        userStorage.addFriend(petr, valya);
+
+        // вызываем тестируемые методы
+        List<Integer> byFollowers = suggestIds(userStorage, "VA");
+        List<Integer> narrowed = suggestIds(userStorage, "van");
+
+        userStorage.removeFriend(petr, vanessa);
+        userStorage.removeFriend(ivan, vanessa);
+        List<Integer> afterRemoveFriend = suggestIds(userStorage, "va");
+
+        userStorage.update(new User(ivan.getId(), "ivan@email.ru", "ivan", "Ivan Petrov",
+                LocalDate.of(1990, 1, 1)));
+        List<Integer> afterUpdate = suggestIds(userStorage, "van");
+        // после перезапуска индекс и число подписчиков восстанавливаются из таблиц
+        List<Integer> afterRestart = suggestIds(createUserStorage(), "v");
+
+        // проверяем утверждения
+        assertThat(byFollowers).isEqualTo(List.of(vanessa.getId(), valya.getId(), ivan.getId()));
+        assertThat(narrowed).isEqualTo(List.of(vanessa.getId(), ivan.getId()));
+        assertThat(afterRemoveFriend).isEqualTo(List.of(valya.getId(), vanessa.getId(), ivan.getId()));
+        assertThat(afterUpdate).isEqualTo(List.of(vanessa.getId()));
+        assertThat(afterRestart).isEqualTo(List.of(valya.getId(), vanessa.getId()));
+    }
+
+    private List<Integer> suggestIds(UserDbStorage userStorage, String prefix) {
+        return userStorage.suggest(prefix, 10).stream()
+                .map(User::getId)
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testGetPage() {
+        // Подготавливаем данные для теста
+        UserDbStorage userStorage = createUserStorage();
+
+        User newUser1 = new User(1, "user@email.ru", "vanya123", "Ivan Petrov",
+                LocalDate.of(1990, 1, 1));
+        userStorage.add(newUser1);
+
+        User newUser2 = new User(2, "user@email222.ru", "vanya123456", "Ivan0 Petrov",
+                LocalDate.of(1991, 2, 3));
+        userStorage.add(newUser2);
+
+        User newUser3 = new User(3, "user@email333.ru", "vanya12345678", "Ivan0 Petrov",
+                LocalDate.of(1991, 2, 3));
+        userStorage.add(newUser3);
+
+        // вызываем тестируемый метод
+        List<User> firstPage = userStorage.getPage(0, 2);
+        List<User> lastPage = userStorage.getPage(newUser2.getId(), 2);
+
+        // проверяем утверждения
+        assertThat(firstPage)
+                .usingRecursiveComparison()
+                .isEqualTo(List.of(newUser1, newUser2));
+        assertThat(lastPage)
+                .usingRecursiveComparison()
+                .isEqualTo(List.of(newUser3));
+    }
+
+    @Test
+    public void testExportAllStreamsMillionUsers() {
+        // Подготавливаем данные для теста
+        int count = 1_000_000;
+        jdbcTemplate.update("INSERT INTO users (email, login, name, birthday) " +
+                "SELECT CONCAT('user', X, '@email.ru'), CONCAT('login', X), CONCAT('User ', X), DATE '1990-01-01' " +
+                "FROM SYSTEM_RANGE(1, ?)", count);
+        UserDbStorage userStorage = createUserStorage();
+
+        AtomicInteger exported = new AtomicInteger();
+        AtomicInteger lastId = new AtomicInteger();
+        AtomicBoolean ordered = new AtomicBoolean(true);
+        AtomicLong maxHeapGrowth = new AtomicLong();
+        long baseline = usedHeapAfterGc();
+
+        // вызываем тестируемый метод, пользователи не сохраняются, поэтому живая часть кучи не должна расти
+        userStorage.exportAll(user -> {
+            if (exported.incrementAndGet() % 100_000 == 0) {
+                maxHeapGrowth.accumulateAndGet(usedHeapAfterGc() - baseline, Math::max);
+            }
+            if (user.getId() <= lastId.getAndSet(user.getId())) {
+                ordered.set(false);
+            }
+        });
+
+        // проверяем утверждения: миллион пользователей в памяти занял бы больше 200 МБ,
+        // а при потоковой выгрузке живы только буфер выборки и результат запроса в H2
+        assertThat(exported.get()).isEqualTo(count);
+        assertThat(ordered.get()).isTrue();
+        assertThat(maxHeapGrowth.get()).isLessThan(64L * 1024 * 1024);
+    }
+
+    @Test
+    public void testAddAll() {
+        // Подготавливаем данные для теста
+        UserDbStorage userStorage = createUserStorage();
+
+        User newUser1 = new User(0, "user@email.ru", "vanya123", "Ivan Petrov",
+                LocalDate.of(1990, 1, 1));
+        User newUser2 = new User(0, "user@email222.ru", "vanya123456", "Ivan0 Petrov",
+                LocalDate.of(1991, 2, 3));
+
+        // вызываем тестируемый метод
+        List<User> savedUsers = userStorage.addAll(List.of(newUser1, newUser2));
+
+        // проверяем утверждения
+        assertThat(newUser1.getId()).isLessThan(newUser2.getId());
+        assertThat(userStorage.getAll())
+                .usingRecursiveComparison()
+                .isEqualTo(savedUsers);
+    }
+
+    @Test
+    public void testWriteStatementCount() {
+        // Подготавливаем данные для теста
+        StatementCounter counter = new StatementCounter(dataSource);
+        UserDbStorage userStorage = new UserDbStorage(counter.jdbcTemplate(),
+                new TransactionTemplate(transactionManager), new FriendGraph(false), 0, 0, 0, false);
+
+        User newUser = new User(0, "user@email.ru", "vanya123", "Ivan Petrov",
+                LocalDate.of(1990, 1, 1));
+
+        // вызываем тестируемые методы
+        counter.reset();
+        userStorage.add(newUser);
+        int addStatements = counter.getCount();
+
+        counter.reset();
+        userStorage.update(new User(newUser.getId(), "user@emailUPDATES.ru", "vanya123", "Ivan0 Petrov",
+                LocalDate.of(1991, 2, 3)));
+        int updateStatements = counter.getCount();
+
+        // проверяем утверждения
+        assertThat(addStatements).isEqualTo(1);
+        assertThat(updateStatements).isEqualTo(1);
+    }
+
+    // занятая куча после сборки мусора - объем живых объектов
+    // число друзей распределено по Парето, друзей чаще выбирают среди первых пользователей,
+    // поэтому у них появляются сотни подписчиков; возвращает id первого пользователя
+    private int insertPowerLawGraph(int count) {
+        jdbcTemplate.update("INSERT INTO users (email, login, name, birthday) " +
+                "SELECT CONCAT('user', X, '@email.ru'), CONCAT('login', X), CONCAT('User ', X), DATE '1990-01-01' " +
+                "FROM SYSTEM_RANGE(1, ?)", count);
+        int firstId = jdbcTemplate.queryForObject("SELECT MIN(id) FROM users", Integer.class);
+
+        Random random = new Random(42);
+        List<Object[]> friendships = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int degree = (int) Math.min(count / 4, 2 / Math.pow(1 - random.nextDouble(), 1 / 1.2));
+            Set<Integer> friendIds = new HashSet<>();
+            while (friendIds.size() < degree) {
+                int friend = (int) (count * Math.pow(random.nextDouble(), 3));
+                if (friend != i) {
+                    friendIds.add(friend);
+                }
+            }
+            for (int friend : friendIds) {
+                friendships.add(new Object[]{firstId + i, firstId + friend});
+            }
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO friends (user_id, friend_id) VALUES (?, ?)", friendships);
+        return firstId;
+    }
+
+    private static long usedHeapAfterGc() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    // кэш и объединение загрузок выключены: тесты считают запросы к базе и пишут в одну базу через несколько хранилищ
+    private UserDbStorage createUserStorage() {
+        return new UserDbStorage(jdbcTemplate, new TransactionTemplate(transactionManager), new FriendGraph(false), 0, 0, 0, false);
+    }
+}